@@ -1,18 +1,107 @@
 package tm.nsfantom.beaconpublisher;
 
 import android.app.Application;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
 
 import timber.log.Timber;
+import tm.nsfantom.beaconpublisher.service.InformuMuTagProfile;
+import tm.nsfantom.beaconpublisher.util.PrefStorage;
+import tm.nsfantom.beaconpublisher.util.Preload;
+import tm.nsfantom.beaconpublisher.util.TagConfigStore;
 
 /**
  * Created by user on 2/23/18.
  */
 
 public class BeaconApp extends Application {
+
+    private static final String TAG_CONFIG_FILE = "tag_config.bin";
+
+    private static Preload<TagConfigStore> tagConfig;
+
+    private static Preload<BluetoothGattService[]> gattServices;
+
     @Override
     public void onCreate() {
         super.onCreate();
 
         if(BuildConfig.DEBUG) Timber.plant(new Timber.DebugTree());
+
+        // read from disk and build the GATT profile while the first activity inflates
+        tagConfig(this).start();
+        gattServices().start();
+    }
+
+    /**
+     * Returns the process wide tag configuration, waiting for the load started in
+     * {@link #onCreate()}. Values stored by older versions in {@link PrefStorage} are migrated
+     * when no config file exists yet.
+     */
+    public static TagConfigStore getTagConfig(Context context) {
+        return tagConfig(context).get();
+    }
+
+    /**
+     * Returns the GATT service definitions, built once per process and shared by every server.
+     */
+    public static BluetoothGattService[] getGattServices() {
+        return gattServices().get();
+    }
+
+    private static synchronized Preload<TagConfigStore> tagConfig(Context context) {
+        if (tagConfig == null) {
+            Context appContext = context.getApplicationContext();
+            tagConfig = new Preload<>("tag_config", () -> loadTagConfig(appContext));
+        }
+        return tagConfig;
+    }
+
+    private static synchronized Preload<BluetoothGattService[]> gattServices() {
+        if (gattServices == null) {
+            gattServices = new Preload<>("gatt_services", InformuMuTagProfile::createServices);
+        }
+        return gattServices;
+    }
+
+    private static TagConfigStore loadTagConfig(Context appContext) {
+        TagConfigStore store = new TagConfigStore(new File(appContext.getFilesDir(), TAG_CONFIG_FILE),
+                BeaconApp::syncDirectory);
+        switch (store.load()) {
+            case MISSING:
+                Timber.d("No %s, migrating preferences", TAG_CONFIG_FILE);
+                new PrefStorage(appContext).migrateTo(store);
+                break;
+            case RESTORED_BACKUP:
+                Timber.w("Damaged %s, restored the previous configuration", TAG_CONFIG_FILE);
+                break;
+            case INVALID:
+                // the preferences predate the file and would bring back stale values
+                Timber.w("Damaged %s and no backup, using defaults", TAG_CONFIG_FILE);
+                break;
+            default:
+                break;
+        }
+        return store;
+    }
+
+    private static void syncDirectory(File directory) throws IOException {
+        try {
+            FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
     }
 }
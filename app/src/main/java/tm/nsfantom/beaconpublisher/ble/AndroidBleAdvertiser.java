@@ -0,0 +1,334 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.support.annotation.RequiresApi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+
+/**
+ * {@link BleAdvertiser} on top of {@link BluetoothLeAdvertiser}. The platform data built for an
+ * {@link Advertisement} is cached for as long as the advertisement is referenced, and settings
+ * are cached per combination of mode, power, connectability and timeout, so restarting a
+ * precomputed advertisement allocates nothing.
+ * <p>
+ * From Android O on every advertiser runs as a legacy advertising set, so
+ * {@link #updateAdvertising} can swap the payload of a running set without taking it off air.
+ * Changes of the advertising parameters, and older releases, fall back to stop and start.
+ * {@code AdvertiseData} keeps payload arrays by reference, so updating an advertisement whose
+ * frame was patched in place, like Eddystone TLM, sends the new bytes without rebuilding anything.
+ * <p>
+ * Records the time from starting to {@code onStartSuccess} in {@code adv.start_us} and counts
+ * failures by error code in {@code adv.failure.<code>}. Updates are counted in
+ * {@code adv.update.in_place} and {@code adv.update.restart}; {@code adv.update_us} is the time
+ * until the new payload is on air and {@code adv.update.gap_us} the time off air, which is 0 for
+ * in-place updates.
+ */
+public final class AndroidBleAdvertiser implements BleAdvertiser {
+
+    /**
+     * Advertising sets take their duration in units of 10 ms, at most 65535.
+     */
+    private static final int MAX_SET_DURATION = 0xFFFF;
+
+    /**
+     * 0000xxxx-0000-1000-8000-00805F9B34FB, the base 16-bit service UUIDs are shorthand for.
+     */
+    private static final long BLUETOOTH_BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BLUETOOTH_BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private final BluetoothLeAdvertiser advertiser;
+    private final boolean useSets = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    private final Map<Advertisement, AdvertiseData> dataCache = new WeakHashMap<>();
+    /**
+     * AdvertiseSettings, or AdvertisingSetParameters when running advertising sets, by settings key.
+     */
+    private final Map<Long, Object> settingsCache = new HashMap<>();
+    private final ConcurrentMap<Callback, AdvertiseCallback> callbacks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Callback, SetCallback> setCallbacks = new ConcurrentHashMap<>();
+    private final MetricsRegistry metrics;
+    private final MetricsRegistry.Histogram startMicros;
+    private final MetricsRegistry.Histogram updateMicros;
+    private final MetricsRegistry.Histogram gapMicros;
+    private final MetricsRegistry.Counter inPlaceUpdates;
+    private final MetricsRegistry.Counter restartUpdates;
+
+    public AndroidBleAdvertiser(BluetoothLeAdvertiser advertiser) {
+        this(advertiser, MetricsRegistry.getDefault());
+    }
+
+    public AndroidBleAdvertiser(BluetoothLeAdvertiser advertiser, MetricsRegistry metrics) {
+        this.advertiser = advertiser;
+        this.metrics = metrics;
+        this.startMicros = metrics.histogram("adv.start_us");
+        this.updateMicros = metrics.histogram("adv.update_us");
+        this.gapMicros = metrics.histogram("adv.update.gap_us");
+        this.inPlaceUpdates = metrics.counter("adv.update.in_place");
+        this.restartUpdates = metrics.counter("adv.update.restart");
+    }
+
+    @Override
+    public void startAdvertising(Advertisement advertisement, Callback callback) {
+        start(advertisement, callback, System.nanoTime(), 0);
+    }
+
+    @Override
+    public boolean updateAdvertising(Advertisement advertisement, Callback callback) {
+        long started = System.nanoTime();
+        if (useSets) {
+            SetCallback setCallback = setCallbacks.get(callback);
+            if (setCallback == null) return false;
+            if (setCallback.setData(advertisement, started)) {
+                inPlaceUpdates.inc();
+                return true;
+            }
+        } else if (!callbacks.containsKey(callback)) {
+            return false;
+        }
+        restartUpdates.inc();
+        stopAdvertising(callback);
+        start(advertisement, callback, started, started);
+        return true;
+    }
+
+    @Override
+    public void stopAdvertising(Callback callback) {
+        if (useSets) {
+            SetCallback setCallback = setCallbacks.remove(callback);
+            if (setCallback != null) advertiser.stopAdvertisingSet(setCallback);
+        } else {
+            AdvertiseCallback platformCallback = callbacks.remove(callback);
+            if (platformCallback != null) advertiser.stopAdvertising(platformCallback);
+        }
+    }
+
+    /**
+     * @param offAirSince when the previous advertisement of an update was stopped, or 0
+     */
+    private void start(Advertisement advertisement, Callback callback, long started, long offAirSince) {
+        AdvertiseData data = data(advertisement);
+        if (useSets) {
+            SetCallback setCallback = new SetCallback(callback, advertisement, started, offAirSince);
+            SetCallback previous = setCallbacks.put(callback, setCallback);
+            if (previous != null) advertiser.stopAdvertisingSet(previous);
+            advertiser.startAdvertisingSet(parameters(advertisement), data, null, null, null,
+                    Math.min(advertisement.timeoutMillis / 10, MAX_SET_DURATION), 0, setCallback);
+        } else {
+            advertiser.startAdvertising(settings(advertisement), data,
+                    platformCallback(callback, advertisement, started, offAirSince));
+        }
+    }
+
+    private AdvertiseCallback platformCallback(Callback callback, Advertisement advertisement, long started,
+                                               long offAirSince) {
+        AdvertiseCallback platformCallback = new AdvertiseCallback() {
+            @Override
+            public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+                onStarted(advertisement, callback, started, offAirSince);
+            }
+
+            @Override
+            public void onStartFailure(int errorCode) {
+                metrics.counter("adv.failure." + errorCode).inc();
+                callbacks.remove(callback, this);
+                callback.onStartFailure(errorCode);
+            }
+        };
+        AdvertiseCallback previous = callbacks.put(callback, platformCallback);
+        if (previous != null) advertiser.stopAdvertising(previous);
+        return platformCallback;
+    }
+
+    private void onStarted(Advertisement advertisement, Callback callback, long started, long offAirSince) {
+        if (offAirSince == 0) {
+            startMicros.recordMicrosSince(started);
+        } else {
+            updateMicros.recordMicrosSince(started);
+            gapMicros.recordMicrosSince(offAirSince);
+        }
+        callback.onStartSuccess(advertisement);
+    }
+
+    private AdvertiseData data(Advertisement advertisement) {
+        synchronized (dataCache) {
+            AdvertiseData data = dataCache.get(advertisement);
+            if (data == null) {
+                AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+                if (advertisement.manufacturerData != null) {
+                    dataBuilder.addManufacturerData(advertisement.manufacturerId, advertisement.manufacturerData);
+                }
+                if (advertisement.serviceData != null) {
+                    ParcelUuid serviceUuid = serviceUuid(advertisement.serviceUuid);
+                    dataBuilder.addServiceUuid(serviceUuid);
+                    dataBuilder.addServiceData(serviceUuid, advertisement.serviceData);
+                }
+                data = dataBuilder.build();
+                dataCache.put(advertisement, data);
+            }
+            return data;
+        }
+    }
+
+    private static ParcelUuid serviceUuid(int uuid16) {
+        return new ParcelUuid(new UUID(BLUETOOTH_BASE_UUID_MSB | (long) uuid16 << 32, BLUETOOTH_BASE_UUID_LSB));
+    }
+
+    private AdvertiseSettings settings(Advertisement advertisement) {
+        synchronized (settingsCache) {
+            Long key = settingsKey(advertisement);
+            AdvertiseSettings settings = (AdvertiseSettings) settingsCache.get(key);
+            if (settings == null) {
+                settings = new AdvertiseSettings.Builder()
+                        .setAdvertiseMode(advertisement.mode)
+                        .setTxPowerLevel(advertisement.txPowerLevel)
+                        .setConnectable(advertisement.connectable)
+                        .setTimeout(advertisement.timeoutMillis)
+                        .build();
+                settingsCache.put(key, settings);
+            }
+            return settings;
+        }
+    }
+
+    /**
+     * Legacy advertising set parameters equivalent to the mode and power of {@code advertisement}.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    private AdvertisingSetParameters parameters(Advertisement advertisement) {
+        synchronized (settingsCache) {
+            Long key = settingsKey(advertisement);
+            AdvertisingSetParameters parameters = (AdvertisingSetParameters) settingsCache.get(key);
+            if (parameters == null) {
+                parameters = new AdvertisingSetParameters.Builder()
+                        .setLegacyMode(true)
+                        .setConnectable(advertisement.connectable)
+                        .setScannable(advertisement.connectable)
+                        .setInterval(setInterval(advertisement.mode))
+                        .setTxPowerLevel(setTxPower(advertisement.txPowerLevel))
+                        .build();
+                settingsCache.put(key, parameters);
+            }
+            return parameters;
+        }
+    }
+
+    /**
+     * Everything but the payload; two advertisements with the same key can share settings, and
+     * a running set can switch between them by replacing its data.
+     */
+    private static Long settingsKey(Advertisement advertisement) {
+        return ((long) advertisement.timeoutMillis << 8) | (advertisement.connectable ? 0x80 : 0)
+                | (advertisement.mode << 4) | advertisement.txPowerLevel;
+    }
+
+    private static int setInterval(int mode) {
+        switch (mode) {
+            case Advertisement.MODE_LOW_LATENCY:
+                return AdvertisingSetParameters.INTERVAL_LOW;
+            case Advertisement.MODE_BALANCED:
+                return AdvertisingSetParameters.INTERVAL_MEDIUM;
+            default:
+                return AdvertisingSetParameters.INTERVAL_HIGH;
+        }
+    }
+
+    private static int setTxPower(int txPowerLevel) {
+        switch (txPowerLevel) {
+            case Advertisement.TX_POWER_ULTRA_LOW:
+                return AdvertisingSetParameters.TX_POWER_ULTRA_LOW;
+            case Advertisement.TX_POWER_LOW:
+                return AdvertisingSetParameters.TX_POWER_LOW;
+            case Advertisement.TX_POWER_HIGH:
+                return AdvertisingSetParameters.TX_POWER_HIGH;
+            default:
+                return AdvertisingSetParameters.TX_POWER_MEDIUM;
+        }
+    }
+
+    /**
+     * One running advertising set. Status codes of the set callbacks match the
+     * {@code AdvertiseCallback} error codes.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    private final class SetCallback extends AdvertisingSetCallback {
+        private final Callback callback;
+        private final long started;
+        private final long offAirSince;
+        private Advertisement advertisement;
+        private AdvertisingSet set;
+        private Advertisement pending;
+        private long pendingSince;
+
+        SetCallback(Callback callback, Advertisement advertisement, long started, long offAirSince) {
+            this.callback = callback;
+            this.advertisement = advertisement;
+            this.started = started;
+            this.offAirSince = offAirSince;
+        }
+
+        /**
+         * Replaces the payload of the running set if only the payload differs.
+         *
+         * @return false if the set has to be restarted instead
+         */
+        synchronized boolean setData(Advertisement next, long since) {
+            if (set == null || pending != null || !settingsKey(next).equals(settingsKey(advertisement))) return false;
+            pending = next;
+            pendingSince = since;
+            set.setAdvertisingData(data(next));
+            return true;
+        }
+
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            Advertisement current;
+            synchronized (this) {
+                if (status == ADVERTISE_SUCCESS) set = advertisingSet;
+                current = advertisement;
+            }
+            if (status == ADVERTISE_SUCCESS) {
+                onStarted(current, callback, started, offAirSince);
+            } else {
+                metrics.counter("adv.failure." + status).inc();
+                setCallbacks.remove(callback, this);
+                callback.onStartFailure(status);
+            }
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            Advertisement next;
+            long since;
+            synchronized (this) {
+                next = pending;
+                since = pendingSince;
+                pending = null;
+                if (next == null) return;
+                if (status == ADVERTISE_SUCCESS) advertisement = next;
+            }
+            if (status == ADVERTISE_SUCCESS) {
+                updateMicros.recordMicrosSince(since);
+                gapMicros.record(0);
+                callback.onStartSuccess(next);
+            } else {
+                // the previous payload stays on air
+                metrics.counter("adv.failure." + status).inc();
+                callback.onStartFailure(status);
+            }
+        }
+    }
+}
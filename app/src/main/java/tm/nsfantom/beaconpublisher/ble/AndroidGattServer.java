@@ -0,0 +1,194 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import timber.log.Timber;
+
+/**
+ * {@link GattServer} on top of {@link BluetoothGattServer}. Translates the platform callback into
+ * {@link GattServerListener} calls and keeps one {@link BleDevice} wrapper per connected address.
+ */
+public final class AndroidGattServer implements GattServer {
+
+    private final ConcurrentMap<String, AndroidDevice> devices = new ConcurrentHashMap<>();
+    private final Map<UUID, BluetoothGattCharacteristic> characteristics = new ConcurrentHashMap<>();
+    private volatile BluetoothGattServer gattServer;
+
+    private AndroidGattServer() {
+    }
+
+    /**
+     * Opens a GATT server without services; add them with {@link #addServices} once whatever
+     * answers the listener's requests is attached to the server. Returns null if the stack refused
+     * to open one.
+     */
+    public static AndroidGattServer open(Context context, BluetoothManager manager, GattServerListener listener) {
+        AndroidGattServer server = new AndroidGattServer();
+        BluetoothGattServer gattServer = manager.openGattServer(context, server.new Callback(listener));
+        if (gattServer == null) return null;
+        server.gattServer = gattServer;
+        return server;
+    }
+
+    /**
+     * Publishes {@code services}; centrals can discover and use them from now on.
+     */
+    public void addServices(BluetoothGattService... services) {
+        BluetoothGattServer server = gattServer;
+        if (server == null) return;
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                characteristics.put(characteristic.getUuid(), characteristic);
+            }
+            server.addService(service);
+        }
+    }
+
+    @Override
+    public boolean sendResponse(BleDevice device, int requestId, int status, int offset, byte[] value) {
+        BluetoothGattServer server = gattServer;
+        return server != null && server.sendResponse(((AndroidDevice) device).device, requestId, status, offset, value);
+    }
+
+    /**
+     * The characteristic object is shared between devices, so its value is set and sent under its
+     * own lock.
+     */
+    @Override
+    public boolean notifyCharacteristicChanged(BleDevice device, UUID characteristic, byte[] value, boolean confirm) {
+        BluetoothGattServer server = gattServer;
+        BluetoothGattCharacteristic gattCharacteristic = characteristics.get(characteristic);
+        if (server == null || gattCharacteristic == null) return false;
+        synchronized (gattCharacteristic) {
+            gattCharacteristic.setValue(value);
+            return server.notifyCharacteristicChanged(((AndroidDevice) device).device, gattCharacteristic, confirm);
+        }
+    }
+
+    @Override
+    public void cancelConnection(BleDevice device) {
+        BluetoothGattServer server = gattServer;
+        if (server != null) server.cancelConnection(((AndroidDevice) device).device);
+    }
+
+    @Override
+    public void close() {
+        BluetoothGattServer server = gattServer;
+        gattServer = null;
+        if (server != null) {
+            server.clearServices();
+            server.close();
+        }
+        devices.clear();
+    }
+
+    private AndroidDevice wrap(BluetoothDevice device) {
+        AndroidDevice wrapper = devices.get(device.getAddress());
+        if (wrapper == null) {
+            wrapper = new AndroidDevice(device);
+            AndroidDevice existing = devices.putIfAbsent(device.getAddress(), wrapper);
+            if (existing != null) wrapper = existing;
+        }
+        return wrapper;
+    }
+
+    private static final class AndroidDevice implements BleDevice {
+        final BluetoothDevice device;
+
+        AndroidDevice(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public String getAddress() {
+            return device.getAddress();
+        }
+
+        @Override
+        public String getName() {
+            return device.getName();
+        }
+    }
+
+    private final class Callback extends BluetoothGattServerCallback {
+
+        private final GattServerListener listener;
+
+        Callback(GattServerListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            Timber.d("onConnectionStateChange: " + device.getName() + " status=" + status + "->" + newState);
+            BleDevice wrapper = wrap(device);
+            if (newState == GattStatus.STATE_DISCONNECTED) devices.remove(device.getAddress());
+            listener.onConnectionStateChange(wrapper, status, newState);
+        }
+
+        @Override
+        public void onServiceAdded(int status, BluetoothGattService service) {
+            Timber.d("onServiceAdded: status=%d service = %s", status, service.getUuid());
+            listener.onServiceAdded(status, service.getUuid());
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            listener.onCharacteristicReadRequest(wrap(device), requestId, offset, characteristic.getUuid());
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                                 BluetoothGattCharacteristic characteristic, boolean preparedWrite,
+                                                 boolean responseNeeded, int offset, byte[] value) {
+            listener.onCharacteristicWriteRequest(wrap(device), requestId, characteristic.getUuid(),
+                    preparedWrite, responseNeeded, offset, value);
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattDescriptor descriptor) {
+            listener.onDescriptorReadRequest(wrap(device), requestId, offset,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid());
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            listener.onDescriptorWriteRequest(wrap(device), requestId, descriptor.getCharacteristic().getUuid(),
+                    descriptor.getUuid(), preparedWrite, responseNeeded, offset, value);
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            listener.onExecuteWrite(wrap(device), requestId, execute);
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            listener.onNotificationSent(wrap(device), status);
+        }
+
+        /**
+         * Only called from API 22 on; below that every connection keeps the default MTU.
+         */
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            Timber.d("onMtuChanged: %s %d", device.getAddress(), mtu);
+            listener.onMtuChanged(wrap(device), mtu);
+        }
+    }
+}
@@ -5,26 +5,34 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.widget.Toast;
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 import tm.nsfantom.beaconpublisher.R;
+import tm.nsfantom.beaconpublisher.ble.AndroidBleAdvertiser;
+import tm.nsfantom.beaconpublisher.ble.Advertisement;
+import tm.nsfantom.beaconpublisher.ble.BleAdvertiser;
 import tm.nsfantom.beaconpublisher.ui.MainActivity;
 import tm.nsfantom.beaconpublisher.util.Constants;
-import tm.nsfantom.beaconpublisher.util.PrefStorage;
-import tm.nsfantom.beaconpublisher.util.UuidUtil;
+import tm.nsfantom.beaconpublisher.util.EddystoneFrameEncoder;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
 
 /**
  * Manages BLE Advertising independent of the main app.
@@ -49,26 +57,144 @@ public class AdvertiserService extends Service {
 
     public static final int ADVERTISING_TIMED_OUT = 6;
 
-    private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
+    /**
+     * Optional String[] extra of {@code uuid:major:minor:txPower} identities to rotate through.
+     */
+    public static final String EXTRA_IDENTITIES = "identities";
+
+    /**
+     * Optional long extra with the time each window of identities stays on air.
+     */
+    public static final String EXTRA_DWELL_MILLIS = "dwellMillis";
+
+    private static final long DEFAULT_DWELL_MILLIS = 2000;
+
+    public static final int FRAME_BEACON = 0;
+    public static final int FRAME_EDDYSTONE_UID = 1;
+    public static final int FRAME_EDDYSTONE_URL = 2;
+    public static final int FRAME_EDDYSTONE_TLM = 3;
+
+    /**
+     * Optional int[] extra with the relative share of each frame type, indexed by the
+     * {@code FRAME_} constants, e.g. {@code {3, 1, 1, 1}}. Defaults to beacon frames only.
+     */
+    public static final String EXTRA_FRAME_WEIGHTS = "frameWeights";
+
+    /**
+     * Optional String extra with the URL of Eddystone URL frames; without it URL frames are off.
+     */
+    public static final String EXTRA_EDDYSTONE_URL = "eddystoneUrl";
+
+    /**
+     * Optional long extra with the time each slot shows a frame before the next type takes over.
+     */
+    public static final String EXTRA_FRAME_MILLIS = "frameMillis";
+
+    private static final long DEFAULT_FRAME_MILLIS = 1000;
+
+    /**
+     * Metrics snapshot in the app's files directory, rewritten every {@link #SNAPSHOT_PERIOD_SECONDS}.
+     */
+    public static final String METRICS_SNAPSHOT_FILE = "metrics.txt";
+
+    private static final long SNAPSHOT_PERIOD_SECONDS = 60;
 
-    private AdvertiseCallback mAdvertiseCallback;
+    /**
+     * Upper bound for concurrent advertisers; the stack tells us with
+     * ADVERTISE_FAILED_TOO_MANY_ADVERTISERS if it supports fewer.
+     */
+    private static final int MAX_ADVERTISER_SLOTS = 4;
+
+    /**
+     * Identity table of the running service, published for on-air statistics.
+     */
+    private static volatile RotationScheduler rotation;
+
+    private BleAdvertiser mBluetoothLeAdvertiser;
+
+    private int mSlotCount = 1;
+
+    private SampleAdvertiseCallback[] mAdvertiseCallbacks;
+
+    /**
+     * Identity index currently advertised by each slot, -1 if the slot is idle.
+     */
+    private int[] mSlotIdentity;
+
+    private Advertisement[] mIdentityAdvertisements;
+
+    private List<BeaconIdentity> mIdentities;
+
+    /**
+     * Eddystone UID advertisement of each identity, null unless UID frames are scheduled.
+     */
+    private Advertisement[] mUidAdvertisements;
+
+    private Advertisement mUrlAdvertisement;
+
+    /**
+     * Carries the frame of {@link #mTlmEncoder}, which is patched before every TLM turn.
+     */
+    private Advertisement mTlmAdvertisement;
+
+    private final EddystoneFrameEncoder mTlmEncoder = EddystoneFrameEncoder.tlm();
+
+    private FrameScheduler mFrameScheduler;
+
+    private long mFrameMillis;
+
+    /**
+     * Frame type and advertisement currently shown by each slot.
+     */
+    private int[] mSlotFrame;
+
+    private Advertisement[] mSlotAdvertisement;
+
+    /**
+     * Advertising events since the service started, in thousandths, estimated from the time
+     * each slot spent on air and the nominal interval of the advertise mode.
+     */
+    private long mAdvertisingEventsMilli;
+
+    private long mEventsCountedAtMillis;
+
+    /**
+     * Set when the identity table was replaced, so every slot is updated by the next window even
+     * if its identity index did not change.
+     */
+    private boolean mRefreshSlots;
 
     private Handler mHandler;
 
     private Runnable timeoutRunnable;
 
+    private final Runnable rotateRunnable = this::rotateWindow;
+
+    private final Runnable frameRunnable = this::nextFrames;
+
+    /**
+     * Non-connectable beacon: only battery and screen state move the setting.
+     */
+    private final AdvertisePolicy mPolicy = new AdvertisePolicy(
+            new AdvertisePolicy.Setting(Advertisement.MODE_LOW_POWER, Advertisement.TX_POWER_MEDIUM));
+
+    private final PowerStateReceiver mPowerStateReceiver = new PowerStateReceiver(mPolicy, this::applyPolicy);
+
+    private ScheduledExecutorService mSnapshotExecutor;
+
     /**
      * Length of time to allow advertising before automatically shutting off. (10 minutes)
      */
     private long TIMEOUT = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
 
-    PrefStorage prefStorage;
-
     @Override
     public void onCreate() {
         running = true;
-        prefStorage = new PrefStorage(getApplicationContext());
+        mHandler = new Handler();
         initialize();
+        mPowerStateReceiver.register(this);
+        startSnapshots();
+        configure(defaultIdentities(), DEFAULT_DWELL_MILLIS, new FrameScheduler(1), null, DEFAULT_FRAME_MILLIS);
         startAdvertising();
         setTimeout();
         super.onCreate();
@@ -82,12 +208,110 @@ public class AdvertiserService extends Service {
          * is critical.
          */
         running = false;
+        mPowerStateReceiver.unregister(this);
         stopAdvertising();
         mHandler.removeCallbacks(timeoutRunnable);
+        mSnapshotExecutor.execute(this::writeSnapshot);
+        mSnapshotExecutor.shutdown();
         stopForeground(true);
         super.onDestroy();
     }
 
+    /**
+     * Replaces the identity table and frame mix if the start intent carries
+     * {@link #EXTRA_IDENTITIES} or {@link #EXTRA_FRAME_WEIGHTS}. A running service keeps its
+     * notification and callbacks and swaps the payloads in place.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && (intent.hasExtra(EXTRA_IDENTITIES) || intent.hasExtra(EXTRA_FRAME_WEIGHTS))) {
+            List<BeaconIdentity> identities = mIdentities;
+            FrameScheduler frames;
+            byte[] urlFrame = null;
+            try {
+                if (intent.hasExtra(EXTRA_IDENTITIES)) {
+                    identities = new ArrayList<>();
+                    for (String value : intent.getStringArrayExtra(EXTRA_IDENTITIES)) {
+                        identities.add(BeaconIdentity.parse(value));
+                    }
+                }
+                String url = intent.getStringExtra(EXTRA_EDDYSTONE_URL);
+                if (url != null && !identities.isEmpty()) {
+                    urlFrame = EddystoneFrameEncoder.url(url,
+                            EddystoneFrameEncoder.rangingPower(identities.get(0).txPower)).frame();
+                }
+                frames = frameScheduler(intent.getIntArrayExtra(EXTRA_FRAME_WEIGHTS), urlFrame != null);
+            } catch (IllegalArgumentException e) {
+                Timber.w(e, "Ignoring invalid identity table or frame weights");
+                return super.onStartCommand(intent, flags, startId);
+            }
+            if (!identities.isEmpty()) {
+                mHandler.removeCallbacks(rotateRunnable);
+                closeRotation();
+                configure(identities, intent.getLongExtra(EXTRA_DWELL_MILLIS, DEFAULT_DWELL_MILLIS), frames,
+                        urlFrame, intent.getLongExtra(EXTRA_FRAME_MILLIS, DEFAULT_FRAME_MILLIS));
+                mRefreshSlots = true;
+                rotateWindow();
+            }
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    /**
+     * Beacon frames only without weights; URL frames are dropped when there is no URL.
+     */
+    private static FrameScheduler frameScheduler(int[] weights, boolean hasUrl) {
+        if (weights == null) return new FrameScheduler(1);
+        int[] enabled = new int[FRAME_EDDYSTONE_TLM + 1];
+        System.arraycopy(weights, 0, enabled, 0, Math.min(weights.length, enabled.length));
+        if (!hasUrl) enabled[FRAME_EDDYSTONE_URL] = 0;
+        return new FrameScheduler(enabled);
+    }
+
+    /**
+     * Returns per-identity on-air statistics of the running service, or an empty array.
+     */
+    public static RotationScheduler.Stats[] getOnAirStats() {
+        RotationScheduler scheduler = rotation;
+        return scheduler == null ? new RotationScheduler.Stats[0] : scheduler.stats(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Prints the metrics and on-air statistics, for {@code adb shell dumpsys activity service
+     * tm.nsfantom.beaconpublisher/.service.AdvertiserService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("advertise " + mPolicy.getCurrent() + ", " + mPolicy.getChanges() + " policy changes");
+        FrameScheduler frames = mFrameScheduler;
+        if (frames != null) {
+            writer.println("frames beacon=" + frames.picks(FRAME_BEACON) + " uid=" + frames.picks(FRAME_EDDYSTONE_UID)
+                    + " url=" + frames.picks(FRAME_EDDYSTONE_URL) + " tlm=" + frames.picks(FRAME_EDDYSTONE_TLM));
+        }
+        for (RotationScheduler.Stats stats : getOnAirStats()) {
+            writer.println("onAir " + stats);
+        }
+        MetricsRegistry.getDefault().dump(writer);
+    }
+
+    /**
+     * Writes a metrics snapshot every minute on a background thread, so the numbers survive the
+     * process.
+     */
+    private void startSnapshots() {
+        mSnapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+        mSnapshotExecutor.scheduleWithFixedDelay(this::writeSnapshot,
+                SNAPSHOT_PERIOD_SECONDS, SNAPSHOT_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void writeSnapshot() {
+        try {
+            MetricsRegistry.getDefault().writeSnapshot(new File(getFilesDir(), METRICS_SNAPSHOT_FILE));
+        } catch (IOException e) {
+            Timber.w(e, "Could not write metrics snapshot");
+        }
+    }
+
     /**
      * Required for extending service, but this will be a Started Service only, so no need for
      * binding.
@@ -106,7 +330,8 @@ public class AdvertiserService extends Service {
             if (mBluetoothManager != null) {
                 BluetoothAdapter mBluetoothAdapter = mBluetoothManager.getAdapter();
                 if (mBluetoothAdapter != null) {
-                    mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+                    mBluetoothLeAdvertiser = new AndroidBleAdvertiser(mBluetoothAdapter.getBluetoothLeAdvertiser());
+                    mSlotCount = mBluetoothAdapter.isMultipleAdvertisementSupported() ? MAX_ADVERTISER_SLOTS : 1;
                 } else {
                     Toast.makeText(this, getString(R.string.bt_null), Toast.LENGTH_LONG).show();
                 }
@@ -122,7 +347,6 @@ public class AdvertiserService extends Service {
      * set amount of time.
      */
     private void setTimeout() {
-        mHandler = new Handler();
         timeoutRunnable = () -> {
             Timber.d("AdvertiserService has reached timeout of " + TIMEOUT + " milliseconds, stopping advertising.");
             sendFailureIntent(ADVERTISING_TIMED_OUT);
@@ -139,16 +363,192 @@ public class AdvertiserService extends Service {
 
         Timber.d("Service: Starting Advertising");
 
-        if (mAdvertiseCallback == null) {
-            AdvertiseSettings settings = buildAdvertiseSettings();
-            AdvertiseData data = buildAdvertiseData();
-            mAdvertiseCallback = new SampleAdvertiseCallback();
+        if (mAdvertiseCallbacks == null) {
+            mAdvertiseCallbacks = new SampleAdvertiseCallback[mSlotCount];
+            mSlotIdentity = new int[mSlotCount];
+            mSlotFrame = new int[mSlotCount];
+            mSlotAdvertisement = new Advertisement[mSlotCount];
+            mEventsCountedAtMillis = SystemClock.elapsedRealtime();
+            for (int slot = 0; slot < mSlotCount; slot++) {
+                mAdvertiseCallbacks[slot] = new SampleAdvertiseCallback(slot);
+                mSlotIdentity[slot] = -1;
+            }
+            rotateWindow();
+        }
+    }
+
+    /**
+     * Builds the identity table and precomputes the advertisement of every identity and scheduled
+     * frame type, so rotating between windows and frame types never encodes a frame.
+     *
+     * @param urlFrame Eddystone URL frame, null if URL frames are not scheduled
+     */
+    private void configure(List<BeaconIdentity> identities, long dwellMillis, FrameScheduler frames,
+                           byte[] urlFrame, long frameMillis) {
+        AdvertisePolicy.Setting setting = mPolicy.getCurrent();
+        mIdentities = identities;
+        mIdentityAdvertisements = new Advertisement[identities.size()];
+        mUidAdvertisements = frames.weight(FRAME_EDDYSTONE_UID) > 0 ? new Advertisement[identities.size()] : null;
+        for (int i = 0; i < mIdentityAdvertisements.length; i++) {
+            BeaconIdentity identity = identities.get(i);
+            mIdentityAdvertisements[i] = setting.apply(buildAdvertisement(identity));
+            if (mUidAdvertisements != null) {
+                mUidAdvertisements[i] = setting.apply(buildEddystoneAdvertisement(EddystoneFrameEncoder
+                        .uid(identity.uuid, identity.major, identity.minor, identity.txPower).frame()));
+            }
+        }
+        mUrlAdvertisement = urlFrame == null ? null : setting.apply(buildEddystoneAdvertisement(urlFrame));
+        mTlmAdvertisement = setting.apply(buildEddystoneAdvertisement(mTlmEncoder.frame()));
+        mFrameScheduler = frames;
+        mFrameMillis = frameMillis;
+        rotation = new RotationScheduler(identities, mSlotCount, dwellMillis);
+        Timber.d("Service: %d identities, %d slots, dwell %d ms", identities.size(), mSlotCount, dwellMillis);
+
+        mHandler.removeCallbacks(frameRunnable);
+        if (frames.interleaves() || frames.weight(FRAME_EDDYSTONE_TLM) > 0) {
+            mHandler.postDelayed(frameRunnable, frameMillis);
+        }
+    }
+
+    /**
+     * Re-advertises every busy slot if the policy picked a different mode or power level. The
+     * rotation itself is left alone.
+     */
+    private void applyPolicy() {
+        if (!mPolicy.update(System.nanoTime()) || mIdentityAdvertisements == null) return;
+        countAdvertisingEvents(SystemClock.elapsedRealtime());
+        AdvertisePolicy.Setting setting = mPolicy.getCurrent();
+        Timber.d("Service: advertising with %s", setting);
+        for (int i = 0; i < mIdentityAdvertisements.length; i++) {
+            mIdentityAdvertisements[i] = setting.apply(mIdentityAdvertisements[i]);
+            if (mUidAdvertisements != null) mUidAdvertisements[i] = setting.apply(mUidAdvertisements[i]);
+        }
+        if (mUrlAdvertisement != null) mUrlAdvertisement = setting.apply(mUrlAdvertisement);
+        mTlmAdvertisement = setting.apply(mTlmAdvertisement);
+        if (mBluetoothLeAdvertiser == null || mAdvertiseCallbacks == null) return;
+        for (int slot = 0; slot < mSlotIdentity.length; slot++) {
+            int identity = mSlotIdentity[slot];
+            if (identity >= 0) advertise(slot, identity);
+        }
+    }
+
+    private static List<BeaconIdentity> defaultIdentities() {
+        return Collections.singletonList(
+                new BeaconIdentity(UUID.fromString(Constants.DEVICEUUID), 0x0009, 0x0006, (byte) 0xB5));
+    }
+
+    /**
+     * Puts the next window of identities on air. Slots whose identity does not change keep
+     * advertising untouched; busy slots get the precomputed data of their new identity in place
+     * and idle slots are started.
+     */
+    private void rotateWindow() {
+        RotationScheduler scheduler = rotation;
+        if (mBluetoothLeAdvertiser == null || mAdvertiseCallbacks == null || scheduler == null) return;
+
+        int[] onAir = scheduler.rotate(SystemClock.elapsedRealtime());
+        boolean refresh = mRefreshSlots;
+        mRefreshSlots = false;
+        for (int slot = 0; slot < mSlotIdentity.length; slot++) {
+            int identity = slot < onAir.length ? onAir[slot] : -1;
+            if (mSlotIdentity[slot] == identity && !refresh) continue;
+            if (identity < 0) {
+                if (mSlotIdentity[slot] >= 0) mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallbacks[slot]);
+                mSlotIdentity[slot] = -1;
+                mSlotAdvertisement[slot] = null;
+            } else {
+                advertise(slot, identity);
+            }
+        }
+        if (scheduler.rotates()) {
+            mHandler.postDelayed(rotateRunnable, scheduler.dwellMillis());
+        }
+    }
+
+    /**
+     * Gives every busy slot its next frame type and schedules the next turn.
+     */
+    private void nextFrames() {
+        if (mBluetoothLeAdvertiser == null || mAdvertiseCallbacks == null) return;
+        for (int slot = 0; slot < mSlotIdentity.length; slot++) {
+            if (mSlotIdentity[slot] < 0) continue;
+            mSlotFrame[slot] = mFrameScheduler.next();
+            advertise(slot, mSlotIdentity[slot]);
+        }
+        mHandler.postDelayed(frameRunnable, mFrameMillis);
+    }
+
+    /**
+     * Puts {@code identity} on air in {@code slot} with the slot's frame type, updating the
+     * running advertisement of a busy slot instead of restarting it. A slot that starts, or whose
+     * frame type is no longer scheduled, takes the next type from {@link #mFrameScheduler}.
+     */
+    private void advertise(int slot, int identity) {
+        boolean busy = mSlotIdentity[slot] >= 0;
+        mSlotIdentity[slot] = identity;
+        if (!busy || mFrameScheduler.weight(mSlotFrame[slot]) == 0) mSlotFrame[slot] = mFrameScheduler.next();
+        int frame = mSlotFrame[slot];
+        Advertisement advertisement = frameAdvertisement(frame, identity);
+        // telemetry changes in place, everything else is unchanged if it is the same instance
+        if (busy && advertisement == mSlotAdvertisement[slot] && frame != FRAME_EDDYSTONE_TLM) return;
+        mSlotAdvertisement[slot] = advertisement;
+        if (!busy || !mBluetoothLeAdvertiser.updateAdvertising(advertisement, mAdvertiseCallbacks[slot])) {
+            mBluetoothLeAdvertiser.startAdvertising(advertisement, mAdvertiseCallbacks[slot]);
+        }
+    }
+
+    private Advertisement frameAdvertisement(int frame, int identity) {
+        switch (frame) {
+            case FRAME_EDDYSTONE_UID:
+                return mUidAdvertisements[identity];
+            case FRAME_EDDYSTONE_URL:
+                return mUrlAdvertisement;
+            case FRAME_EDDYSTONE_TLM:
+                refreshTelemetry();
+                return mTlmAdvertisement;
+            default:
+                return mIdentityAdvertisements[identity];
+        }
+    }
+
+    /**
+     * Patches battery, temperature, advertising events and uptime into the TLM frame.
+     */
+    private void refreshTelemetry() {
+        long now = SystemClock.elapsedRealtime();
+        int tenthsCelsius = mPowerStateReceiver.getBatteryTenthsCelsius();
+        mTlmEncoder.encodeTelemetry(mPowerStateReceiver.getBatteryMillivolts(),
+                tenthsCelsius == Integer.MIN_VALUE ? EddystoneFrameEncoder.TEMPERATURE_UNKNOWN : tenthsCelsius * 256 / 10,
+                countAdvertisingEvents(now) / 1000, now);
+    }
 
-            if (mBluetoothLeAdvertiser != null) {
-                mBluetoothLeAdvertiser.startAdvertising(settings, data,
-                        mAdvertiseCallback);
+    /**
+     * Adds the events of the busy slots since the last count, at the current mode's interval.
+     *
+     * @return {@link #mAdvertisingEventsMilli}
+     */
+    private long countAdvertisingEvents(long now) {
+        int busy = 0;
+        if (mSlotIdentity != null) {
+            for (int identity : mSlotIdentity) {
+                if (identity >= 0) busy++;
             }
         }
+        mAdvertisingEventsMilli += busy * (now - mEventsCountedAtMillis) * 1000
+                / nominalIntervalMillis(mPolicy.getCurrent().mode);
+        mEventsCountedAtMillis = now;
+        return mAdvertisingEventsMilli;
+    }
+
+    private static long nominalIntervalMillis(int mode) {
+        switch (mode) {
+            case Advertisement.MODE_LOW_LATENCY:
+                return 100;
+            case Advertisement.MODE_BALANCED:
+                return 250;
+            default:
+                return 1000;
+        }
     }
 
     /**
@@ -174,16 +574,39 @@ public class AdvertiserService extends Service {
      */
     private void stopAdvertising() {
         Timber.d("Service: Stopping Advertising");
-        if (mBluetoothLeAdvertiser != null) {
-            mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
-            mAdvertiseCallback = null;
+        mHandler.removeCallbacks(rotateRunnable);
+        mHandler.removeCallbacks(frameRunnable);
+        if (mBluetoothLeAdvertiser != null && mAdvertiseCallbacks != null) {
+            for (int slot = 0; slot < mAdvertiseCallbacks.length; slot++) {
+                if (mSlotIdentity[slot] >= 0) {
+                    mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallbacks[slot]);
+                }
+            }
+        }
+        mAdvertiseCallbacks = null;
+        closeRotation();
+    }
+
+    /**
+     * Closes the current window of the identity table and logs its statistics.
+     */
+    private void closeRotation() {
+        RotationScheduler scheduler = rotation;
+        if (scheduler != null) {
+            long now = SystemClock.elapsedRealtime();
+            scheduler.stop(now);
+            for (RotationScheduler.Stats stats : scheduler.stats(now)) {
+                Timber.d("Service: %s", stats);
+            }
         }
     }
 
     /**
-     * Returns an AdvertiseData object which includes the Service UUID and Device Name.
+     * Returns an Advertisement which carries the identity's AltBeacon frame, using low power (to
+     * help preserve battery life) and no built-in timeout since this code uses its own timeout
+     * runnable. {@link #mPolicy} adjusts mode and power afterwards.
      */
-    private AdvertiseData buildAdvertiseData() {
+    private static Advertisement buildAdvertisement(BeaconIdentity identity) {
 
         /**
          * Note: There is a strict limit of 31 Bytes on packets sent over BLE Advertisements.
@@ -194,9 +617,6 @@ public class AdvertiserService extends Service {
          *  onStartFailure() method of an AdvertiseCallback implementation.
          */
 
-        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
-        dataBuilder.addServiceUuid(Constants.DEVICE_UUID);
-        dataBuilder.setIncludeTxPowerLevel(true);
 //        dataBuilder.addServiceUuid(Constants.Generic_Access_Service);
 //        dataBuilder.addServiceData(Constants.Device_Name, Constants.DeviceName.getBytes());
 //        dataBuilder.addServiceData(Constants.Firmware_Revision_String, "001".getBytes());
@@ -212,49 +632,61 @@ public class AdvertiserService extends Service {
 //        dataBuilder.addServiceUuid(Constants.Service_UUID);
 //        dataBuilder.setIncludeDeviceName(true);
 //        dataBuilder.addServiceUuid(Constants.Generic_Access_Service);
-        ByteBuffer mManufacturerData = ByteBuffer.allocate(24);
-        byte[] uuid = UuidUtil.asBytes(UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E"));
-        mManufacturerData.put(0, (byte) 0xBE); // Beacon Identifier
-        mManufacturerData.put(1, (byte) 0xAC); // Beacon Identifier
-        for (int i = 2; i <= 17; i++) {
-            mManufacturerData.put(i, uuid[i - 2]); // adding the UUID
-        }
-        mManufacturerData.put(18, (byte) 0x00); // first byte of Major
-        mManufacturerData.put(19, (byte) 0x09); // second byte of Major
-        mManufacturerData.put(20, (byte) 0x00); // first minor
-        mManufacturerData.put(21, (byte) 0x06); // second minor
-        mManufacturerData.put(22, (byte) 0xB5); // txPower
-//        dataBuilder.addManufacturerData(224, mManufacturerData.array()); // using google's company ID
         /* For example - this will cause advertising to fail (exceeds size limit) */
         //String failureData = "asdghkajsghalkxcjhfa;sghtalksjcfhalskfjhasldkjfhdskf";
         //dataBuilder.addServiceData(Constants.Service_UUID, failureData.getBytes());
 
-        return dataBuilder.build();
+        // The 24 byte frame plus the service UUID and tx power would exceed 31 bytes, so the
+        // frame is advertised on its own.
+        return new Advertisement.Builder()
+                .setMode(Advertisement.MODE_LOW_POWER)
+                .setTimeout(0)
+                .setTxPowerLevel(Advertisement.TX_POWER_MEDIUM)
+                .setConnectable(false)
+                .setManufacturerData(224, identity.frame()) // using google's company ID
+                .build();
     }
 
     /**
-     * Returns an AdvertiseSettings object set to use low power (to help preserve battery life)
-     * and disable the built-in timeout since this code uses its own timeout runnable.
+     * Returns a non-connectable Advertisement carrying an Eddystone frame, with the same defaults
+     * as {@link #buildAdvertisement(BeaconIdentity)}. The service UUID list and the service data
+     * of a 20 byte frame fill the 31 bytes exactly, so nothing else fits next to it.
      */
-    private AdvertiseSettings buildAdvertiseSettings() {
-        AdvertiseSettings.Builder settingsBuilder = new AdvertiseSettings.Builder();
-        settingsBuilder.setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER);
-        settingsBuilder.setTimeout(0);
-        settingsBuilder.setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM);
-        settingsBuilder.setConnectable(false);
-        return settingsBuilder.build();
+    private static Advertisement buildEddystoneAdvertisement(byte[] frame) {
+        return new Advertisement.Builder()
+                .setMode(Advertisement.MODE_LOW_POWER)
+                .setTimeout(0)
+                .setTxPowerLevel(Advertisement.TX_POWER_MEDIUM)
+                .setConnectable(false)
+                .setServiceData(EddystoneFrameEncoder.SERVICE_UUID, frame)
+                .build();
     }
 
     /**
      * Custom callback after Advertising succeeds or fails to start. Broadcasts the error code
      * in an Intent to be picked up by AdvertiserFragment and stops this Service.
      */
-    private class SampleAdvertiseCallback extends AdvertiseCallback {
+    private class SampleAdvertiseCallback implements BleAdvertiser.Callback {
+
+        private final int slot;
+
+        SampleAdvertiseCallback(int slot) {
+            this.slot = slot;
+        }
 
         @Override
         public void onStartFailure(int errorCode) {
-            super.onStartFailure(errorCode);
 
+            RotationScheduler scheduler = rotation;
+            if (errorCode == BleAdvertiser.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS && slot > 0 && scheduler != null) {
+                Timber.d("Advertising slot %d unavailable, limiting rotation to %d slots", slot, slot);
+                scheduler.limitSlots(slot);
+                if (mSlotIdentity != null) {
+                    mSlotIdentity[slot] = -1;
+                    mSlotAdvertisement[slot] = null;
+                }
+                return;
+            }
             Timber.d("Advertising failed");
             sendFailureIntent(errorCode);
             stopSelf();
@@ -262,9 +694,8 @@ public class AdvertiserService extends Service {
         }
 
         @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            super.onStartSuccess(settingsInEffect);
-            Timber.d("Advertising successfully started");
+        public void onStartSuccess(Advertisement advertisement) {
+            Timber.d("Advertising successfully started on slot %d", slot);
         }
     }
 
@@ -1,192 +1,146 @@
 package tm.nsfantom.beaconpublisher.service;
 
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.os.ParcelUuid;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by user on 2/24/18.
+ * <p>
+ * The profile itself is described in {@code core/src/main/gatt/mutag-profile.json}; the
+ * constants below are its UUIDs as ParcelUuid and the services are built from the generated
+ * {@link MuTagProfile} tables.
  */
 
 public class InformuMuTagProfile {
 
-    public static final ParcelUuid GENERIC_ACCESS_SERVICE = ParcelUuid.fromString("00001800-0000-1000-8000-00805f9b34fb");
+    public static final ParcelUuid GENERIC_ACCESS_SERVICE = new ParcelUuid(MuTagUuids.GENERIC_ACCESS_SERVICE);
     // Expected Value: Informu Mu Tag (14 bytes)
-    public static final ParcelUuid DEVICE_NAME_UUID = ParcelUuid.fromString("00002a00-0000-1000-8000-00805f9b34fb");
+    public static final ParcelUuid DEVICE_NAME_UUID = new ParcelUuid(MuTagUuids.DEVICE_NAME);
     // Expected Value: (  bytes)
-    public static final ParcelUuid APPEARANCE_UUID = ParcelUuid.fromString("00002a01-0000-1000-8000-00805f9b34fb");
+    public static final ParcelUuid APPEARANCE_UUID = new ParcelUuid(MuTagUuids.APPEARANCE);
 
     /**
      * Mu Tag Device Info Service
      */
 
     // Expected Value:(11bytes)
-    public static final ParcelUuid MANUFACTURER_NAME_UUID = ParcelUuid.fromString("00002A29-0000-1000-8000-00805F9B34FB".toLowerCase());
+    public static final ParcelUuid MANUFACTURER_NAME_UUID = new ParcelUuid(MuTagUuids.MANUFACTURER_NAME);
 
     // Expected Value:(3bytes)
-    public static final ParcelUuid FIRMWARE_REVISION_STRING_UUID = ParcelUuid.fromString("00002A26-0000-1000-8000-00805F9B34FB".toLowerCase());
+    public static final ParcelUuid FIRMWARE_REVISION_STRING_UUID = new ParcelUuid(MuTagUuids.FIRMWARE_REVISION_STRING);
 
     // Expected Value:(8bytes)
-    public static final ParcelUuid MODEL_NUMBER_STRING_UUID = ParcelUuid.fromString("00002A24-0000-1000-8000-00805F9B34FB".toLowerCase());
+    public static final ParcelUuid MODEL_NUMBER_STRING_UUID = new ParcelUuid(MuTagUuids.MODEL_NUMBER_STRING);
 
 
     // Expected Value: (6 bytes)
-    public static final ParcelUuid SYSTEM_ID_UUID = ParcelUuid.fromString("00002A23-0000-1000-8000-00805F9B34FB".toLowerCase());
+    public static final ParcelUuid SYSTEM_ID_UUID = new ParcelUuid(MuTagUuids.SYSTEM_ID);
 
     //Expected Value: (1  bytes)
-    public static final ParcelUuid BATTERY_LEVEL_UUID = ParcelUuid.fromString("00002A19-0000-1000-8000-00805F9B34FB".toLowerCase());
+    public static final ParcelUuid BATTERY_LEVEL_UUID = new ParcelUuid(MuTagUuids.BATTERY_LEVEL);
 
     /**
      * Mu Tag Configuration Service
      */
-    public static final ParcelUuid MU_TAG_CONFIGURATION_SERVICE = ParcelUuid.fromString("a173424a-9708-4c4c-aeed-0ab1af539797");
+    public static final ParcelUuid MU_TAG_CONFIGURATION_SERVICE = new ParcelUuid(MuTagUuids.MU_TAG_CONFIGURATION_SERVICE);
     //    Permission: RW
     //    Expected Value: (16+2 bytes)
-    public static final ParcelUuid DEVICE_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab01");
+    public static final ParcelUuid DEVICE_UUID = new ParcelUuid(MuTagUuids.DEVICE_UUID);
 
     //    Permission: RW
     //    Expected Value: (2+2 bytes)
-    public static final ParcelUuid DEVICE_MAJOR_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab02");
+    public static final ParcelUuid DEVICE_MAJOR_UUID = new ParcelUuid(MuTagUuids.DEVICE_MAJOR);
 
     //    Permission: RW
     //    Expected Value: (2+2 bytes)
-    public static final ParcelUuid DEVICE_MINOR_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab03");
+    public static final ParcelUuid DEVICE_MINOR_UUID = new ParcelUuid(MuTagUuids.DEVICE_MINOR);
 
     //    Permission: RW
     //    Expected Value: (1+2 bytes)
-    public static final ParcelUuid TX_POWER_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab04");
+    public static final ParcelUuid TX_POWER_UUID = new ParcelUuid(MuTagUuids.TX_POWER);
 
     //    Permission: W (without response)
     //    Expected Value: (1 byte)
-    public static final ParcelUuid AUTHENTICATE_CONNECTION_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab05");
+    public static final ParcelUuid AUTHENTICATE_CONNECTION_UUID = new ParcelUuid(MuTagUuids.AUTHENTICATE_CONNECTION);
 
     //    Permission; RW
     //    Expected Value: (1+2 bytes)
-    public static final ParcelUuid TAG_COLOR_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab06");
+    public static final ParcelUuid TAG_COLOR_UUID = new ParcelUuid(MuTagUuids.TAG_COLOR);
 
     //    Permission; W
     //    Expected Value: (1+2 bytes)
-    public static final ParcelUuid DEEP_SLEEP_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab07");
+    public static final ParcelUuid DEEP_SLEEP_UUID = new ParcelUuid(MuTagUuids.DEEP_SLEEP);
 
     //    Permission; RW
     //    Expected Value: (1+2 bytes)
-    public static final ParcelUuid PROVISIONED_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab08");
+    public static final ParcelUuid PROVISIONED_UUID = new ParcelUuid(MuTagUuids.PROVISIONED);
 
     //    Permission; RW
     //    Expected Value: (1+2 bytes)
-    public static final ParcelUuid ADVERTISING_INTERVAL_UUID = ParcelUuid.fromString("ac9b44ea-aa5e-40f4-888a-c2637573ab09");
+    public static final ParcelUuid ADVERTISING_INTERVAL_UUID = new ParcelUuid(MuTagUuids.ADVERTISING_INTERVAL);
+
+
+    public static final ParcelUuid SILICON_LABS_OTA = new ParcelUuid(MuTagUuids.SILICON_LABS_OTA);
+
+    //    Permission: W, notifies bytes received
+    //    Expected Value: (1 byte) 0x00 start, 0x03 end of image, 0x04 close
+    public static final ParcelUuid OTA_CONTROL_UUID = new ParcelUuid(MuTagUuids.OTA_CONTROL);
 
+    //    Permission: W, write without response
+    //    Expected Value: image chunk (up to MTU - 3 bytes)
+    public static final ParcelUuid OTA_DATA_UUID = new ParcelUuid(MuTagUuids.OTA_DATA);
 
-    public static final ParcelUuid SILICON_LABS_OTA = ParcelUuid.fromString("1D14D6EE-FD63-4FA1-BFA4-8F47B42119F0");
+    public static final ParcelUuid CLIENT_CHARACTERISTIC_CONFIG_UUID = new ParcelUuid(MuTagUuids.CLIENT_CHARACTERISTIC_CONFIG);
 
     /**
-     * Return a configured {@link BluetoothGattService} instance for the
-     * Current Time Service.
+     * Services the emulated tag publishes. The stack assigns handles whenever a service is added
+     * to a server, so the returned definitions can be built once and reused by every GATT server
+     * the app opens.
      */
+    public static BluetoothGattService[] createServices() {
+        List<BluetoothGattService> services = new ArrayList<>(MuTagProfile.SERVICE_COUNT);
+        for (int service = 0; service < MuTagProfile.SERVICE_COUNT; service++) {
+            if (MuTagProfile.isPublished(service)) services.add(createService(service));
+        }
+        return services.toArray(new BluetoothGattService[services.size()]);
+    }
+
+    /**
+     * Builds one service of {@link MuTagProfile}, with the characteristics, properties and
+     * permissions listed in {@code mutag-profile.json}.
+     *
+     * @param service one of the service indexes of {@link MuTagProfile}
+     */
+    public static BluetoothGattService createService(int service) {
+        BluetoothGattService gattService = new BluetoothGattService(MuTagProfile.serviceUuid(service),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (int i = MuTagProfile.firstCharacteristic(service); i < MuTagProfile.endCharacteristic(service); i++) {
+            // the profile's property and permission bits are the platform values
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(MuTagProfile.uuid(i),
+                    MuTagProfile.properties(i), MuTagProfile.permissions(i));
+            if (MuTagProfile.hasCccd(i)) {
+                characteristic.addDescriptor(new BluetoothGattDescriptor(MuTagUuids.CLIENT_CHARACTERISTIC_CONFIG,
+                        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            }
+            gattService.addCharacteristic(characteristic);
+        }
+        return gattService;
+    }
+
     public static BluetoothGattService createConfigurationService() {
-        BluetoothGattService service = new BluetoothGattService(MU_TAG_CONFIGURATION_SERVICE.getUuid(), BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        BluetoothGattCharacteristic gcDU = new BluetoothGattCharacteristic(DEVICE_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcMajor = new BluetoothGattCharacteristic(DEVICE_MAJOR_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcMinor = new BluetoothGattCharacteristic(DEVICE_MINOR_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcTxPower = new BluetoothGattCharacteristic(TX_POWER_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcAuthConn = new BluetoothGattCharacteristic(AUTHENTICATE_CONNECTION_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcTagColor = new BluetoothGattCharacteristic(TAG_COLOR_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcDeepSleep = new BluetoothGattCharacteristic(DEEP_SLEEP_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcProvisioned = new BluetoothGattCharacteristic(PROVISIONED_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-        BluetoothGattCharacteristic gcAdvertisingInterval = new BluetoothGattCharacteristic(ADVERTISING_INTERVAL_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
-        );
-
-        BluetoothGattCharacteristic gcDN = new BluetoothGattCharacteristic(DEVICE_NAME_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-
-        service.addCharacteristic(gcDU);
-        service.addCharacteristic(gcDN);
-        service.addCharacteristic(gcMajor);
-        service.addCharacteristic(gcMinor);
-        service.addCharacteristic(gcTxPower);
-        service.addCharacteristic(gcAuthConn);
-        service.addCharacteristic(gcTagColor);
-        service.addCharacteristic(gcDeepSleep);
-        service.addCharacteristic(gcProvisioned);
-        service.addCharacteristic(gcAdvertisingInterval);
-        return service;
+        return createService(MuTagProfile.MU_TAG_CONFIGURATION_SERVICE);
     }
 
     public static BluetoothGattService createInformuGenericAccessService() {
-        BluetoothGattService service = new BluetoothGattService(GENERIC_ACCESS_SERVICE.getUuid(), BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-
-        BluetoothGattCharacteristic gcDN = new BluetoothGattCharacteristic(DEVICE_NAME_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        BluetoothGattCharacteristic gcAppearance = new BluetoothGattCharacteristic(APPEARANCE_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        BluetoothGattCharacteristic gcManufactureName = new BluetoothGattCharacteristic(MANUFACTURER_NAME_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-
-        BluetoothGattCharacteristic gcFirm = new BluetoothGattCharacteristic(FIRMWARE_REVISION_STRING_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        BluetoothGattCharacteristic gcModel = new BluetoothGattCharacteristic(MODEL_NUMBER_STRING_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        BluetoothGattCharacteristic gcSystemId= new BluetoothGattCharacteristic(SYSTEM_ID_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        BluetoothGattCharacteristic gcBattery = new BluetoothGattCharacteristic(BATTERY_LEVEL_UUID.getUuid(),
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-
-        service.addCharacteristic(gcDN);
-        service.addCharacteristic(gcAppearance);
-        service.addCharacteristic(gcManufactureName);
-        service.addCharacteristic(gcFirm);
-        service.addCharacteristic(gcModel);
-        service.addCharacteristic(gcSystemId);
-        service.addCharacteristic(gcBattery);
-        return service;
+        return createService(MuTagProfile.GENERIC_ACCESS_SERVICE);
     }
 
     public static BluetoothGattService createOTAService() {
-        return new BluetoothGattService(SILICON_LABS_OTA.getUuid(), BluetoothGattService.SERVICE_TYPE_SECONDARY);
+        return createService(MuTagProfile.SILICON_LABS_OTA);
     }
-
-
-
 }
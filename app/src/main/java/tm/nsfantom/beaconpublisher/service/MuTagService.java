@@ -0,0 +1,474 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import timber.log.Timber;
+import tm.nsfantom.beaconpublisher.BeaconApp;
+import tm.nsfantom.beaconpublisher.BuildConfig;
+import tm.nsfantom.beaconpublisher.R;
+import tm.nsfantom.beaconpublisher.ble.AndroidBleAdvertiser;
+import tm.nsfantom.beaconpublisher.ble.AndroidGattServer;
+import tm.nsfantom.beaconpublisher.ble.Advertisement;
+import tm.nsfantom.beaconpublisher.ble.BleAdvertiser;
+import tm.nsfantom.beaconpublisher.ble.GattEventLoop;
+import tm.nsfantom.beaconpublisher.ui.MainActivity;
+import tm.nsfantom.beaconpublisher.util.BeaconFrameEncoder;
+import tm.nsfantom.beaconpublisher.util.CoalescingObserver;
+import tm.nsfantom.beaconpublisher.util.Constants;
+import tm.nsfantom.beaconpublisher.util.EventLog;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+import tm.nsfantom.beaconpublisher.util.TagConfigStore;
+
+/**
+ * Emulates the Mu Tag: runs its GATT server and connectable advertisement independent of the UI.
+ * While emulating the Service is started and in the foreground, so connected centrals stay
+ * connected when the activity is rotated, backgrounded or closed.
+ * <p>
+ * The UI binds to it and uses {@link LocalBinder}: {@link LocalBinder#getSnapshot()} reads
+ * everything it shows at once, {@link LocalBinder#update} applies a tag state change to the
+ * server, the config file, the centrals and the advertisement together, and the observer set with
+ * {@link LocalBinder#setObserver} receives the latest {@link Snapshot} on the main thread,
+ * however many changes happened since the last one.
+ */
+public class MuTagService extends Service {
+
+    private static final int FOREGROUND_NOTIFICATION_ID = 2;
+
+    private static final int APPLE = 0x004c;
+    private static final BeaconFrameEncoder frameEncoder =
+            BeaconFrameEncoder.iBeacon(UUID.fromString(Constants.DEVICEUUID));
+
+    private static final int EVENT_LOG_CAPACITY = 256;
+    private static final int OTA_ACK_WINDOW = 16;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final int GATT_INBOX_CAPACITY = GattEventLoop.DEFAULT_CAPACITY;
+    private static final long ADVERTISE_POLICY_TICK_MS = 1000;
+    private static final int AUTH_SESSIONS = 16;
+    private static final long AUTH_SESSION_TTL_MS = 10 * 60_000;
+    /**
+     * Centrals start with the ASCII decimals this app has always served; one that only reads
+     * never gets the chance to switch.
+     */
+    private static final boolean LEGACY_VALUES = true;
+
+    /**
+     * What the UI shows, read in one call.
+     */
+    public static final class Snapshot {
+        public final TagState tagState;
+        public final boolean emulating;
+        public final int connections;
+        /**
+         * Setting of the advertisement, null when not advertising.
+         */
+        public final AdvertisePolicy.Setting advertising;
+
+        Snapshot(TagState tagState, boolean emulating, int connections, AdvertisePolicy.Setting advertising) {
+            this.tagState = tagState;
+            this.emulating = emulating;
+            this.connections = connections;
+            this.advertising = advertising;
+        }
+    }
+
+    /**
+     * API of the bound Service. Call on the main thread.
+     */
+    public class LocalBinder extends Binder {
+
+        public Snapshot getSnapshot() {
+            return snapshot();
+        }
+
+        /**
+         * Applies {@code update} to the tag state, persists the fields it changed with one write,
+         * notifies subscribed centrals once and re-advertises if major or minor changed.
+         *
+         * @return the new tag state
+         */
+        public TagState update(TagState.Update update) {
+            return applyUpdate(update);
+        }
+
+        public void setEmulating(boolean emulating) {
+            if (emulating) {
+                startEmulating();
+            } else {
+                stopEmulating();
+            }
+        }
+
+        /**
+         * Status lines of the server and advertiser; a new snapshot is published when one is added.
+         */
+        public EventLog getEventLog() {
+            return mEventLog;
+        }
+
+        /**
+         * Sets or, with null, clears the observer; a newly set observer receives the current
+         * snapshot right away.
+         */
+        public void setObserver(CoalescingObserver.Observer<Snapshot> observer) {
+            mSnapshots.setObserver(observer);
+            if (observer != null) publishSnapshot();
+        }
+    }
+
+    private final LocalBinder mBinder = new LocalBinder();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final CoalescingObserver<Snapshot> mSnapshots = new CoalescingObserver<>(mHandler::post);
+
+    private final EventLog mEventLog = new EventLog(EVENT_LOG_CAPACITY);
+
+    private TagConfigStore mTagConfig;
+
+    private BluetoothManager mBluetoothManager;
+
+    private BluetoothAdapter mBluetoothAdapter;
+
+    private MuTagGattServer mMuTagServer;
+
+    private AndroidGattServer mGattServer;
+
+    /**
+     * Runs the GATT callbacks of {@link #mMuTagServer} in order, off the binder threads.
+     */
+    private HandlerThread mGattThread;
+
+    private volatile BleAdvertiser mAdvertiser;
+
+    private volatile boolean mEmulating;
+
+    private final AdvertisePolicy mPolicy = new AdvertisePolicy(
+            new AdvertisePolicy.Setting(Advertisement.MODE_BALANCED, Advertisement.TX_POWER_LOW));
+
+    private final PowerStateReceiver mPowerStateReceiver = new PowerStateReceiver(mPolicy, this::applyPolicy);
+
+    /**
+     * Connection count and the write window are polled; battery and screen changes arrive through
+     * {@link #mPowerStateReceiver}.
+     */
+    private final Runnable policyTick = new Runnable() {
+        @Override
+        public void run() {
+            applyPolicy();
+            mHandler.postDelayed(this, ADVERTISE_POLICY_TICK_MS);
+        }
+    };
+
+    /**
+     * Major and minor of the advertisement last handed to the advertiser, -1 when not advertising.
+     * Main thread only.
+     */
+    private int mOnAirMajor = -1;
+
+    private int mOnAirMinor = -1;
+
+    private final ReadvertiseDebouncer mReadvertise = new ReadvertiseDebouncer(new ReadvertiseDebouncer.Scheduler() {
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            mHandler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    }, this::publishIdentity, MetricsRegistry.getDefault());
+
+    private final Runnable evictIdleConnections = new Runnable() {
+        @Override
+        public void run() {
+            mMuTagServer.evictIdleConnections();
+            mHandler.postDelayed(this, IDLE_TIMEOUT_MS / 2);
+        }
+    };
+
+    private final Runnable expireNotifications = new Runnable() {
+        @Override
+        public void run() {
+            mMuTagServer.expireNotifications();
+            mHandler.postDelayed(this, NotificationQueue.DEFAULT_SEND_TIMEOUT_MILLIS);
+        }
+    };
+
+    private final BleAdvertiser.Callback mAdvertiseCallback = new BleAdvertiser.Callback() {
+        @Override
+        public void onStartSuccess(Advertisement advertisement) {
+            mReadvertise.onOnAir(advertisement);
+            appendStatus(advertisement.toString());
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            appendStatus("onStartFailure: errorCode = " + errorCode);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mTagConfig = BeaconApp.getTagConfig(this);
+        mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        mBluetoothAdapter = mBluetoothManager != null ? mBluetoothManager.getAdapter() : null;
+        TagState initialState = new TagState(mTagConfig.getDeviceUuid(), mTagConfig.getDeviceName(),
+                mTagConfig.getMajor(), mTagConfig.getMinor(), mTagConfig.getTagColor(), BuildConfig.VERSION_NAME);
+        mMuTagServer = new MuTagGattServer(initialState, mTagConfig, new MuTagGattServer.Listener() {
+            @Override
+            public void onStatus(String status) {
+                appendStatus(status);
+            }
+
+            @Override
+            public void onTagStateWritten(TagState state) {
+                mPolicy.onWrite(System.nanoTime());
+                mReadvertise.onChanged();
+                publishSnapshot();
+            }
+        });
+        if (mBluetoothAdapter != null) mMuTagServer.setLocalAddress(mBluetoothAdapter.getAddress());
+        mMuTagServer.setLegacyValues(LEGACY_VALUES);
+        mMuTagServer.enableOta(new File(getFilesDir(), "ota"), OTA_ACK_WINDOW);
+        mMuTagServer.setConnectionLimits(MAX_CONNECTIONS, IDLE_TIMEOUT_MS);
+        if (BuildConfig.MU_TAG_AUTH_KEY.isEmpty()) {
+            // only debug builds get here, release builds need a key
+            Timber.w("Built without -PmuTagAuthKey, any central may change the tag");
+            appendStatus("WARNING: authentication disabled, any central may change the tag");
+        } else {
+            mMuTagServer.enableAuthentication(new ConnectionAuthenticator(
+                    BuildConfig.MU_TAG_AUTH_KEY.getBytes(Charset.forName("UTF-8")), AUTH_SESSIONS, AUTH_SESSION_TTL_MS));
+        }
+        Timber.d(getString(R.string.ble_initialized));
+    }
+
+    @Override
+    public void onDestroy() {
+        stopGattServer();
+        stopAdvertising();
+        mHandler.removeCallbacksAndMessages(null);
+        mEmulating = false;
+        super.onDestroy();
+    }
+
+    /**
+     * Started only by {@link #startEmulating()}; after the process was killed the UI decides
+     * whether to emulate again.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    /**
+     * Prints the emulation state and metrics, for {@code adb shell dumpsys activity service
+     * tm.nsfantom.beaconpublisher/.service.MuTagService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Snapshot snapshot = snapshot();
+        writer.println("emulating " + snapshot.emulating + ", " + snapshot.connections + " connections, advertise "
+                + snapshot.advertising);
+        for (GattConnection connection : mMuTagServer.getConnections()) {
+            writer.println("connection " + connection);
+        }
+        MetricsRegistry.getDefault().dump(writer);
+    }
+
+    private void startEmulating() {
+        if (mEmulating) return;
+        mEmulating = true;
+        // keeps the Service alive when the UI unbinds
+        startService(new Intent(this, MuTagService.class));
+        goForeground();
+        startAdvertising();
+        startGattServer();
+        publishSnapshot();
+    }
+
+    private void stopEmulating() {
+        if (!mEmulating) return;
+        mEmulating = false;
+        stopGattServer();
+        stopAdvertising();
+        stopForeground(true);
+        // destroyed once the UI unbinds as well
+        stopSelf();
+        publishSnapshot();
+    }
+
+    private TagState applyUpdate(TagState.Update update) {
+        TagState previous = mMuTagServer.getTagState();
+        TagState next = mMuTagServer.updateTagState(update);
+        TagConfigStore.Editor editor = mTagConfig.edit();
+        if (next.major != previous.major) editor.putMajor(next.major);
+        if (next.minor != previous.minor) editor.putMinor(next.minor);
+        if (next.tagColor != previous.tagColor) editor.putTagColor(next.tagColor);
+        if (!next.deviceName.equals(previous.deviceName)) editor.putDeviceName(next.deviceName);
+        if (!next.deviceUuid.equals(previous.deviceUuid)) editor.putDeviceUuid(next.deviceUuid);
+        editor.apply();
+        if (next != previous) mMuTagServer.notifyTagStateChanged();
+        if (next.major != previous.major || next.minor != previous.minor) mReadvertise.onChanged();
+        publishSnapshot();
+        return next;
+    }
+
+    private Snapshot snapshot() {
+        return new Snapshot(mMuTagServer.getTagState(), mEmulating, mMuTagServer.getConnectionCount(),
+                mAdvertiser != null ? mPolicy.getCurrent() : null);
+    }
+
+    /**
+     * Safe to call from any thread; the observer sees the latest snapshot once per main loop
+     * turn.
+     */
+    private void publishSnapshot() {
+        mSnapshots.publish(snapshot());
+    }
+
+    private void appendStatus(String status) {
+        mEventLog.append(status);
+        publishSnapshot();
+    }
+
+    private void goForeground() {
+        Intent notificationIntent = new Intent(this, MainActivity.class);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
+                notificationIntent, 0);
+        Notification n = new Notification.Builder(this)
+                .setContentTitle("Emulating Mu Tag via Bluetooth")
+                .setContentText("Nearby centrals can connect to this device.")
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentIntent(pendingIntent)
+                .build();
+        startForeground(FOREGROUND_NOTIFICATION_ID, n);
+    }
+
+    private void startAdvertising() {
+        if (mBluetoothAdapter == null || mAdvertiser != null) return;
+        mAdvertiser = new AndroidBleAdvertiser(mBluetoothAdapter.getBluetoothLeAdvertiser());
+        updateAdvertisement();
+        mPowerStateReceiver.register(this);
+        mHandler.postDelayed(policyTick, ADVERTISE_POLICY_TICK_MS);
+        appendStatus(getString(R.string.ble_start_adv));
+    }
+
+    private void stopAdvertising() {
+        if (mAdvertiser == null) return;
+        mHandler.removeCallbacks(policyTick);
+        mReadvertise.cancel();
+        mOnAirMajor = -1;
+        mOnAirMinor = -1;
+        mPowerStateReceiver.unregister(this);
+        mAdvertiser.stopAdvertising(mAdvertiseCallback);
+        mAdvertiser = null;
+        appendStatus(getString(R.string.ble_stop_adv));
+    }
+
+    /**
+     * Re-advertises if the policy picked a different mode or power level.
+     */
+    private void applyPolicy() {
+        mPolicy.setConnections(mMuTagServer.getConnectionCount());
+        if (!mPolicy.update(System.nanoTime()) || mAdvertiser == null) return;
+        updateAdvertisement();
+        appendStatus("advertising with " + mPolicy.getCurrent());
+    }
+
+    /**
+     * Puts the current major, minor and policy setting on air, in place if the advertiser is
+     * still running.
+     *
+     * @return the advertisement handed to the advertiser, or null if not advertising
+     */
+    private Advertisement updateAdvertisement() {
+        if (mAdvertiser == null) return null;
+        TagState state = mMuTagServer.getTagState();
+        Advertisement advertisement = mPolicy.getCurrent().apply(createAdvertisement(state));
+        if (!mAdvertiser.updateAdvertising(advertisement, mAdvertiseCallback)) {
+            mAdvertiser.startAdvertising(advertisement, mAdvertiseCallback);
+        }
+        mOnAirMajor = state.major;
+        mOnAirMinor = state.minor;
+        return advertisement;
+    }
+
+    /**
+     * Publisher of {@link #mReadvertise}: re-advertises only if major or minor differ from what
+     * is on air.
+     */
+    private Advertisement publishIdentity() {
+        TagState state = mMuTagServer.getTagState();
+        if (state.major == mOnAirMajor && state.minor == mOnAirMinor) return null;
+        return updateAdvertisement();
+    }
+
+    private void startGattServer() {
+        if (mGattServer != null) return;
+        mGattThread = new HandlerThread("GattEventLoop");
+        mGattThread.start();
+        Handler gattHandler = new Handler(mGattThread.getLooper());
+        GattEventLoop eventLoop = new GattEventLoop(mMuTagServer, gattHandler::post, GATT_INBOX_CAPACITY);
+        eventLoop.setDropListener(mMuTagServer);
+        mGattServer = AndroidGattServer.open(this, mBluetoothManager, eventLoop);
+        if (mGattServer != null) {
+            // requests arriving before both are attached would never be answered
+            eventLoop.attach(mGattServer);
+            mMuTagServer.attach(mGattServer);
+            mGattServer.addServices(BeaconApp.getGattServices());
+            mHandler.postDelayed(evictIdleConnections, IDLE_TIMEOUT_MS / 2);
+            mHandler.postDelayed(expireNotifications, NotificationQueue.DEFAULT_SEND_TIMEOUT_MILLIS);
+        } else {
+            mGattThread.quit();
+            mGattThread = null;
+        }
+    }
+
+    private void stopGattServer() {
+        if (mGattServer == null) return;
+        mHandler.removeCallbacks(evictIdleConnections);
+        mHandler.removeCallbacks(expireNotifications);
+        mMuTagServer.detach();
+        mGattServer.close();
+        mGattServer = null;
+        // callbacks already queued still run, against the detached server
+        mGattThread.quitSafely();
+        mGattThread = null;
+        appendStatus(getString(R.string.stop_gatt_server));
+    }
+
+    private static Advertisement createAdvertisement(TagState state) {
+        return new Advertisement.Builder()
+                .setTxPowerLevel(Advertisement.TX_POWER_LOW)
+                .setConnectable(true)
+                .setTimeout(Constants.ADVERTISE_TIMEOUT)
+                .setMode(Advertisement.MODE_BALANCED)
+                .setManufacturerData(APPLE, frameEncoder.encode(state.major, state.minor, (byte) 0xc5))
+                .build();
+    }
+}
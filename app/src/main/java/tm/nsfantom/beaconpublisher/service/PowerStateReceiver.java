@@ -0,0 +1,76 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+/**
+ * Feeds battery and screen state into an {@link AdvertisePolicy} and runs a callback after each
+ * change, on the main thread. Register while advertising; the sticky battery broadcast and the
+ * current screen state are applied on registration. Battery voltage and temperature are kept for
+ * telemetry frames.
+ */
+public class PowerStateReceiver extends BroadcastReceiver {
+
+    private final AdvertisePolicy policy;
+    private final Runnable onChanged;
+    private volatile int batteryMillivolts;
+    private volatile int batteryTenthsCelsius = Integer.MIN_VALUE;
+
+    public PowerStateReceiver(AdvertisePolicy policy, Runnable onChanged) {
+        this.policy = policy;
+        this.onChanged = onChanged;
+    }
+
+    public void register(Context context) {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null) policy.setScreenOn(powerManager.isInteractive());
+        Intent battery = context.registerReceiver(this, filter);
+        if (battery != null) onReceive(context, battery);
+    }
+
+    public void unregister(Context context) {
+        context.unregisterReceiver(this);
+    }
+
+    /**
+     * Last reported battery voltage, 0 before the first battery broadcast.
+     */
+    public int getBatteryMillivolts() {
+        return batteryMillivolts;
+    }
+
+    /**
+     * Last reported battery temperature in tenths of a degree Celsius, {@link Integer#MIN_VALUE} if unknown.
+     */
+    public int getBatteryTenthsCelsius() {
+        return batteryTenthsCelsius;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_SCREEN_ON.equals(action)) {
+            policy.setScreenOn(true);
+        } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+            policy.setScreenOn(false);
+        } else if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            batteryMillivolts = Math.max(0, intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0));
+            batteryTenthsCelsius = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+            if (level < 0 || scale <= 0) return;
+            boolean pluggedIn = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            policy.setBattery(level * 100 / scale, pluggedIn);
+        } else {
+            return;
+        }
+        onChanged.run();
+    }
+}
@@ -7,6 +7,7 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import tm.nsfantom.beaconpublisher.R;
+import tm.nsfantom.beaconpublisher.util.TagColors;
 
 /**
  * Created by user on 2/24/18.
@@ -15,14 +16,14 @@ import tm.nsfantom.beaconpublisher.R;
 public class ColorSpinnerAdapter extends BaseAdapter {
 
     enum TagColor {
-        CHARCOAL(R.color.tagCharcoal, (byte) 0x01),
-        CLOUD(R.color.tagCloud, (byte) 0x02),
-        INDIEGOGO(R.color.tagIndigogo, (byte) 0x03),
-        KICKSTARTER(R.color.tagKickstarter, (byte) 0x04),
-        MU_ORANGE(R.color.tagMuOrange, (byte) 0x05),
-        SCARLET(R.color.tagScarlet, (byte) 0x06),
-        SKY(R.color.tagSky, (byte) 0x07),
-        SMOKE(R.color.tagSmoke, (byte) 0x08);
+        CHARCOAL(R.color.tagCharcoal, TagColors.CHARCOAL),
+        CLOUD(R.color.tagCloud, TagColors.CLOUD),
+        INDIEGOGO(R.color.tagIndigogo, TagColors.INDIEGOGO),
+        KICKSTARTER(R.color.tagKickstarter, TagColors.KICKSTARTER),
+        MU_ORANGE(R.color.tagMuOrange, TagColors.MU_ORANGE),
+        SCARLET(R.color.tagScarlet, TagColors.SCARLET),
+        SKY(R.color.tagSky, TagColors.SKY),
+        SMOKE(R.color.tagSmoke, TagColors.SMOKE);
 //	/* do the additions before this entry please */
 //                num_tag_colors
 
@@ -34,13 +35,11 @@ public class ColorSpinnerAdapter extends BaseAdapter {
             this.colorCode = colorCode;
         }
 
+        /**
+         * Constants must stay in the order of {@link TagColors}, which maps codes to positions.
+         */
         static public int getIndex(byte colorCode) {
-            TagColor[] aColors = TagColor.values();
-            for (int i = 0; i < aColors.length; i++) {
-                if (aColors[i].colorCode == colorCode)
-                    return i;
-            }
-            return 0;
+            return TagColors.indexOf(colorCode);
         }
     }
 
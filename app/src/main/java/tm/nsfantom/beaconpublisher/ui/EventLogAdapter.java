@@ -0,0 +1,65 @@
+package tm.nsfantom.beaconpublisher.ui;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import tm.nsfantom.beaconpublisher.R;
+import tm.nsfantom.beaconpublisher.util.EventLog;
+
+/**
+ * Shows the newest {@link EventLog} entries, newest first. Rows are recycled and the backing
+ * array is reused on every refresh.
+ */
+public class EventLogAdapter extends BaseAdapter {
+
+    private final EventLog eventLog;
+    private final EventLog.Event[] events;
+    private int count;
+
+    public EventLogAdapter(EventLog eventLog) {
+        this.eventLog = eventLog;
+        this.events = new EventLog.Event[eventLog.capacity()];
+    }
+
+    /**
+     * Copies the current log contents into the adapter. Must be called on the UI thread.
+     */
+    public void refresh() {
+        int newCount = eventLog.snapshot(events);
+        for (int i = newCount; i < count; i++) events[i] = null;
+        count = newCount;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return events[position];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return events[position].seq;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null) {
+            convertView = LayoutInflater.from(parent.getContext()).inflate(R.layout.event_log_item, parent, false);
+        }
+        ((TextView) convertView).setText(events[position].message);
+        return convertView;
+    }
+}
@@ -40,7 +40,7 @@ public class MainActivity extends AppCompatActivity {
                 return;
             }
             getSupportFragmentManager().beginTransaction()
-                    .add(android.R.id.content, SimpleAdvertiserFragment.newInstance(mBluetoothAdapter))
+                    .add(android.R.id.content, SimpleAdvertiserFragment.newInstance())
                     .commit();
         }
     }
@@ -16,25 +16,16 @@
 
 package tm.nsfantom.beaconpublisher.ui;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattServerCallback;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.databinding.DataBindingUtil;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -43,409 +34,170 @@ import android.view.inputmethod.EditorInfo;
 import android.widget.AdapterView;
 import android.widget.TextView;
 
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
-
-import timber.log.Timber;
-import tm.nsfantom.beaconpublisher.BuildConfig;
 import tm.nsfantom.beaconpublisher.R;
 import tm.nsfantom.beaconpublisher.databinding.FragmentSimpleadvertiserBinding;
-import tm.nsfantom.beaconpublisher.service.InformuMuTagProfile;
-import tm.nsfantom.beaconpublisher.util.Constants;
-import tm.nsfantom.beaconpublisher.util.PrefStorage;
+import tm.nsfantom.beaconpublisher.service.MuTagService;
+import tm.nsfantom.beaconpublisher.service.TagState;
 
 /**
- * Allows user to start & stop Bluetooth LE Advertising of their device.
+ * Allows user to start & stop emulating a Mu Tag and edit its state. The emulation runs in
+ * {@link MuTagService}, which this Fragment binds to while its view exists, so recreating the
+ * view leaves connected centrals alone.
  */
 
-public class SimpleAdvertiserFragment extends Fragment implements TextView.OnEditorActionListener {
+public class SimpleAdvertiserFragment extends Fragment
+        implements TextView.OnEditorActionListener, View.OnFocusChangeListener {
 
-    /**
-     * Listens for notifications that the {@code AdvertiserService} has failed to start advertising.
-     * This Receiver deals with Fragment UI elements and only needs to be active when the Fragment
-     * is on-screen, so it's defined and registered in code instead of the Manifest.
-     */
     private FragmentSimpleadvertiserBinding layout;
-    private BluetoothAdapter bluetoothAdapter;
-    private BluetoothLeAdvertiser bTAdvertiser;
-    private AdvertiseCallback advCallback;
-    private BluetoothGattServer gattServer;
-    private BluetoothGattServerCallback gattCallback;
-    private boolean isAdvertised = false;
-    private List<BluetoothDevice> managedDevices = new ArrayList<BluetoothDevice>();
-
-    static final int APPLE = 0x004c;
-    static final UUID uuid = UUID.fromString(Constants.DEVICEUUID);
-
-    static int minor = 1;
-    static int major = 1;
-
-    private PrefStorage prefStorage;
-
-
-    public static SimpleAdvertiserFragment newInstance(BluetoothAdapter bluetoothAdapter) {
+    /** Null until the Service is connected. */
+    private MuTagService.LocalBinder muTagService;
+    private EventLogAdapter eventLogAdapter;
+    private Choreographer choreographer;
+    private boolean renderScheduled;
+    private final Choreographer.FrameCallback renderEventLog = frameTimeNanos -> {
+        renderScheduled = false;
+        if (eventLogAdapter != null) eventLogAdapter.refresh();
+    };
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            muTagService = (MuTagService.LocalBinder) service;
+            eventLogAdapter = new EventLogAdapter(muTagService.getEventLog());
+            layout.lvLogger.setAdapter(eventLogAdapter);
+            muTagService.setObserver(SimpleAdvertiserFragment.this::render);
+        }
 
-        SimpleAdvertiserFragment advertiserFragment = new SimpleAdvertiserFragment();
-        advertiserFragment.bluetoothAdapter = bluetoothAdapter;
-        return advertiserFragment;
-    }
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            muTagService = null;
+        }
+    };
 
-    @Override
-    public void onAttach(Context context) {
-        super.onAttach(context);
+    public static SimpleAdvertiserFragment newInstance() {
+        return new SimpleAdvertiserFragment();
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         layout = DataBindingUtil.inflate(inflater, R.layout.fragment_simpleadvertiser, container, false);
-        init();
-        prefStorage = new PrefStorage(getContext());
         return layout.getRoot();
-
     }
 
     @Override
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
+        // the Service only acts on a change, so states set by render() come back as no-ops
         layout.switchAdvertise.setOnCheckedChangeListener((buttonView, isChecked) -> {
-            if (isChecked) {
-                startAdvertise();
-                startGattServer();
-                layout.llControls.setKeepScreenOn(true);
-            } else {
-                stopGattServer();
-                stopAdvertise();
-                layout.llControls.setKeepScreenOn(false);
-            }
+            if (muTagService != null) muTagService.setEmulating(isChecked);
         });
-//        layout.llControls.setBackgroundResource(ColorSpinnerAdapter.TagColor.values()[prefStorage.getTagColor()].colorResource);
-        layout.etMajor.setText(String.valueOf(prefStorage.getMajor()));
-        major = prefStorage.getMajor();
-        layout.etMinor.setText(String.valueOf(prefStorage.getMinor()));
-        minor = prefStorage.getMinor();
-        layout.etMajor.setOnEditorActionListener(this);
-        layout.etMinor.setOnEditorActionListener(this);
-        layout.etDeviceName.setText(prefStorage.getDeviceName());
-        layout.etDeviceName.setOnEditorActionListener(this);
+        for (TextView field : new TextView[]{layout.etMajor, layout.etMinor, layout.etDeviceName}) {
+            field.setOnEditorActionListener(this);
+            field.setOnFocusChangeListener(this);
+        }
         layout.spinnerTagColor.setAdapter(new ColorSpinnerAdapter());
         layout.spinnerTagColor.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                prefStorage.saveTagColor(position);
                 layout.llControls.setBackgroundResource(ColorSpinnerAdapter.TagColor.values()[position].colorResource);
-                notifyCharacteristicChanged();
+                if (muTagService == null || muTagService.getSnapshot().tagState.tagColor == position) return;
+                muTagService.update(state -> state.withTagColor(position));
             }
 
             @Override
             public void onNothingSelected(AdapterView<?> parent) {
-                parent.setSelection(prefStorage.getTagColor());
             }
         });
-        layout.spinnerTagColor.setSelection(prefStorage.getTagColor());
-        layout.tvLogger.setOnLongClickListener(v -> {
-            layout.tvLogger.setText("");
+        layout.lvLogger.setOnItemLongClickListener((parent, v, position, id) -> {
+            if (muTagService == null) return false;
+            muTagService.getEventLog().clear();
+            eventLogAdapter.refresh();
             return true;
         });
-    }
-
-    private void init() {
-
-        advCallback = new AdvertiseCallback() {
-            @Override
-            public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-                if (settingsInEffect != null) {
-                    appendStatus(settingsInEffect.toString());
-                } else {
-                    appendStatus("onStartSuccess: settingInEffect = null");
-                }
-            }
-
-            @Override
-            public void onStartFailure(int errorCode) {
-                appendStatus("onStartFailure: errorCode = " + errorCode);
-            }
-        };
-
-        gattCallback = new BluetoothGattServerCallback() {
-            @Override
-            public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-                Timber.d("onConnectionStateChange: " + device.getName() + " status=" + status + "->" + newState);
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    if (!managedDevices.contains(device) && (!device.getAddress().equals(bluetoothAdapter.getAddress()))) {
-                        managedDevices.add(device);
-                        appendStatus("name: " + device.getName() + " device: " + device.getAddress() + " connected");
-                    }
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    managedDevices.remove(device);
-                    appendStatus("name: " + device.getName() + " device: " + device.getAddress() + " disconnected");
-                }
-
-            }
-
-            @Override
-            public void onServiceAdded(int status, BluetoothGattService service) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    appendStatus("onServiceAdded: status = GATT_SUCCESS service = " + service.getUuid().toString());
-                    Timber.d("onServiceAdded: status==GATT_SUCCESS service = %s", service.getUuid().toString());
-                } else {
-                    appendStatus("onServiceAdded: status = " + status + " service = " + service.getUuid().toString());
-                    Timber.d("onServiceAdded: status!=GATT_SUCCESS service = %s", service.getUuid().toString());
-                }
-
-            }
-
-            @Override
-            public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
-                Timber.d("onCharacteristicReadRequest: requestId=" + requestId + " offset=" + offset);
-                Timber.d("uuid: %s", characteristic.getUuid());
-                if (characteristic.getUuid().equals(InformuMuTagProfile.DEVICE_NAME_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name", device.getName());
-                    characteristic.setValue(layout.etDeviceName.getText().toString());
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.DEVICE_MAJOR_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name", device.getName());
-                    characteristic.setValue(layout.etMajor.getText().toString());
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.DEVICE_MINOR_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name", device.getName());
-                    characteristic.setValue(layout.etMinor.getText().toString());
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.TAG_COLOR_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name :%s", device.getName(),prefStorage.getTagColor());
-                    characteristic.setValue(String.valueOf(prefStorage.getTagColor()));
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.MODEL_NUMBER_STRING_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name", device.getName());
-                    characteristic.setValue("android1");
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.FIRMWARE_REVISION_STRING_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name", device.getName());
-                    characteristic.setValue(BuildConfig.VERSION_NAME);
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.SYSTEM_ID_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name", device.getName());
-                    characteristic.setValue("010101");
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.BATTERY_LEVEL_UUID.getUuid())) {
-                    Timber.d("%s is reading characteristic device name", device.getName());
-                    characteristic.setValue("3");
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-                }
-                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, "0".getBytes());
-            }
-
-            @Override
-            public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-                Timber.d("onCharacteristicWriteRequest: requestId=" + requestId + " preparedWrite="
-                        + Boolean.toString(preparedWrite) + " responseNeeded="
-                        + Boolean.toString(responseNeeded) + " offset=" + offset);
-
-                if (characteristic.getUuid().equals(InformuMuTagProfile.DEVICE_MAJOR_UUID.getUuid())) {
-                    Timber.d("%s is writing characteristic", device.getName());
-                    if (value != null && value.length > 0) {
-                        String str = new String(value);
-                        Timber.d("data: %s", str);
-                        getActivity().runOnUiThread(() -> layout.etMajor.setText(str));
-                        appendStatus(str);
-                    } else {
-                        Timber.d("Invalid value.");
-                    }
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.DEVICE_MINOR_UUID.getUuid())) {
-                    Timber.d("%s is writing characteristic", device.getName());
-                    if (value != null && value.length > 0) {
-                        String str = new String(value);
-                        Timber.d("data: %s", str);
-                        getActivity().runOnUiThread(() -> layout.etMinor.setText(str));
-                        appendStatus(str);
-                    } else {
-                        Timber.d("Invalid value.");
-                    }
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
-                } else if (characteristic.getUuid().equals(InformuMuTagProfile.TAG_COLOR_UUID.getUuid())) {
-                    Timber.d("%s is writing characteristic", device.getName());
-                    if (value != null && value.length > 0) {
-                        int position = ColorSpinnerAdapter.TagColor.getIndex(value[0]);
-                        Timber.d("data: %s", position);
-                        prefStorage.saveTagColor(position);
-                        getActivity().runOnUiThread(() -> layout.spinnerTagColor.setSelection(position));//.setText(str));
-                        appendStatus(String.valueOf(position));
-                    } else {
-                        Timber.d("Invalid value.");
-                    }
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
-                }
-            }
-
-            @Override
-            public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
-                Timber.d("onDescriptorReadRequest: ");
-            }
-
-            @Override
-            public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-                Timber.d("onDescriptorWriteRequest: ");
-            }
-
-            @Override
-            public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
-                Timber.d("onExecuteWrite: ");
-            }
-
-            @Override
-            public void onNotificationSent(BluetoothDevice device, int status) {
-                Timber.d("onNotificationSent: %s", device.getName());
-            }
-        };
-
-        Timber.d(getString(R.string.ble_initialized));
+        choreographer = Choreographer.getInstance();
+        getContext().bindService(new Intent(getContext(), MuTagService.class), connection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     public void onDestroyView() {
+        if (muTagService != null) muTagService.setObserver(null);
+        muTagService = null;
+        getContext().unbindService(connection);
+        choreographer.removeFrameCallback(renderEventLog);
+        renderScheduled = false;
+        eventLogAdapter = null;
         layout.llControls.setKeepScreenOn(false);
-        stopGattServer();
-        stopAdvertise();
         super.onDestroyView();
     }
 
-    private void startAdvertise() {
-        if (bluetoothAdapter != null && !isAdvertised) {
-            if (bTAdvertiser == null) {
-                bTAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
-            }
-            bTAdvertiser.startAdvertising(createAdvSettings(), createAdvData(), advCallback);
-            appendStatus(getString(R.string.ble_start_adv));
-        }
-    }
-
-    private void stopAdvertise() {
-        if (bTAdvertiser != null) {
-            bTAdvertiser.stopAdvertising(advCallback);
-            isAdvertised = false;
-            bTAdvertiser = null;
-            appendStatus(getString(R.string.ble_stop_adv));
-        }
-    }
-
     /**
-     * get BluetoothManager
+     * Shows the latest state of the Service. Fields the user is editing or already showing the
+     * value are left alone; the event log is redrawn at most once per frame.
      */
-    public BluetoothManager getBTManager() {
-        return (BluetoothManager) getActivity().getSystemService(Context.BLUETOOTH_SERVICE);
-    }
-
-    private void startGattServer() {
-        gattServer = getBTManager().openGattServer(getContext(), gattCallback);
-//        gattServer.addService(InformuMuTagProfile.createInformuGenericAccessService());
-        gattServer.addService(InformuMuTagProfile.createConfigurationService());
-        gattServer.addService(InformuMuTagProfile.createOTAService());
-    }
-
-    private void stopGattServer() {
-        if (gattServer != null) {
-            gattServer.clearServices();
-            gattServer.close();
-            gattServer = null;
-            appendStatus(getString(R.string.stop_gatt_server));
+    private void render(MuTagService.Snapshot snapshot) {
+        if (layout == null) return;
+        TagState state = snapshot.tagState;
+        layout.switchAdvertise.setChecked(snapshot.emulating);
+        layout.llControls.setKeepScreenOn(snapshot.emulating);
+        showNumber(layout.etMajor, state.major);
+        showNumber(layout.etMinor, state.minor);
+        if (!layout.etDeviceName.hasFocus()) layout.etDeviceName.setText(state.deviceName);
+        if (layout.spinnerTagColor.getSelectedItemPosition() != state.tagColor) {
+            layout.spinnerTagColor.setSelection(state.tagColor);
         }
-    }
-
-    public void notifyCharacteristicChanged() {
-        if (managedDevices.isEmpty()) return;
-//        BluetoothGattService service = gattServer.getService(InformuMuTagProfile.GENERIC_ACCESS_SERVICE.getUuid());
-//        BluetoothGattCharacteristic characteristic = gattServer
-//                .getService(InformuMuTagProfile.GENERIC_ACCESS_SERVICE.getUuid())
-//                .getCharacteristic(InformuMuTagProfile.DEVICE_NAME_UUID.getUuid());
-//        characteristic.setValue(layout.etDeviceName.getText().toString());
-
-        BluetoothGattCharacteristic characteristicMajor = gattServer
-                .getService(InformuMuTagProfile.MU_TAG_CONFIGURATION_SERVICE.getUuid())
-                .getCharacteristic(InformuMuTagProfile.DEVICE_MAJOR_UUID.getUuid());
-        characteristicMajor.setValue(layout.etMajor.getText().toString());
-        BluetoothGattCharacteristic characteristicMinor = gattServer
-                .getService(InformuMuTagProfile.MU_TAG_CONFIGURATION_SERVICE.getUuid())
-                .getCharacteristic(InformuMuTagProfile.DEVICE_MINOR_UUID.getUuid());
-        characteristicMinor.setValue(layout.etMinor.getText().toString());
-        BluetoothGattCharacteristic characteristicColor = gattServer
-                .getService(InformuMuTagProfile.MU_TAG_CONFIGURATION_SERVICE.getUuid())
-                .getCharacteristic(InformuMuTagProfile.TAG_COLOR_UUID.getUuid());
-        characteristicColor.setValue(String.valueOf(prefStorage.getTagColor()));
-
-        for (BluetoothDevice device : managedDevices) {
-            Timber.d("Going to notify to %s", device.getName());
-            //gattServer.notifyCharacteristicChanged(device, characteristic, true);
-            gattServer.notifyCharacteristicChanged(device, characteristicMajor, false);
-            gattServer.notifyCharacteristicChanged(device, characteristicMinor, false);
-            gattServer.notifyCharacteristicChanged(device, characteristicColor,false);
+        if (!renderScheduled) {
+            renderScheduled = true;
+            choreographer.postFrameCallback(renderEventLog);
         }
     }
 
-    private static AdvertiseData createAdvData() {
-        final byte[] manufacturerData = createManufactureData();
-        AdvertiseData.Builder builder = new AdvertiseData.Builder()
-                .setIncludeTxPowerLevel(false)
-//                .addServiceUuid(InformuMuTagProfile.DEVICE_NAME_UUID)
-//                .addServiceData(InformuMuTagProfile.DEVICE_NAME_UUID, "Imformu Mu Tag".getBytes(Charset.forName( "UTF-8" )))
-                .addManufacturerData(APPLE, manufacturerData);
-
-        return builder.build();
+    private static void showNumber(TextView view, int value) {
+        String text = String.valueOf(value);
+        if (!view.hasFocus() && !text.equals(view.getText().toString())) view.setText(text);
     }
 
-    private static AdvertiseSettings createAdvSettings() {
-        AdvertiseSettings.Builder builder = new AdvertiseSettings.Builder()
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
-                .setConnectable(true)
-                .setTimeout(Constants.ADVERTISE_TIMEOUT)
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED);
-        return builder.build();
+    @Override
+    public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+        if (actionId == EditorInfo.IME_ACTION_DONE) applyEdits();
+        return false;
     }
 
-    private static byte[] createManufactureData() {
-        ByteBuffer bb = ByteBuffer.allocate(23);
-
-        bb.putShort((short) 0x0215); //iBeacon
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-//        bb.putShort((short) 0x0001); //major
-//        bb.putShort((short) 0x0001); //minor
-        bb.putShort((short) major); //major
-        bb.putShort((short) minor); //minor
-        bb.put((byte) 0xc5); //Tx Power
-
-        return bb.array();
+    @Override
+    public void onFocusChange(View v, boolean hasFocus) {
+        if (!hasFocus) applyEdits();
     }
 
-    public void appendStatus(final String status) {
-        getActivity().runOnUiThread(() -> {
-            String current = layout.tvLogger.getText().toString();
-            layout.tvLogger.setText(status.concat("\n").concat(current));
-//            layout.tvLogger.setText(current + "\n" + status);
+    /**
+     * Applies the fields the user changed, in one update, so a number is not advertised digit by
+     * digit while it is typed. Fields that still show the current state are left out, so a value
+     * a central wrote meanwhile is not undone. A number that is out of range is put back.
+     */
+    private void applyEdits() {
+        if (muTagService == null) return;
+        TagState current = muTagService.getSnapshot().tagState;
+        int major = parseNumber(layout.etMajor, current.major);
+        int minor = parseNumber(layout.etMinor, current.minor);
+        String deviceName = layout.etDeviceName.getText().toString();
+        boolean majorChanged = major != current.major;
+        boolean minorChanged = minor != current.minor;
+        boolean nameChanged = !deviceName.equals(current.deviceName);
+        if (!majorChanged && !minorChanged && !nameChanged) return;
+        muTagService.update(state -> {
+            if (majorChanged) state = state.withMajor(major);
+            if (minorChanged) state = state.withMinor(minor);
+            return nameChanged ? state.withDeviceName(deviceName) : state;
         });
     }
 
-    @Override
-    public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
-        if (actionId == EditorInfo.IME_ACTION_DONE) {
-            switch (v.getId()) {
-                case R.id.etMajor:
-                    major = Integer.parseInt(v.getText().toString());
-                    prefStorage.saveMajor(major);
-                    break;
-                case R.id.etMinor:
-                    minor = Integer.parseInt(v.getText().toString());
-                    prefStorage.saveMinor(minor);
-                    break;
-                case R.id.etDeviceName:
-                    prefStorage.saveDeviceName(layout.etDeviceName.getText().toString());
-                    break;
-            }
-            notifyCharacteristicChanged();
+    private static int parseNumber(TextView view, int current) {
+        try {
+            int value = Integer.parseInt(view.getText().toString());
+            if (value >= 0 && value <= 0xFFFF) return value;
+        } catch (NumberFormatException ignored) {
+            // restored below
         }
-
-        return false;
+        view.setText(String.valueOf(current));
+        return current;
     }
-}
\ No newline at end of file
+}
@@ -3,6 +3,10 @@ package tm.nsfantom.beaconpublisher.util;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+/**
+ * Legacy SharedPreferences storage. New code uses {@link TagConfigStore}; this class is only read
+ * once to carry existing values over.
+ */
 public final class PrefStorage {
     private final String DEVICE_MAJOR = "device_major";
     private final String DEVICE_MINOR = "device_minor";
@@ -56,10 +60,25 @@ public final class PrefStorage {
         return getPrefs().getInt(DEVICE_MINOR, 0);
     }
 
-    public String getDeviceName() {return getPrefs().getString(DEVICE_NAME, "Informu Mu Tag");}
+    public String getDeviceName() {return getPrefs().getString(DEVICE_NAME, TagConfigStore.DEFAULT_DEVICE_NAME);}
 
     public int getTagColor() { return getPrefs().getInt(DEVICE_TAG_COLOR, 0);}
 
+    public int getBatteryLevel() { return getPrefs().getInt(DEVICE_BATTERY, 0);}
+
+    /**
+     * Copies every stored value into {@code store} with a single write.
+     */
+    public void migrateTo(TagConfigStore store) {
+        store.edit()
+                .putMajor(getMajor())
+                .putMinor(getMinor())
+                .putDeviceName(getDeviceName())
+                .putBatteryLevel(getBatteryLevel())
+                .putTagColor(getTagColor())
+                .apply();
+    }
+
     SharedPreferences getPrefs() {
         if (sharedPreferences == null)
             sharedPreferences = context.getSharedPreferences(PrefStorage.class.getSimpleName(), Context.MODE_PRIVATE);
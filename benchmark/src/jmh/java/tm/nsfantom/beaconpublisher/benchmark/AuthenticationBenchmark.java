@@ -0,0 +1,133 @@
+package tm.nsfantom.beaconpublisher.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import tm.nsfantom.beaconpublisher.ble.BleDevice;
+import tm.nsfantom.beaconpublisher.ble.GattServer;
+import tm.nsfantom.beaconpublisher.ble.GattStatus;
+import tm.nsfantom.beaconpublisher.service.ConnectionAuthenticator;
+import tm.nsfantom.beaconpublisher.service.MuTagGattServer;
+import tm.nsfantom.beaconpublisher.service.MuTagUuids;
+import tm.nsfantom.beaconpublisher.service.TagState;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+import tm.nsfantom.beaconpublisher.util.TagConfigStore;
+
+/**
+ * A reconnect that runs the full challenge-response handshake compared with one that resumes a
+ * cached session with its token, both through {@link MuTagGattServer} with the stack left out.
+ * Both include the central computing its response or its next token.
+ */
+@State(Scope.Thread)
+public class AuthenticationBenchmark {
+
+    private static final byte[] KEY = "benchmark-key".getBytes(Charset.forName("UTF-8"));
+
+    private final BleDevice device = new BleDevice() {
+        @Override
+        public String getAddress() {
+            return "02:00:00:00:00:01";
+        }
+
+        @Override
+        public String getName() {
+            return "central";
+        }
+    };
+
+    private MuTagGattServer server;
+    private ConnectionAuthenticator authenticator;
+    private Mac central;
+    private byte[] token;
+    private byte[] lastValue;
+    private int lastStatus;
+    private int requestId;
+
+    @Setup
+    public void setUp() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        server = new MuTagGattServer(new TagState(TagConfigStore.DEFAULT_DEVICE_UUID,
+                TagConfigStore.DEFAULT_DEVICE_NAME, 1, 1, 0, "benchmark"), null, new MuTagGattServer.Listener() {
+            @Override
+            public void onStatus(String status) {
+            }
+
+            @Override
+            public void onTagStateWritten(TagState state) {
+            }
+        }, metrics);
+        authenticator = new ConnectionAuthenticator(KEY, 16, 60_000, metrics);
+        server.enableAuthentication(authenticator);
+        server.attach(new GattServer() {
+            @Override
+            public boolean sendResponse(BleDevice device, int requestId, int status, int offset, byte[] value) {
+                lastStatus = status;
+                lastValue = value;
+                return true;
+            }
+
+            @Override
+            public boolean notifyCharacteristicChanged(BleDevice device, UUID characteristic, byte[] value,
+                                                       boolean confirm) {
+                return true;
+            }
+
+            @Override
+            public void cancelConnection(BleDevice device) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        central = Mac.getInstance("HmacSHA256");
+        central.init(new SecretKeySpec(KEY, "HmacSHA256"));
+        // leaves a cached session for resumedReconnect
+        fullReconnect();
+    }
+
+    @Benchmark
+    public int fullReconnect() {
+        authenticator.forget(device.getAddress());
+        reconnect();
+        server.onCharacteristicReadRequest(device, requestId++, 0, MuTagUuids.AUTHENTICATE_CONNECTION);
+        byte[] challenge = lastValue;
+        byte[] response = Arrays.copyOf(central.doFinal(challenge), ConnectionAuthenticator.RESPONSE_LENGTH);
+        server.onCharacteristicWriteRequest(device, requestId++, MuTagUuids.AUTHENTICATE_CONNECTION,
+                false, true, 0, response);
+        token = nextToken(challenge);
+        return lastStatus;
+    }
+
+    @Benchmark
+    public int resumedReconnect() {
+        reconnect();
+        server.onCharacteristicWriteRequest(device, requestId++, MuTagUuids.AUTHENTICATE_CONNECTION,
+                false, true, 0, token);
+        token = nextToken(token);
+        return lastStatus;
+    }
+
+    /**
+     * What {@link ConnectionAuthenticator#resumeToken} computes, with the central's Mac.
+     */
+    private byte[] nextToken(byte[] previous) {
+        central.update((byte) 'R');
+        central.update(previous);
+        return Arrays.copyOf(central.doFinal(), ConnectionAuthenticator.TOKEN_LENGTH);
+    }
+
+    private void reconnect() {
+        server.onConnectionStateChange(device, GattStatus.SUCCESS, GattStatus.STATE_DISCONNECTED);
+        server.onConnectionStateChange(device, GattStatus.SUCCESS, GattStatus.STATE_CONNECTED);
+    }
+}
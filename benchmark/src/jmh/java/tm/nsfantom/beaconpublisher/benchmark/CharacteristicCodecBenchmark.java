@@ -0,0 +1,58 @@
+package tm.nsfantom.beaconpublisher.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+
+import tm.nsfantom.beaconpublisher.service.CharacteristicCodec;
+import tm.nsfantom.beaconpublisher.service.MuTagProfile;
+
+/**
+ * Major values in the binary codec compared with the ASCII decimals they replaced, both ways.
+ */
+@State(Scope.Thread)
+public class CharacteristicCodecBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[][] binary = new byte[8][];
+    private final byte[][] strings = new byte[8][];
+    private final byte[] out = new byte[2];
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < binary.length; i++) {
+            int major = i * 8191;
+            binary[i] = new byte[2];
+            CharacteristicCodec.encode(MuTagProfile.DEVICE_MAJOR, major, binary[i], 0);
+            strings[i] = String.valueOf(major).getBytes(UTF_8);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        CharacteristicCodec.encode(MuTagProfile.DEVICE_MAJOR, (counter++ & 7) * 8191, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] encodeString() {
+        return String.valueOf((counter++ & 7) * 8191).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public int decodeBinary() {
+        byte[] value = binary[counter++ & 7];
+        return CharacteristicCodec.decode(MuTagProfile.DEVICE_MAJOR, value, value.length);
+    }
+
+    @Benchmark
+    public int decodeString() {
+        byte[] value = strings[counter++ & 7];
+        return Integer.parseInt(new String(value, 0, value.length, UTF_8));
+    }
+}
@@ -0,0 +1,57 @@
+package tm.nsfantom.beaconpublisher.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+
+import tm.nsfantom.beaconpublisher.service.MuTagProfile;
+import tm.nsfantom.beaconpublisher.service.MuTagUuids;
+
+/**
+ * Characteristic lookup for a GATT request in the generated profile index, compared with the
+ * UUID.equals chain it replaced.
+ * Requests carry fresh UUID instances, as they do when they arrive over binder.
+ */
+@State(Scope.Thread)
+public class CharacteristicDispatchBenchmark {
+
+    private static final UUID[] PROFILE = {
+            MuTagUuids.DEVICE_NAME,
+            MuTagUuids.DEVICE_MAJOR,
+            MuTagUuids.DEVICE_MINOR,
+            MuTagUuids.TAG_COLOR,
+            MuTagUuids.MODEL_NUMBER_STRING,
+            MuTagUuids.FIRMWARE_REVISION_STRING,
+            MuTagUuids.SYSTEM_ID,
+            MuTagUuids.BATTERY_LEVEL,
+    };
+
+    private final UUID[] registered = new UUID[PROFILE.length];
+    private final UUID[] requests = new UUID[PROFILE.length];
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < PROFILE.length; i++) {
+            registered[i] = PROFILE[i];
+            requests[i] = new UUID(PROFILE[i].getMostSignificantBits(), PROFILE[i].getLeastSignificantBits());
+        }
+    }
+
+    @Benchmark
+    public int profileLookup() {
+        return MuTagProfile.indexOf(requests[counter++ & 7]);
+    }
+
+    @Benchmark
+    public int equalsChain() {
+        UUID request = requests[counter++ & 7];
+        for (int i = 0; i < registered.length; i++) {
+            if (request.equals(registered[i])) return i;
+        }
+        return -1;
+    }
+}
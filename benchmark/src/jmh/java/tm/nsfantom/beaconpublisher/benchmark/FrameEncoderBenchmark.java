@@ -0,0 +1,55 @@
+package tm.nsfantom.beaconpublisher.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import tm.nsfantom.beaconpublisher.util.BeaconFrameEncoder;
+import tm.nsfantom.beaconpublisher.util.EddystoneFrameEncoder;
+
+/**
+ * iBeacon manufacturer data encoding, compared with the ByteBuffer code it replaced, and
+ * refreshing the counters of an Eddystone TLM frame.
+ */
+@State(Scope.Thread)
+public class FrameEncoderBenchmark {
+
+    private final UUID uuid = UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E");
+    private final BeaconFrameEncoder encoder = BeaconFrameEncoder.iBeacon(uuid);
+    private final EddystoneFrameEncoder tlm = EddystoneFrameEncoder.tlm();
+    private int counter;
+
+    @Benchmark
+    public byte[] encode() {
+        int value = counter++;
+        return encoder.encode(value & 0xFFFF, value >>> 16, (byte) 0xc5);
+    }
+
+    @Benchmark
+    public byte[] encodeFromScratch() {
+        int value = counter++;
+        return BeaconFrameEncoder.iBeacon(uuid).encode(value & 0xFFFF, value >>> 16, (byte) 0xc5);
+    }
+
+    @Benchmark
+    public byte[] encodeTelemetry() {
+        int value = counter++;
+        return tlm.encodeTelemetry(3700, EddystoneFrameEncoder.TEMPERATURE_UNKNOWN, value, value * 100L);
+    }
+
+    @Benchmark
+    public byte[] legacyByteBuffer() {
+        int value = counter++;
+        ByteBuffer bb = ByteBuffer.allocate(BeaconFrameEncoder.IBEACON_FRAME_LENGTH);
+        bb.putShort((short) 0x0215);
+        bb.putLong(uuid.getMostSignificantBits());
+        bb.putLong(uuid.getLeastSignificantBits());
+        bb.putShort((short) (value & 0xFFFF));
+        bb.putShort((short) (value >>> 16));
+        bb.put((byte) 0xc5);
+        return bb.array();
+    }
+}
@@ -0,0 +1,30 @@
+package tm.nsfantom.beaconpublisher.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import tm.nsfantom.beaconpublisher.util.TagColors;
+
+/**
+ * Color code to spinner position lookup used by TAG_COLOR writes.
+ */
+@State(Scope.Thread)
+public class TagColorBenchmark {
+
+    private int counter;
+
+    @Benchmark
+    public int indexOf() {
+        return TagColors.indexOf((byte) (counter++ & 0x0F));
+    }
+
+    @Benchmark
+    public int linearScan() {
+        byte code = (byte) (counter++ & 0x0F);
+        for (int i = 0; i < TagColors.count(); i++) {
+            if (TagColors.codeAt(i) == code) return i;
+        }
+        return 0;
+    }
+}
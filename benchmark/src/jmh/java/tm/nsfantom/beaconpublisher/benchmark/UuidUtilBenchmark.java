@@ -0,0 +1,26 @@
+package tm.nsfantom.beaconpublisher.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+
+import tm.nsfantom.beaconpublisher.util.UuidUtil;
+
+@State(Scope.Thread)
+public class UuidUtilBenchmark {
+
+    private final UUID uuid = UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E");
+    private final byte[] bytes = UuidUtil.asBytes(uuid);
+
+    @Benchmark
+    public byte[] asBytes() {
+        return UuidUtil.asBytes(uuid);
+    }
+
+    @Benchmark
+    public UUID asUuid() {
+        return UuidUtil.asUuid(bytes);
+    }
+}
@@ -0,0 +1,349 @@
+package tm.nsfantom.beaconpublisher.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tm.nsfantom.beaconpublisher.ble.GattEventLoop;
+import tm.nsfantom.beaconpublisher.ble.GattServerListener;
+import tm.nsfantom.beaconpublisher.ble.GattStatus;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeBleStack;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeCentral;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeGattServer;
+import tm.nsfantom.beaconpublisher.service.GattConnection;
+import tm.nsfantom.beaconpublisher.service.MuTagGattServer;
+import tm.nsfantom.beaconpublisher.service.MuTagUuids;
+import tm.nsfantom.beaconpublisher.service.TagState;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+import tm.nsfantom.beaconpublisher.util.TagConfigStore;
+
+/**
+ * Drives N simulated centrals against {@link MuTagGattServer} on the fake stack and reports
+ * throughput, service time percentiles and lost or duplicated responses.
+ * <p>
+ * Each central runs a closed loop: it keeps {@code --window} requests outstanding and issues the
+ * next one as soon as a response arrives. A request that gets no response within
+ * {@code --timeout-ms} is counted as dropped and replaced; a response for a request that is not
+ * outstanding is counted as a duplicate.
+ * <p>
+ * With {@code --inbox} the server sits behind a {@link GattEventLoop} of that capacity, the way
+ * the app runs it; requests it refuses count as errors.
+ * <p>
+ * Options: {@code --centrals 6 --seconds 10 --warmup 2 --writes 30 --window 1 --latency-us 0
+ * --threads 1 --mtu 23 --timeout-ms 1000 --inbox 0 --notify --hgrm <prefix>}.
+ */
+public final class GattLoadGenerator {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final UUID[] TARGETS = {MuTagUuids.DEVICE_MAJOR, MuTagUuids.DEVICE_MINOR, MuTagUuids.TAG_COLOR};
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private int centrals = 6;
+    private int seconds = 10;
+    private int warmupSeconds = 2;
+    private int writePercent = 30;
+    private int window = 1;
+    private long latencyMicros;
+    private int threads = 1;
+    private int mtu = GattConnection.DEFAULT_MTU;
+    private long timeoutMillis = 1000;
+    private int inbox;
+    private boolean notify;
+    private String hgrmPrefix;
+
+    private final Recorder readRecorder = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final Recorder writeRecorder = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final MetricsRegistry serverMetrics = new MetricsRegistry();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        GattLoadGenerator generator = new GattLoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--notify".equals(arg)) {
+                notify = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--centrals":
+                    centrals = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--writes":
+                    writePercent = Integer.parseInt(value);
+                    break;
+                case "--window":
+                    window = Integer.parseInt(value);
+                    break;
+                case "--latency-us":
+                    latencyMicros = Long.parseLong(value);
+                    break;
+                case "--mtu":
+                    mtu = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--timeout-ms":
+                    timeoutMillis = Long.parseLong(value);
+                    break;
+                case "--inbox":
+                    inbox = Integer.parseInt(value);
+                    break;
+                case "--hgrm":
+                    hgrmPrefix = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+    }
+
+    private void run() throws InterruptedException, IOException {
+        ScheduledExecutorService callbacks = Executors.newScheduledThreadPool(threads);
+        FakeBleStack stack = new FakeBleStack(callbacks, latencyMicros, TimeUnit.MICROSECONDS);
+        MuTagGattServer[] server = new MuTagGattServer[1];
+        TagState initialState = new TagState(TagConfigStore.DEFAULT_DEVICE_UUID,
+                TagConfigStore.DEFAULT_DEVICE_NAME, 1, 1, 0, "loadgen");
+        server[0] = new MuTagGattServer(initialState, null,
+                new MuTagGattServer.Listener() {
+                    @Override
+                    public void onStatus(String status) {
+                    }
+
+                    @Override
+                    public void onTagStateWritten(TagState state) {
+                        if (notify) server[0].notifyTagStateChanged();
+                    }
+                }, serverMetrics);
+        ExecutorService loop = null;
+        GattServerListener listener = server[0];
+        GattEventLoop eventLoop = null;
+        if (inbox > 0) {
+            loop = Executors.newSingleThreadExecutor();
+            eventLoop = new GattEventLoop(server[0], loop, inbox, serverMetrics);
+            eventLoop.setDropListener(server[0]);
+            listener = eventLoop;
+        }
+        FakeGattServer gattServer = stack.openGattServer(listener);
+        if (eventLoop != null) eventLoop.attach(gattServer);
+        server[0].attach(gattServer);
+
+        List<Central> clients = new ArrayList<>();
+        for (int i = 0; i < centrals; i++) {
+            clients.add(new Central(gattServer.connect(String.format("02:00:00:00:00:%02X", i), "central" + i)));
+        }
+        while (server[0].getConnectionCount() < centrals) Thread.sleep(1);
+        if (mtu != GattConnection.DEFAULT_MTU) {
+            for (Central central : clients) central.central.requestMtu(mtu);
+        }
+
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+        watchdog.scheduleWithFixedDelay(() -> {
+            for (Central central : clients) central.expire();
+        }, timeoutMillis / 4, timeoutMillis / 4, TimeUnit.MILLISECONDS);
+
+        for (Central central : clients) central.start();
+        System.out.printf("%d centrals, window %d, %d%% writes, latency %d us, %d callback threads, inbox %s%n",
+                centrals, window, writePercent, latencyMicros, threads, inbox > 0 ? String.valueOf(inbox) : "off");
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        readRecorder.reset();
+        writeRecorder.reset();
+        resetCounters();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        Histogram reads = readRecorder.getIntervalHistogram();
+        Histogram writes = writeRecorder.getIntervalHistogram();
+        long elapsed = System.nanoTime() - start;
+        long done = completed.get();
+
+        running = false;
+        Thread.sleep(timeoutMillis * 2);
+        watchdog.shutdownNow();
+        for (Central central : clients) dropped.addAndGet(central.outstanding.size());
+        long trafficNanos = System.nanoTime();
+        GattConnection[] connections = server[0].getConnections();
+        gattServer.close();
+        callbacks.shutdown();
+        callbacks.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (loop != null) {
+            loop.shutdown();
+            loop.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        Histogram all = reads.copy();
+        all.add(writes);
+        double secs = elapsed / 1e9;
+        System.out.printf("throughput  %.0f req/s (%d requests in %.1f s)%n", done / secs, done, secs);
+        print("reads", reads);
+        print("writes", writes);
+        print("all", all);
+        System.out.printf("errors %d, dropped %d, duplicates %d, notifications %d%n",
+                errors.get(), dropped.get(), duplicates.get(), notifications.get());
+        for (GattConnection connection : connections) {
+            System.out.printf("%s mtu %d  in %d B  out %d B  %d B/s%n", connection.getAddress(), connection.getMtu(),
+                    connection.getBytesIn(), connection.getBytesOut(), connection.bytesPerSecond(trafficNanos));
+        }
+        System.out.println("server metrics (warmup included):");
+        serverMetrics.dump(new PrintWriter(new OutputStreamWriter(System.out, UTF_8)));
+        if (hgrmPrefix != null) {
+            write(hgrmPrefix + "-reads.hgrm", reads);
+            write(hgrmPrefix + "-writes.hgrm", writes);
+        }
+        if (dropped.get() > 0 || duplicates.get() > 0) System.exit(1);
+    }
+
+    private void resetCounters() {
+        completed.set(0);
+        errors.set(0);
+        dropped.set(0);
+        duplicates.set(0);
+        notifications.set(0);
+    }
+
+    private static void print(String name, Histogram histogram) {
+        System.out.printf("%-7s n=%-9d p50 %8.1f us  p99 %8.1f us  p999 %8.1f us  max %8.1f us%n", name,
+                histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3,
+                histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getMaxValue() / 1e3);
+    }
+
+    private static void write(String file, Histogram histogram) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8")) {
+            histogram.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    /**
+     * One simulated central and the requests it is waiting on, keyed by request id.
+     */
+    private final class Central implements FakeCentral.Observer {
+
+        private final FakeCentral central;
+        private final Map<Integer, Request> outstanding = new ConcurrentHashMap<>();
+        private final Random random = new Random();
+
+        Central(FakeCentral central) {
+            this.central = central;
+            central.setObserver(this);
+        }
+
+        void start() {
+            for (int i = 0; i < window; i++) issue();
+        }
+
+        /**
+         * Sends one request. Holds the central's lock until the request is registered, so a fast
+         * stack cannot deliver the response first.
+         */
+        synchronized void issue() {
+            if (!running) return;
+            UUID target = TARGETS[random.nextInt(TARGETS.length)];
+            boolean write = random.nextInt(100) < writePercent;
+            int value = random.nextInt(8);
+            long startNanos = System.nanoTime();
+            int requestId;
+            if (write) {
+                // a color code, or a little endian uint16
+                byte[] payload = target.equals(MuTagUuids.TAG_COLOR)
+                        ? new byte[]{(byte) (value + 1)}
+                        : new byte[]{(byte) value, 0};
+                requestId = central.write(target, payload, true);
+            } else {
+                requestId = central.read(target);
+            }
+            if (requestId >= 0) outstanding.put(requestId, new Request(startNanos, write));
+        }
+
+        @Override
+        public void onResponse(FakeCentral central, int requestId, int status, int offset, byte[] value) {
+            long now = System.nanoTime();
+            Request request;
+            synchronized (this) {
+                request = outstanding.remove(requestId);
+            }
+            if (request == null) {
+                duplicates.incrementAndGet();
+                return;
+            }
+            (request.write ? writeRecorder : readRecorder).recordValue(Math.min(now - request.startNanos, HIGHEST_TRACKABLE_NANOS));
+            if (status != GattStatus.SUCCESS || (!request.write && (value == null || value.length == 0))) {
+                errors.incrementAndGet();
+            }
+            completed.incrementAndGet();
+            issue();
+        }
+
+        /**
+         * Counts requests past the timeout as dropped and replaces them to keep the window full.
+         */
+        void expire() {
+            long limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            Iterator<Map.Entry<Integer, Request>> iterator = outstanding.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, Request> entry = iterator.next();
+                if (entry.getValue().startNanos < limit && outstanding.remove(entry.getKey()) != null) {
+                    dropped.incrementAndGet();
+                    issue();
+                }
+            }
+        }
+
+        @Override
+        public void onNotification(FakeCentral central, UUID characteristic, byte[] value) {
+            notifications.incrementAndGet();
+        }
+
+        @Override
+        public void onDisconnected(FakeCentral central) {
+        }
+    }
+
+    private static final class Request {
+        final long startNanos;
+        final boolean write;
+
+        Request(long startNanos, boolean write) {
+            this.startNanos = startNanos;
+            this.write = write;
+        }
+    }
+}
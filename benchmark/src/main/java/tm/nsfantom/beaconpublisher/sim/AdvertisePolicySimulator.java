@@ -0,0 +1,335 @@
+package tm.nsfantom.beaconpublisher.sim;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.ble.Advertisement;
+import tm.nsfantom.beaconpublisher.service.AdvertisePolicy;
+
+/**
+ * Replays a synthetic day of connections, writes, screen and battery changes through an
+ * {@link AdvertisePolicy} and a fixed setting side by side, and reports the estimated trade-off
+ * between discovery latency and advertising energy.
+ * <p>
+ * The radio model is deliberately simple and only good for comparing policies: advertising
+ * intervals and TX power levels are the nominal Android values, charge per advertising event is a
+ * fixed overhead plus three channel transmissions at a per-level current, and discovery latency is
+ * a Monte Carlo estimate against an Android scanner that listens on one channel per scan window,
+ * with log-distance path loss and log-normal shadowing deciding whether a packet is heard.
+ * <p>
+ * Options: {@code --hours 24 --base-mode 1 --base-power 1 --battery 100 --drain-per-hour 4
+ * --sessions-per-hour 2 --session-minutes 2 --writes-per-session 3 --screen-on 25
+ * --scan-mode balanced --distance-m 5 --seed 1}.
+ */
+public final class AdvertisePolicySimulator {
+
+    /**
+     * Nominal intervals of {@code AdvertiseSettings} modes, indexed by mode.
+     */
+    private static final int[] INTERVAL_MILLIS = {1000, 250, 100};
+    /**
+     * Nominal output of {@code AdvertiseSettings} power levels, indexed by level.
+     */
+    private static final int[] TX_POWER_DBM = {-21, -15, -7, 1};
+    private static final double[] TX_CURRENT_MA = {4.0, 5.0, 6.5, 9.5};
+    private static final double PACKET_AIRTIME_MS = 0.376;
+    private static final double EVENT_OVERHEAD_UC = 5.0;
+    /**
+     * Maximum random delay the link layer adds to every advertising interval.
+     */
+    private static final double ADV_DELAY_MS = 10.0;
+
+    private static final double PATH_LOSS_1M_DB = 40.0;
+    private static final double PATH_LOSS_EXPONENT = 2.5;
+    private static final double SHADOWING_SIGMA_DB = 6.0;
+    private static final double SENSITIVITY_DBM = -90.0;
+
+    private static final int DISCOVERY_TRIALS = 2000;
+    private static final double DISCOVERY_GIVE_UP_MS = 60_000;
+    private static final long STEP_MILLIS = 1000;
+    private static final double SCREEN_ON_MEAN_MINUTES = 3;
+
+    private int hours = 24;
+    private int baseMode = Advertisement.MODE_BALANCED;
+    private int basePower = Advertisement.TX_POWER_LOW;
+    private double battery = 100;
+    private double drainPerHour = 4;
+    private double sessionsPerHour = 2;
+    private double sessionMinutes = 2;
+    private int writesPerSession = 3;
+    private int screenOnPercent = 25;
+    private String scanMode = "balanced";
+    private double distanceMeters = 5;
+    private long seed = 1;
+
+    /**
+     * Estimated cost and discovery latency of one setting, indexed by mode and power level.
+     */
+    private final Estimate[][] estimates = new Estimate[INTERVAL_MILLIS.length][TX_POWER_DBM.length];
+
+    public static void main(String[] args) {
+        AdvertisePolicySimulator simulator = new AdvertisePolicySimulator();
+        simulator.parse(args);
+        simulator.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--hours":
+                    hours = Integer.parseInt(value);
+                    break;
+                case "--base-mode":
+                    baseMode = Integer.parseInt(value);
+                    break;
+                case "--base-power":
+                    basePower = Integer.parseInt(value);
+                    break;
+                case "--battery":
+                    battery = Double.parseDouble(value);
+                    break;
+                case "--drain-per-hour":
+                    drainPerHour = Double.parseDouble(value);
+                    break;
+                case "--sessions-per-hour":
+                    sessionsPerHour = Double.parseDouble(value);
+                    break;
+                case "--session-minutes":
+                    sessionMinutes = Double.parseDouble(value);
+                    break;
+                case "--writes-per-session":
+                    writesPerSession = Integer.parseInt(value);
+                    break;
+                case "--screen-on":
+                    screenOnPercent = Integer.parseInt(value);
+                    break;
+                case "--scan-mode":
+                    scanMode = value;
+                    break;
+                case "--distance-m":
+                    distanceMeters = Double.parseDouble(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (screenOnPercent <= 0 || screenOnPercent >= 100) {
+            throw new IllegalArgumentException("--screen-on must be between 1 and 99");
+        }
+    }
+
+    private void run() {
+        double[] scan = scanWindow(scanMode);
+        Random random = new Random(seed);
+        System.out.printf("scanner %s (window %.0f ms / interval %.0f ms), distance %.1f m%n",
+                scanMode, scan[0], scan[1], distanceMeters);
+        System.out.println("mode power  interval   dBm  p(heard)  current   discovery mean    p95");
+        for (int mode = 0; mode < INTERVAL_MILLIS.length; mode++) {
+            for (int power = 0; power < TX_POWER_DBM.length; power++) {
+                Estimate estimate = estimate(mode, power, scan, random);
+                estimates[mode][power] = estimate;
+                System.out.printf("%4d %5d  %5d ms  %4d  %8.2f  %5.1f uA  %11.0f ms  %5.0f ms%n", mode, power,
+                        INTERVAL_MILLIS[mode], TX_POWER_DBM[power], estimate.heardProbability,
+                        estimate.currentMicroAmps, estimate.meanDiscoveryMillis, estimate.p95DiscoveryMillis);
+            }
+        }
+
+        AdvertisePolicy.Setting base = new AdvertisePolicy.Setting(baseMode, basePower);
+        AdvertisePolicy policy = new AdvertisePolicy(base);
+        Tally adaptive = new Tally("adaptive");
+        Tally fixed = new Tally("fixed");
+        simulate(policy, base, adaptive, fixed, new Random(seed + 1));
+        System.out.printf("%n%d h, base %s, %.1f sessions/h, %d%% screen on, battery %.0f%% -%.1f%%/h%n",
+                hours, base, sessionsPerHour, screenOnPercent, battery, drainPerHour);
+        fixed.print(0);
+        adaptive.print(policy.getChanges());
+    }
+
+    /**
+     * Steps the scenario once per second; both policies see exactly the same events.
+     */
+    private void simulate(AdvertisePolicy policy, AdvertisePolicy.Setting base, Tally adaptive, Tally fixed,
+                          Random random) {
+        long steps = TimeUnit.HOURS.toMillis(hours) / STEP_MILLIS;
+        double stepHours = STEP_MILLIS / 3_600_000.0;
+        double sessionProbability = sessionsPerHour * stepHours;
+        long sessionSteps = Math.max(1, (long) (sessionMinutes * 60_000 / STEP_MILLIS));
+        double screenOnMean = SCREEN_ON_MEAN_MINUTES * 60_000 / STEP_MILLIS;
+        double screenOffMean = screenOnMean * (100 - screenOnPercent) / screenOnPercent;
+
+        long sessionEnd = -1;
+        long[] writeSteps = new long[0];
+        boolean screenOn = false;
+        long screenToggle = 0;
+        double level = battery;
+        long lastWrite = Long.MIN_VALUE / 2;
+        for (long step = 0; step < steps; step++) {
+            long nowNanos = TimeUnit.MILLISECONDS.toNanos(step * STEP_MILLIS);
+            if (step >= screenToggle) {
+                screenOn = !screenOn;
+                screenToggle = step + 1 + (long) (-Math.log(1 - random.nextDouble())
+                        * (screenOn ? screenOnMean : screenOffMean));
+                policy.setScreenOn(screenOn);
+            }
+            boolean connected = step < sessionEnd;
+            if (!connected && random.nextDouble() < sessionProbability) {
+                sessionEnd = step + sessionSteps;
+                writeSteps = new long[writesPerSession];
+                for (int i = 0; i < writeSteps.length; i++) {
+                    writeSteps[i] = step + (long) (random.nextDouble() * sessionSteps);
+                }
+                connected = true;
+            }
+            for (long writeStep : writeSteps) {
+                if (writeStep == step) {
+                    policy.onWrite(nowNanos);
+                    lastWrite = step;
+                }
+            }
+            level = Math.max(0, level - drainPerHour * stepHours);
+            policy.setConnections(connected ? 1 : 0);
+            policy.setBattery((int) level, false);
+            policy.update(nowNanos);
+
+            boolean reconnectWindow = !connected
+                    && step - lastWrite < AdvertisePolicy.DEFAULT_WRITE_WINDOW_MILLIS / STEP_MILLIS;
+            adaptive.add(policy.getCurrent(), connected, reconnectWindow);
+            fixed.add(base, connected, reconnectWindow);
+        }
+    }
+
+    private Estimate estimate(int mode, int power, double[] scan, Random random) {
+        double intervalMillis = INTERVAL_MILLIS[mode] + ADV_DELAY_MS / 2;
+        double chargePerEvent = EVENT_OVERHEAD_UC + 3 * PACKET_AIRTIME_MS * TX_CURRENT_MA[power];
+        double heard = heardProbability(TX_POWER_DBM[power]);
+        double[] latencies = new double[DISCOVERY_TRIALS];
+        double sum = 0;
+        for (int trial = 0; trial < DISCOVERY_TRIALS; trial++) {
+            latencies[trial] = discover(INTERVAL_MILLIS[mode], heard, scan[0], scan[1], random);
+            sum += latencies[trial];
+        }
+        Arrays.sort(latencies);
+        return new Estimate(heard, chargePerEvent * 1000 / intervalMillis, sum / DISCOVERY_TRIALS,
+                latencies[(int) (DISCOVERY_TRIALS * 0.95)]);
+    }
+
+    /**
+     * Time until the first advertising packet is heard by a scanner that starts at a random phase.
+     * The scanner rotates through the three advertising channels, one per window, and every
+     * advertising event sends one packet on each channel, so each event inside a window counts.
+     */
+    private static double discover(int intervalMillis, double heard, double window, double interval,
+                                   Random random) {
+        double scanPhase = random.nextDouble() * interval;
+        double t = random.nextDouble() * intervalMillis;
+        while (t < DISCOVERY_GIVE_UP_MS) {
+            double inCycle = (t + scanPhase) % interval;
+            if (inCycle < window && random.nextDouble() < heard) return t;
+            t += intervalMillis + random.nextDouble() * ADV_DELAY_MS;
+        }
+        return DISCOVERY_GIVE_UP_MS;
+    }
+
+    private double heardProbability(int txPowerDbm) {
+        double pathLoss = PATH_LOSS_1M_DB + 10 * PATH_LOSS_EXPONENT * Math.log10(Math.max(distanceMeters, 0.1));
+        double margin = txPowerDbm - pathLoss - SENSITIVITY_DBM;
+        return normalCdf(margin / SHADOWING_SIGMA_DB);
+    }
+
+    /**
+     * Scan window and interval in milliseconds of the Android scan modes.
+     */
+    private static double[] scanWindow(String scanMode) {
+        switch (scanMode) {
+            case "low-power":
+                return new double[]{512, 5120};
+            case "balanced":
+                return new double[]{1024, 4096};
+            case "low-latency":
+                return new double[]{4096, 4096};
+            default:
+                throw new IllegalArgumentException("unknown scan mode " + scanMode);
+        }
+    }
+
+    /**
+     * Abramowitz and Stegun 7.1.26, plenty for a probability that feeds a rough model.
+     */
+    private static double normalCdf(double x) {
+        double z = Math.abs(x) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * z);
+        double erf = 1 - ((((1.061405429 * t - 1.453152027) * t + 1.421413741) * t - 0.284496736) * t
+                + 0.254829592) * t * Math.exp(-z * z);
+        return x >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+
+    private static final class Estimate {
+        final double heardProbability;
+        final double currentMicroAmps;
+        final double meanDiscoveryMillis;
+        final double p95DiscoveryMillis;
+
+        Estimate(double heardProbability, double currentMicroAmps, double meanDiscoveryMillis,
+                 double p95DiscoveryMillis) {
+            this.heardProbability = heardProbability;
+            this.currentMicroAmps = currentMicroAmps;
+            this.meanDiscoveryMillis = meanDiscoveryMillis;
+            this.p95DiscoveryMillis = p95DiscoveryMillis;
+        }
+    }
+
+    /**
+     * Time-weighted totals of one policy over the run.
+     */
+    private final class Tally {
+        final String name;
+        final long[][] steps = new long[INTERVAL_MILLIS.length][TX_POWER_DBM.length];
+        double charge;
+        double discovery;
+        long discoverable;
+        double reconnect;
+        long reconnectSteps;
+
+        Tally(String name) {
+            this.name = name;
+        }
+
+        void add(AdvertisePolicy.Setting setting, boolean connected, boolean reconnectWindow) {
+            Estimate estimate = estimates[setting.mode][setting.txPowerLevel];
+            steps[setting.mode][setting.txPowerLevel]++;
+            charge += estimate.currentMicroAmps * STEP_MILLIS / 1000;
+            if (connected) return;
+            discovery += estimate.meanDiscoveryMillis;
+            discoverable++;
+            if (reconnectWindow) {
+                reconnect += estimate.meanDiscoveryMillis;
+                reconnectSteps++;
+            }
+        }
+
+        void print(long changes) {
+            long total = 0;
+            for (long[] row : steps) {
+                for (long count : row) total += count;
+            }
+            double seconds = total * STEP_MILLIS / 1000.0;
+            System.out.printf("%-8s %6.1f uA avg  %6.3f mAh  discovery %5.0f ms  after write %5.0f ms  %d re-advertises%n",
+                    name, charge / seconds, charge / 3_600_000, discoverable == 0 ? 0 : discovery / discoverable,
+                    reconnectSteps == 0 ? 0 : reconnect / reconnectSteps, changes);
+            for (int mode = 0; mode < steps.length; mode++) {
+                for (int power = 0; power < steps[mode].length; power++) {
+                    if (steps[mode][power] == 0) continue;
+                    System.out.printf("         mode %d power %d  %5.1f%% of the time%n", mode, power,
+                            100.0 * steps[mode][power] / total);
+                }
+            }
+        }
+    }
+}
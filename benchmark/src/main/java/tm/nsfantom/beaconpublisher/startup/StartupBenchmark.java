@@ -0,0 +1,211 @@
+package tm.nsfantom.beaconpublisher.startup;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.ble.Advertisement;
+import tm.nsfantom.beaconpublisher.ble.BleAdvertiser;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeBleStack;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeGattServer;
+import tm.nsfantom.beaconpublisher.service.MuTagGattServer;
+import tm.nsfantom.beaconpublisher.service.MuTagUuids;
+import tm.nsfantom.beaconpublisher.service.TagState;
+import tm.nsfantom.beaconpublisher.util.BeaconFrameEncoder;
+import tm.nsfantom.beaconpublisher.util.Preload;
+import tm.nsfantom.beaconpublisher.util.TagConfigStore;
+
+/**
+ * Time from JVM start to the first advertisement on air, with and without preloading the tag
+ * configuration.
+ * <p>
+ * Every run is a fresh JVM, so class loading and JIT warm-up count the way they do on a cold
+ * app start. The child goes through the app's startup path on the fake stack: load the config,
+ * build the GATT server and its services, encode the frame, start advertising and wait for
+ * {@code onStartSuccess}. In {@code preload} mode the config is read on a background thread
+ * while the main thread does {@code --inflate-ms} of unrelated work, standing in for the layout
+ * inflation it overlaps with on a device, and brings up the stack.
+ * <p>
+ * Options: {@code --runs 20 --mode both|preload|sequential --inflate-ms 0}.
+ */
+public final class StartupBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String RESULT_PREFIX = "ttfa ";
+    private static final UUID[] SERVICES = {MuTagUuids.MU_TAG_CONFIGURATION_SERVICE, MuTagUuids.SILICON_LABS_OTA};
+
+    private int runs = 20;
+    private String mode = "both";
+    private long inflateMillis;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && "--child".equals(args[0])) {
+            child(Boolean.parseBoolean(args[1]), new File(args[2]), Long.parseLong(args[3]));
+            return;
+        }
+        StartupBenchmark benchmark = new StartupBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--runs":
+                    runs = Integer.parseInt(value);
+                    break;
+                case "--mode":
+                    mode = value;
+                    break;
+                case "--inflate-ms":
+                    inflateMillis = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (!"both".equals(mode) && !"preload".equals(mode) && !"sequential".equals(mode)) {
+            throw new IllegalArgumentException("unknown mode " + mode);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        File configFile = File.createTempFile("tag_config", ".bin");
+        configFile.deleteOnExit();
+        TagConfigStore store = new TagConfigStore(configFile);
+        store.edit().putMajor(9).putMinor(6).putTagColor(2).apply();
+        store.flush();
+
+        List<Boolean> modes = new ArrayList<>();
+        if (!"preload".equals(mode)) modes.add(false);
+        if (!"sequential".equals(mode)) modes.add(true);
+        Histogram[] fromMain = new Histogram[2];
+        Histogram[] fromJvm = new Histogram[2];
+        for (int i = 0; i < 2; i++) {
+            fromMain[i] = new Histogram(3);
+            fromJvm[i] = new Histogram(3);
+        }
+
+        System.out.printf("%d runs per mode, inflate %d ms%n", runs, inflateMillis);
+        // alternate so drift in machine load hits both modes alike
+        for (int run = 0; run < runs; run++) {
+            for (boolean preload : modes) {
+                long[] result = fork(preload, configFile);
+                fromMain[preload ? 1 : 0].recordValue(result[0]);
+                fromJvm[preload ? 1 : 0].recordValue(result[1]);
+            }
+        }
+        for (boolean preload : modes) {
+            report(preload ? "preload" : "sequential", fromMain[preload ? 1 : 0], fromJvm[preload ? 1 : 0]);
+        }
+    }
+
+    private long[] fork(boolean preload, File configFile) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                StartupBenchmark.class.getName(), "--child", String.valueOf(preload), configFile.getPath(),
+                String.valueOf(inflateMillis))
+                .redirectErrorStream(true)
+                .start();
+        long[] result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    String[] parts = line.substring(RESULT_PREFIX.length()).split(" ");
+                    result = new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+                } else {
+                    System.out.println("child: " + line);
+                }
+            }
+        }
+        int exit = process.waitFor();
+        if (exit != 0 || result == null) throw new IllegalStateException("child failed with exit code " + exit);
+        return result;
+    }
+
+    private static void report(String name, Histogram fromMain, Histogram fromJvm) {
+        System.out.printf("%-10s main->adv p50 %7d us  p90 %7d us  max %7d us   jvm->adv p50 %5d ms  max %5d ms%n",
+                name, fromMain.getValueAtPercentile(50), fromMain.getValueAtPercentile(90), fromMain.getMaxValue(),
+                fromJvm.getValueAtPercentile(50), fromJvm.getMaxValue());
+    }
+
+    /**
+     * One cold start; prints the time from entering main and from JVM start to the first
+     * advertisement.
+     */
+    private static void child(boolean preload, File configFile, long inflateMillis) throws Exception {
+        long started = System.nanoTime();
+        Preload<TagConfigStore> tagConfig = new Preload<>("tag_config", () -> {
+            TagConfigStore store = new TagConfigStore(configFile);
+            if (store.load() != TagConfigStore.LoadResult.LOADED) throw new IllegalStateException("no config in " + configFile);
+            return store;
+        });
+        if (preload) tagConfig.start();
+
+        if (inflateMillis > 0) Thread.sleep(inflateMillis);
+        ScheduledExecutorService callbacks = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "callbacks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        FakeBleStack stack = new FakeBleStack(callbacks, 0, TimeUnit.MICROSECONDS);
+
+        TagConfigStore config = tagConfig.get();
+        TagState state = new TagState(config.getDeviceUuid(), config.getDeviceName(), config.getMajor(),
+                config.getMinor(), config.getTagColor(), "startup");
+        MuTagGattServer muTagServer = new MuTagGattServer(state, config, new MuTagGattServer.Listener() {
+            @Override
+            public void onStatus(String status) {
+            }
+
+            @Override
+            public void onTagStateWritten(TagState tagState) {
+            }
+        });
+        FakeGattServer gattServer = stack.openGattServer(muTagServer);
+        for (UUID service : SERVICES) {
+            gattServer.addService(service);
+        }
+        muTagServer.attach(gattServer);
+
+        Advertisement advertisement = new Advertisement.Builder()
+                .setTxPowerLevel(Advertisement.TX_POWER_LOW)
+                .setConnectable(true)
+                .setMode(Advertisement.MODE_BALANCED)
+                .setManufacturerData(0x004C, BeaconFrameEncoder.iBeacon(state.deviceUuid)
+                        .encode(state.major, state.minor, (byte) 0xc5))
+                .build();
+        CountDownLatch onAir = new CountDownLatch(1);
+        stack.getAdvertiser().startAdvertising(advertisement, new BleAdvertiser.Callback() {
+            @Override
+            public void onStartSuccess(Advertisement inEffect) {
+                onAir.countDown();
+            }
+
+            @Override
+            public void onStartFailure(int errorCode) {
+                throw new IllegalStateException("advertising failed: " + errorCode);
+            }
+        });
+        if (!onAir.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("advertisement never started");
+        long mainMicros = (System.nanoTime() - started) / 1000;
+        long jvmMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.out.println(RESULT_PREFIX + mainMicros + " " + jvmMillis);
+    }
+}
@@ -0,0 +1,339 @@
+package tm.nsfantom.beaconpublisher.gradle
+
+import groovy.json.JsonParserType
+import groovy.json.JsonSlurper
+
+/**
+ * Turns the declarative GATT profile into Java sources: {@code MuTagUuids} with the UUID
+ * constants and {@code MuTagProfile} with a flat characteristic table and an open addressing
+ * UUID-to-index table that is laid out here, so the app does no parsing, hashing or reflection
+ * at runtime.
+ * <p>
+ * Kept free of the Gradle API so it can be run and checked on its own.
+ */
+class GattProfileGenerator {
+
+    static final Map<String, Integer> PROPERTIES = [read: 0x02, write_no_response: 0x04, write: 0x08, notify: 0x10]
+    static final Map<String, Integer> PERMISSIONS = [read: 0x01, write: 0x10]
+    static final List<String> CODECS = ['utf8', 'uint8', 'int8', 'uint16', 'uuid', 'bytes']
+
+    private final Map profile
+    private final String source
+    private final List<Map> services = []
+    private final List<Map> characteristics = []
+
+    GattProfileGenerator(File profileFile) {
+        source = profileFile.name
+        // the lax parser allows comments but returns read-only maps; derived values are added below
+        profile = (Map) mutableCopy(new JsonSlurper().setType(JsonParserType.LAX).parse(profileFile))
+        validate()
+    }
+
+    /**
+     * Writes both classes below {@code outputDir}, in directories matching the package.
+     */
+    void generate(File outputDir) {
+        String pkg = profile.package
+        File dir = new File(outputDir, pkg.replace('.', '/'))
+        dir.mkdirs()
+        new File(dir, 'MuTagUuids.java').setText(uuidsClass(pkg), 'UTF-8')
+        new File(dir, 'MuTagProfile.java').setText(profileClass(pkg), 'UTF-8')
+    }
+
+    private void validate() {
+        if (!(profile.package instanceof String)) fail('missing package')
+        Set<String> constants = new HashSet<>()
+        Set<UUID> uuids = new HashSet<>()
+        Set<String> names = new HashSet<>()
+        (profile.descriptors ?: []).each { Map descriptor ->
+            checkConstant(descriptor, constants)
+            checkUuid(descriptor, uuids)
+        }
+        profile.services.each { Map service ->
+            checkConstant(service, constants)
+            checkUuid(service, uuids)
+            service.first = characteristics.size()
+            service.characteristics.each { Map characteristic ->
+                String where = "characteristic $characteristic.constant"
+                checkConstant(characteristic, constants)
+                checkUuid(characteristic, uuids)
+                if (!names.add(characteristic.name as String)) fail("$where: duplicate name $characteristic.name")
+                characteristic.propertyBits = bits(characteristic.properties, PROPERTIES, where)
+                characteristic.permissionBits = bits(characteristic.permissions, PERMISSIONS, where)
+                if (!CODECS.contains(characteristic.codec)) fail("$where: unknown codec $characteristic.codec")
+                String length = characteristic.maxLength.toString()
+                def matcher = length =~ /^(\d+)(?:\+(\d+))?$/
+                if (!matcher.matches()) fail("$where: bad maxLength $length")
+                int trailer = matcher.group(2) ? matcher.group(2) as int : 0
+                characteristic.trailer = trailer
+                characteristic.max = (matcher.group(1) as int) + trailer
+                if (characteristic.max > 512) fail("$where: maxLength above 512")
+                characteristic.service = services.size()
+                characteristics << characteristic
+            }
+            service.end = characteristics.size()
+            services << service
+        }
+    }
+
+    private static Object mutableCopy(Object value) {
+        if (value instanceof Map) {
+            Map copy = new LinkedHashMap()
+            value.each { key, entry -> copy[key] = mutableCopy(entry) }
+            return copy
+        }
+        if (value instanceof List) return value.collect { mutableCopy(it) }
+        return value
+    }
+
+    private void checkConstant(Map entry, Set<String> constants) {
+        if (!(entry.constant ==~ /[A-Z][A-Z0-9_]*/)) fail("bad constant name $entry.constant")
+        if (!constants.add(entry.constant as String)) fail("duplicate constant $entry.constant")
+    }
+
+    private void checkUuid(Map entry, Set<UUID> uuids) {
+        UUID uuid
+        try {
+            uuid = UUID.fromString(entry.uuid as String)
+        } catch (IllegalArgumentException ignored) {
+            fail("$entry.constant: bad uuid $entry.uuid")
+        }
+        if (!uuids.add(uuid)) fail("$entry.constant: uuid $uuid is already used")
+        entry.msb = uuid.mostSignificantBits
+        entry.lsb = uuid.leastSignificantBits
+    }
+
+    private int bits(List values, Map<String, Integer> known, String where) {
+        int result = 0
+        values.each { value ->
+            if (!known.containsKey(value)) fail("$where: unknown flag $value")
+            result |= known[value]
+        }
+        return result
+    }
+
+    private void fail(String message) {
+        throw new IllegalArgumentException("$source: $message")
+    }
+
+    private String uuidsClass(String pkg) {
+        StringBuilder out = new StringBuilder()
+        out << header(pkg)
+        out << 'import java.util.UUID;\n\n'
+        out << '/**\n'
+        out << ' * Service, characteristic and descriptor UUIDs of the Mu Tag GATT profile as plain {@link UUID}s,\n'
+        out << ' * for code that runs without Android. {@code InformuMuTagProfile} exposes the same values as\n'
+        out << ' * ParcelUuid.\n'
+        out << ' */\n'
+        out << 'public final class MuTagUuids {\n'
+        profile.services.each { Map service ->
+            out << '\n'
+            out << uuidConstant(service)
+            service.characteristics.each { out << uuidConstant(it) }
+        }
+        out << '\n'
+        (profile.descriptors ?: []).each { out << uuidConstant(it) }
+        out << '''
+    private MuTagUuids() {
+    }
+
+    /**
+     * Short lowercase name of a known characteristic for logs and metric names, otherwise the UUID.
+     */
+    public static String name(UUID characteristic) {
+        int index = MuTagProfile.indexOf(characteristic);
+        return index >= 0 ? MuTagProfile.name(index) : characteristic.toString();
+    }
+}
+'''
+        return out.toString()
+    }
+
+    private static String uuidConstant(Map entry) {
+        return "    public static final UUID ${entry.constant} = new UUID(${hex(entry.msb)}, ${hex(entry.lsb)});\n"
+    }
+
+    private String profileClass(String pkg) {
+        int tableSize = 2
+        while (tableSize < characteristics.size() * 2) tableSize <<= 1
+        int[] table = new int[tableSize]
+        Arrays.fill(table, -1)
+        characteristics.eachWithIndex { Map characteristic, int index ->
+            int slot = hash(characteristic.msb as long, characteristic.lsb as long) & (tableSize - 1)
+            while (table[slot] >= 0) slot = (slot + 1) & (tableSize - 1)
+            table[slot] = index
+        }
+
+        StringBuilder out = new StringBuilder()
+        out << header(pkg)
+        out << 'import java.util.UUID;\n\n'
+        out << '''/**
+ * The Mu Tag GATT profile as flat tables indexed by characteristic, in the order of the profile.
+ * <p>
+ * {@link #indexOf(UUID)} finds a characteristic in an open addressing table that is laid out at
+ * build time: a lookup hashes the two halves of the UUID and compares longs, it never allocates
+ * or calls {@code UUID.equals}. Property and permission bits have the values of
+ * {@code BluetoothGattCharacteristic}. Services are indexed too, and own the characteristics
+ * from {@link #firstCharacteristic(int)} up to {@link #endCharacteristic(int)}.
+ */
+public final class MuTagProfile {
+
+'''
+        PROPERTIES.each { name, bit -> out << "    public static final int PROPERTY_${name.toUpperCase()} = ${hex8(bit)};\n" }
+        PERMISSIONS.each { name, bit -> out << "    public static final int PERMISSION_${name.toUpperCase()} = ${hex8(bit)};\n" }
+        out << '\n'
+        CODECS.eachWithIndex { codec, index -> out << "    public static final int CODEC_${codec.toUpperCase()} = $index;\n" }
+        out << '\n'
+        out << "    public static final int SERVICE_COUNT = ${services.size()};\n"
+        services.eachWithIndex { service, index -> out << "    public static final int ${service.constant} = $index;\n" }
+        out << '\n'
+        out << "    public static final int CHARACTERISTIC_COUNT = ${characteristics.size()};\n"
+        characteristics.eachWithIndex { characteristic, index ->
+            out << "    public static final int ${characteristic.constant} = $index;\n"
+        }
+        out << '\n'
+        out << array('UUID', 'SERVICE_UUIDS', services.collect { "MuTagUuids.$it.constant" })
+        out << array('boolean', 'SERVICE_PUBLISHED', services.collect { it.published == false ? 'false' : 'true' })
+        out << array('int', 'SERVICE_FIRST', services.collect { "$it.first" })
+        out << array('int', 'SERVICE_END', services.collect { "$it.end" })
+        out << '\n'
+        out << array('UUID', 'UUIDS', characteristics.collect { "MuTagUuids.$it.constant" })
+        out << array('long', 'UUID_MSB', characteristics.collect { hex(it.msb) })
+        out << array('long', 'UUID_LSB', characteristics.collect { hex(it.lsb) })
+        out << array('String', 'NAMES', characteristics.collect { "\"$it.name\"" })
+        out << array('int', 'SERVICE', characteristics.collect { "$it.service" })
+        out << array('int', 'PROPERTIES', characteristics.collect { hex8(it.propertyBits) })
+        out << array('int', 'PERMISSIONS', characteristics.collect { hex8(it.permissionBits) })
+        out << array('int', 'CODEC', characteristics.collect { "CODEC_${it.codec.toUpperCase()}" })
+        out << array('int', 'MAX_LENGTH', characteristics.collect { "$it.max" })
+        out << array('int', 'TRAILER', characteristics.collect { "$it.trailer" })
+        out << array('boolean', 'CCCD', characteristics.collect { it.cccd ? 'true' : 'false' })
+        out << '\n'
+        out << '    /** Characteristic index by hash slot, -1 for an empty slot. */\n'
+        out << array('int', 'TABLE', table.collect { "$it" })
+        out << "    private static final int MASK = ${tableSize - 1};\n"
+        out << '''
+    private MuTagProfile() {
+    }
+
+    /**
+     * Index of {@code characteristic}, or -1 if it is not part of the profile.
+     */
+    public static int indexOf(UUID characteristic) {
+        return indexOf(characteristic.getMostSignificantBits(), characteristic.getLeastSignificantBits());
+    }
+
+    public static int indexOf(long msb, long lsb) {
+        for (int slot = hash(msb, lsb) & MASK; ; slot = (slot + 1) & MASK) {
+            int index = TABLE[slot];
+            if (index < 0 || UUID_MSB[index] == msb && UUID_LSB[index] == lsb) return index;
+        }
+    }
+
+    public static UUID uuid(int characteristic) {
+        return UUIDS[characteristic];
+    }
+
+    /**
+     * Short lowercase name for logs and metric names.
+     */
+    public static String name(int characteristic) {
+        return NAMES[characteristic];
+    }
+
+    public static int service(int characteristic) {
+        return SERVICE[characteristic];
+    }
+
+    public static int properties(int characteristic) {
+        return PROPERTIES[characteristic];
+    }
+
+    public static int permissions(int characteristic) {
+        return PERMISSIONS[characteristic];
+    }
+
+    /**
+     * One of the {@code CODEC_} constants.
+     */
+    public static int codec(int characteristic) {
+        return CODEC[characteristic];
+    }
+
+    /**
+     * Longest value a central may write, the optional trailer included.
+     */
+    public static int maxLength(int characteristic) {
+        return MAX_LENGTH[characteristic];
+    }
+
+    /**
+     * Length of the optional trailer that may follow the value, 0 if there is none.
+     */
+    public static int trailerLength(int characteristic) {
+        return TRAILER[characteristic];
+    }
+
+    /**
+     * True if the characteristic carries a client characteristic configuration descriptor.
+     */
+    public static boolean hasCccd(int characteristic) {
+        return CCCD[characteristic];
+    }
+
+    public static UUID serviceUuid(int service) {
+        return SERVICE_UUIDS[service];
+    }
+
+    /**
+     * False for services the platform provides itself; those are described but not added.
+     */
+    public static boolean isPublished(int service) {
+        return SERVICE_PUBLISHED[service];
+    }
+
+    public static int firstCharacteristic(int service) {
+        return SERVICE_FIRST[service];
+    }
+
+    public static int endCharacteristic(int service) {
+        return SERVICE_END[service];
+    }
+
+    private static int hash(long msb, long lsb) {
+        // The profile UUIDs share a base and differ in a few low bits of either half,
+        // so fold both halves and spread them before masking.
+        long h = msb ^ lsb;
+        int x = (int) (h ^ (h >>> 32));
+        return x ^ (x >>> 16) ^ (x >>> 7);
+    }
+}
+'''
+        return out.toString()
+    }
+
+    /**
+     * Same as {@code MuTagProfile.hash}; the generated table is only valid if both agree.
+     */
+    static int hash(long msb, long lsb) {
+        long h = msb ^ lsb
+        int x = (int) (h ^ (h >>> 32))
+        return x ^ (x >>> 16) ^ (x >>> 7)
+    }
+
+    private String header(String pkg) {
+        return "// Generated from ${source} by :core:generateGattProfile. Do not edit.\npackage ${pkg};\n\n"
+    }
+
+    private static String array(String type, String name, List<String> values) {
+        return "    private static final ${type}[] ${name} = {${values.join(', ')}};\n"
+    }
+
+    private static String hex(Object value) {
+        return String.format('0x%016XL', value as long)
+    }
+
+    private static String hex8(Object value) {
+        return String.format('0x%02X', value as int)
+    }
+}
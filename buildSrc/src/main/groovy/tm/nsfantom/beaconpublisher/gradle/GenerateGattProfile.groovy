@@ -0,0 +1,24 @@
+package tm.nsfantom.beaconpublisher.gradle
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Generates the GATT profile classes from a profile description, see {@link GattProfileGenerator}.
+ */
+class GenerateGattProfile extends DefaultTask {
+
+    @InputFile
+    File profile
+
+    @OutputDirectory
+    File outputDir
+
+    @TaskAction
+    void generate() {
+        project.delete(outputDir)
+        new GattProfileGenerator(profile).generate(outputDir)
+    }
+}
@@ -0,0 +1,124 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+/**
+ * Advertising parameters and a payload of manufacturer data and/or service data of a 16-bit
+ * service UUID, which is listed as complete service UUID as well. Mode and power constants match
+ * {@code android.bluetooth.le.AdvertiseSettings}. Build once and reuse; adapters may cache the
+ * platform objects they derive from an instance.
+ */
+public final class Advertisement {
+
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public static final int TX_POWER_ULTRA_LOW = 0;
+    public static final int TX_POWER_LOW = 1;
+    public static final int TX_POWER_MEDIUM = 2;
+    public static final int TX_POWER_HIGH = 3;
+
+    public final int mode;
+    public final int txPowerLevel;
+    public final boolean connectable;
+    public final int timeoutMillis;
+    public final int manufacturerId;
+    public final byte[] manufacturerData;
+    /**
+     * 16-bit service UUID of {@link #serviceData}, -1 for none.
+     */
+    public final int serviceUuid;
+    public final byte[] serviceData;
+
+    private Advertisement(Builder builder) {
+        this.mode = builder.mode;
+        this.txPowerLevel = builder.txPowerLevel;
+        this.connectable = builder.connectable;
+        this.timeoutMillis = builder.timeoutMillis;
+        this.manufacturerId = builder.manufacturerId;
+        this.manufacturerData = builder.manufacturerData;
+        this.serviceUuid = builder.serviceUuid;
+        this.serviceData = builder.serviceData;
+    }
+
+    public Builder buildUpon() {
+        return new Builder()
+                .setMode(mode)
+                .setTxPowerLevel(txPowerLevel)
+                .setConnectable(connectable)
+                .setTimeout(timeoutMillis)
+                .setManufacturerData(manufacturerId, manufacturerData)
+                .setServiceData(serviceUuid, serviceData);
+    }
+
+    /**
+     * Bytes the payload takes in a legacy advertising packet, including the flags a connectable
+     * or discoverable advertisement carries.
+     */
+    public int payloadLength() {
+        int length = 3;
+        if (manufacturerData != null) length += 4 + manufacturerData.length;
+        if (serviceData != null) length += 4 + 4 + serviceData.length;
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "Advertisement{mode=" + mode + ", txPower=" + txPowerLevel + ", connectable=" + connectable
+                + ", timeout=" + timeoutMillis + ", manufacturerId=" + manufacturerId
+                + ", serviceUuid=" + (serviceUuid < 0 ? "none" : Integer.toHexString(serviceUuid)) + "}";
+    }
+
+    public static final class Builder {
+        private int mode = MODE_LOW_POWER;
+        private int txPowerLevel = TX_POWER_MEDIUM;
+        private boolean connectable = true;
+        private int timeoutMillis;
+        private int manufacturerId = -1;
+        private byte[] manufacturerData;
+        private int serviceUuid = -1;
+        private byte[] serviceData;
+
+        public Builder setMode(int mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public Builder setTxPowerLevel(int txPowerLevel) {
+            this.txPowerLevel = txPowerLevel;
+            return this;
+        }
+
+        public Builder setConnectable(boolean connectable) {
+            this.connectable = connectable;
+            return this;
+        }
+
+        public Builder setTimeout(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * The array is kept by reference; copy it first if the caller keeps mutating it.
+         */
+        public Builder setManufacturerData(int manufacturerId, byte[] manufacturerData) {
+            this.manufacturerId = manufacturerId;
+            this.manufacturerData = manufacturerData;
+            return this;
+        }
+
+        /**
+         * Service data of a 16-bit service UUID, e.g. an Eddystone frame. The array is kept by
+         * reference, so a frame patched in place is picked up by the next (re)start.
+         */
+        public Builder setServiceData(int serviceUuid, byte[] serviceData) {
+            this.serviceUuid = serviceUuid;
+            this.serviceData = serviceData;
+            return this;
+        }
+
+        public Advertisement build() {
+            return new Advertisement(this);
+        }
+    }
+}
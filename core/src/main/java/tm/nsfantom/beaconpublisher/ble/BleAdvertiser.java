@@ -0,0 +1,35 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+/**
+ * Legacy (single payload) BLE advertiser. Each callback instance identifies one advertiser slot.
+ */
+public interface BleAdvertiser {
+
+    /**
+     * Error codes match {@code android.bluetooth.le.AdvertiseCallback}.
+     */
+    int ADVERTISE_FAILED_DATA_TOO_LARGE = 1;
+    int ADVERTISE_FAILED_TOO_MANY_ADVERTISERS = 2;
+    int ADVERTISE_FAILED_ALREADY_STARTED = 3;
+    int ADVERTISE_FAILED_INTERNAL_ERROR = 4;
+    int ADVERTISE_FAILED_FEATURE_UNSUPPORTED = 5;
+
+    interface Callback {
+        void onStartSuccess(Advertisement advertisement);
+
+        void onStartFailure(int errorCode);
+    }
+
+    void startAdvertising(Advertisement advertisement, Callback callback);
+
+    /**
+     * Replaces the advertisement of a running {@code callback} with as short an off-air gap as the
+     * platform allows. The callback sees {@code onStartSuccess} with the new advertisement once it
+     * is on air, or {@code onStartFailure}.
+     *
+     * @return false if {@code callback} is not advertising; start it instead
+     */
+    boolean updateAdvertising(Advertisement advertisement, Callback callback);
+
+    void stopAdvertising(Callback callback);
+}
@@ -0,0 +1,11 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+/**
+ * A remote central connected to the local GATT server.
+ */
+public interface BleDevice {
+
+    String getAddress();
+
+    String getName();
+}
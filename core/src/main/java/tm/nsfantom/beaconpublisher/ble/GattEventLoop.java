@@ -0,0 +1,213 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+
+/**
+ * Hands the callbacks of the stack to a {@link GattServerListener} one at a time and in arrival
+ * order, on a serial executor such as a Handler on a HandlerThread. The stack's threads only
+ * enqueue, so the listener never runs concurrently with itself.
+ * <p>
+ * At most {@code capacity} requests wait in the inbox. When it is full, a request that needs a
+ * response is answered right away with {@link GattStatus#INSUFFICIENT_RESOURCES} and the central
+ * may retry, while a write without response holds the delivering thread until there is room,
+ * which throttles the stack, and is dropped after {@value #WRITE_COMMAND_WAIT_MILLIS} ms. The
+ * central never learns of a dropped write, so the {@link DropListener} is told instead, in order
+ * with the events around it, and can abandon whatever the write was part of. Connection, MTU and
+ * notification events carry state the listener has to see and are never refused.
+ * <p>
+ * Records the inbox depth in {@code gatt.loop.depth}, the time events wait in
+ * {@code gatt.loop.queue_us}, and refused requests in {@code gatt.loop.rejected} and
+ * {@code gatt.loop.dropped}.
+ */
+public final class GattEventLoop implements GattServerListener {
+
+    /**
+     * Told about writes without response that were dropped, on the executor.
+     */
+    public interface DropListener {
+        /**
+         * @param characteristic written to, or the one whose descriptor was written
+         */
+        void onDropped(BleDevice device, UUID characteristic);
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final long WRITE_COMMAND_WAIT_MILLIS = 200;
+
+    private final GattServerListener listener;
+    private final Executor executor;
+    private final Semaphore room;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final MetricsRegistry.Gauge depth;
+    private final MetricsRegistry.Histogram queueMicros;
+    private final MetricsRegistry.Counter rejected;
+    private final MetricsRegistry.Counter dropped;
+    private volatile GattServer server;
+    private volatile DropListener dropListener;
+
+    public GattEventLoop(GattServerListener listener, Executor executor, int capacity) {
+        this(listener, executor, capacity, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * @param executor runs one task at a time, in submission order
+     */
+    public GattEventLoop(GattServerListener listener, Executor executor, int capacity, MetricsRegistry metrics) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.listener = listener;
+        this.executor = executor;
+        this.room = new Semaphore(capacity);
+        this.depth = metrics.gauge("gatt.loop.depth");
+        this.queueMicros = metrics.histogram("gatt.loop.queue_us");
+        this.rejected = metrics.counter("gatt.loop.rejected");
+        this.dropped = metrics.counter("gatt.loop.dropped");
+    }
+
+    /**
+     * Server used to refuse requests while the inbox is full. Until one is attached, requests
+     * wait for room like writes without response.
+     */
+    public void attach(GattServer server) {
+        this.server = server;
+    }
+
+    public void detach() {
+        server = null;
+    }
+
+    public void setDropListener(DropListener dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Events waiting to be handled.
+     */
+    public int getDepth() {
+        return pending.get();
+    }
+
+    @Override
+    public void onConnectionStateChange(BleDevice device, int status, int newState) {
+        enqueue(false, () -> listener.onConnectionStateChange(device, status, newState));
+    }
+
+    @Override
+    public void onServiceAdded(int status, UUID service) {
+        enqueue(false, () -> listener.onServiceAdded(status, service));
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(BleDevice device, int requestId, int offset, UUID characteristic) {
+        if (!admitRequest(device, requestId, offset)) return;
+        enqueue(true, () -> listener.onCharacteristicReadRequest(device, requestId, offset, characteristic));
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(BleDevice device, int requestId, UUID characteristic,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        if (responseNeeded ? !admitRequest(device, requestId, offset) : !admitCommand(device, characteristic)) return;
+        enqueue(true, () -> listener.onCharacteristicWriteRequest(device, requestId, characteristic,
+                preparedWrite, responseNeeded, offset, value));
+    }
+
+    @Override
+    public void onDescriptorReadRequest(BleDevice device, int requestId, int offset, UUID characteristic,
+                                        UUID descriptor) {
+        if (!admitRequest(device, requestId, offset)) return;
+        enqueue(true, () -> listener.onDescriptorReadRequest(device, requestId, offset, characteristic, descriptor));
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(BleDevice device, int requestId, UUID characteristic, UUID descriptor,
+                                         boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        if (responseNeeded ? !admitRequest(device, requestId, offset) : !admitCommand(device, characteristic)) return;
+        enqueue(true, () -> listener.onDescriptorWriteRequest(device, requestId, characteristic, descriptor,
+                preparedWrite, responseNeeded, offset, value));
+    }
+
+    @Override
+    public void onExecuteWrite(BleDevice device, int requestId, boolean execute) {
+        if (!admitRequest(device, requestId, 0)) return;
+        enqueue(true, () -> listener.onExecuteWrite(device, requestId, execute));
+    }
+
+    @Override
+    public void onNotificationSent(BleDevice device, int status) {
+        enqueue(false, () -> listener.onNotificationSent(device, status));
+    }
+
+    @Override
+    public void onMtuChanged(BleDevice device, int mtu) {
+        enqueue(false, () -> listener.onMtuChanged(device, mtu));
+    }
+
+    /**
+     * Takes a place in the inbox for a request, or answers it as refused.
+     *
+     * @return true if the request is to be queued
+     */
+    private boolean admitRequest(BleDevice device, int requestId, int offset) {
+        if (room.tryAcquire()) return true;
+        GattServer gattServer = server;
+        // nothing to answer with yet, wait like a write without response
+        if (gattServer == null) return awaitRoom();
+        rejected.inc();
+        gattServer.sendResponse(device, requestId, GattStatus.INSUFFICIENT_RESOURCES, offset, null);
+        return false;
+    }
+
+    /**
+     * Waits for a place in the inbox for a write without response, or reports it dropped.
+     *
+     * @return true if the write is to be queued
+     */
+    private boolean admitCommand(BleDevice device, UUID characteristic) {
+        if (awaitRoom()) return true;
+        DropListener drops = dropListener;
+        if (drops != null) enqueue(false, () -> drops.onDropped(device, characteristic));
+        return false;
+    }
+
+    /**
+     * Waits up to {@value #WRITE_COMMAND_WAIT_MILLIS} ms for a place in the inbox.
+     *
+     * @return false if the inbox stayed full and the event is dropped
+     */
+    private boolean awaitRoom() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (room.tryAcquire(WRITE_COMMAND_WAIT_MILLIS, TimeUnit.MILLISECONDS)) return true;
+                    dropped.inc();
+                    return false;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param admitted the event holds a place in the inbox, to be given back once it is handled
+     */
+    private void enqueue(boolean admitted, Runnable event) {
+        long enqueuedNanos = System.nanoTime();
+        depth.set(pending.incrementAndGet());
+        executor.execute(() -> {
+            depth.set(pending.decrementAndGet());
+            if (admitted) room.release();
+            queueMicros.recordMicrosSince(enqueuedNanos);
+            event.run();
+        });
+    }
+}
@@ -0,0 +1,21 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+import java.util.UUID;
+
+/**
+ * Outbound half of a GATT server: what the server logic asks the Bluetooth stack to do.
+ */
+public interface GattServer {
+
+    boolean sendResponse(BleDevice device, int requestId, int status, int offset, byte[] value);
+
+    /**
+     * Sends {@code value} for {@code characteristic}; completion is reported through
+     * {@link GattServerListener#onNotificationSent}.
+     */
+    boolean notifyCharacteristicChanged(BleDevice device, UUID characteristic, byte[] value, boolean confirm);
+
+    void cancelConnection(BleDevice device);
+
+    void close();
+}
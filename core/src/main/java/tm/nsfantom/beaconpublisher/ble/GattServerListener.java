@@ -0,0 +1,33 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+import java.util.UUID;
+
+/**
+ * Inbound half of a GATT server, mirroring {@code BluetoothGattServerCallback} with plain Java
+ * types. Implementations are called on whatever threads the stack delivers callbacks on.
+ */
+public interface GattServerListener {
+
+    void onConnectionStateChange(BleDevice device, int status, int newState);
+
+    void onServiceAdded(int status, UUID service);
+
+    void onCharacteristicReadRequest(BleDevice device, int requestId, int offset, UUID characteristic);
+
+    void onCharacteristicWriteRequest(BleDevice device, int requestId, UUID characteristic,
+                                      boolean preparedWrite, boolean responseNeeded, int offset, byte[] value);
+
+    void onDescriptorReadRequest(BleDevice device, int requestId, int offset, UUID characteristic, UUID descriptor);
+
+    void onDescriptorWriteRequest(BleDevice device, int requestId, UUID characteristic, UUID descriptor,
+                                  boolean preparedWrite, boolean responseNeeded, int offset, byte[] value);
+
+    void onExecuteWrite(BleDevice device, int requestId, boolean execute);
+
+    void onNotificationSent(BleDevice device, int status);
+
+    /**
+     * The central negotiated a new ATT MTU for its connection.
+     */
+    void onMtuChanged(BleDevice device, int mtu);
+}
@@ -0,0 +1,27 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+/**
+ * ATT/GATT status and connection state codes. Values match {@code android.bluetooth.BluetoothGatt}
+ * and {@code BluetoothProfile}, so adapters pass them through unchanged.
+ */
+public final class GattStatus {
+
+    public static final int SUCCESS = 0;
+    public static final int READ_NOT_PERMITTED = 0x02;
+    public static final int WRITE_NOT_PERMITTED = 0x03;
+    public static final int INSUFFICIENT_AUTHENTICATION = 0x05;
+    public static final int REQUEST_NOT_SUPPORTED = 0x06;
+    public static final int INVALID_OFFSET = 0x07;
+    public static final int PREPARE_QUEUE_FULL = 0x09;
+    public static final int INVALID_ATTRIBUTE_LENGTH = 0x0d;
+    public static final int INSUFFICIENT_RESOURCES = 0x11;
+    /** ATT "Value Not Allowed"; not named in BluetoothGatt, but sendResponse passes it through. */
+    public static final int VALUE_NOT_ALLOWED = 0x13;
+    public static final int FAILURE = 0x101;
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTED = 2;
+
+    private GattStatus() {
+    }
+}
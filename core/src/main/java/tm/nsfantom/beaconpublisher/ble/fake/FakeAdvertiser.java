@@ -0,0 +1,96 @@
+package tm.nsfantom.beaconpublisher.ble.fake;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import tm.nsfantom.beaconpublisher.ble.Advertisement;
+import tm.nsfantom.beaconpublisher.ble.BleAdvertiser;
+
+/**
+ * {@link BleAdvertiser} backed by {@link FakeBleStack}. Keeps the advertisements that are on air
+ * so callers can check what a scanner would see.
+ */
+public final class FakeAdvertiser implements BleAdvertiser {
+
+    /**
+     * Legacy advertising payload, flags included.
+     */
+    private static final int MAX_PAYLOAD = 31;
+
+    private final FakeBleStack stack;
+    private final int slots;
+    private final Map<Callback, Advertisement> active = new LinkedHashMap<>();
+    private long starts;
+    private long updates;
+
+    FakeAdvertiser(FakeBleStack stack, int slots) {
+        this.stack = stack;
+        this.slots = slots;
+    }
+
+    @Override
+    public void startAdvertising(Advertisement advertisement, Callback callback) {
+        int error = 0;
+        synchronized (this) {
+            if (active.containsKey(callback)) {
+                error = ADVERTISE_FAILED_ALREADY_STARTED;
+            } else if (active.size() >= slots) {
+                error = ADVERTISE_FAILED_TOO_MANY_ADVERTISERS;
+            } else if (advertisement.payloadLength() > MAX_PAYLOAD) {
+                error = ADVERTISE_FAILED_DATA_TOO_LARGE;
+            } else {
+                active.put(callback, advertisement);
+                starts++;
+            }
+        }
+        int errorCode = error;
+        if (errorCode == 0) {
+            stack.deliver(() -> callback.onStartSuccess(advertisement));
+        } else {
+            stack.deliver(() -> callback.onStartFailure(errorCode));
+        }
+    }
+
+    /**
+     * Swaps the advertisement in place; the fake stack never goes off air.
+     */
+    @Override
+    public boolean updateAdvertising(Advertisement advertisement, Callback callback) {
+        boolean tooLarge = advertisement.payloadLength() > MAX_PAYLOAD;
+        synchronized (this) {
+            if (!active.containsKey(callback)) return false;
+            if (!tooLarge) {
+                active.put(callback, advertisement);
+                updates++;
+            }
+        }
+        if (tooLarge) {
+            stack.deliver(() -> callback.onStartFailure(ADVERTISE_FAILED_DATA_TOO_LARGE));
+        } else {
+            stack.deliver(() -> callback.onStartSuccess(advertisement));
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void stopAdvertising(Callback callback) {
+        active.remove(callback);
+    }
+
+    /**
+     * Advertisements currently on air, in start order.
+     */
+    public synchronized List<Advertisement> getActive() {
+        return new ArrayList<>(active.values());
+    }
+
+    public synchronized long getStartCount() {
+        return starts;
+    }
+
+    public synchronized long getUpdateCount() {
+        return updates;
+    }
+}
@@ -0,0 +1,49 @@
+package tm.nsfantom.beaconpublisher.ble.fake;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.ble.GattServerListener;
+
+/**
+ * In-memory Bluetooth stack for running the GATT and advertising logic on a plain JVM.
+ * <p>
+ * Every callback is delivered on {@code callbackExecutor}, after {@code latency} when it is
+ * non-zero, the way the real stack delivers them on its binder threads. Centrals are simulated
+ * with {@link FakeCentral}, obtained from {@link FakeGattServer#connect}.
+ */
+public final class FakeBleStack {
+
+    private final ScheduledExecutorService callbackExecutor;
+    private final long latencyNanos;
+    private final FakeAdvertiser advertiser;
+
+    public FakeBleStack(ScheduledExecutorService callbackExecutor, long latency, TimeUnit unit) {
+        this(callbackExecutor, latency, unit, 1);
+    }
+
+    /**
+     * @param advertiserSlots number of advertisements that may be on air at the same time
+     */
+    public FakeBleStack(ScheduledExecutorService callbackExecutor, long latency, TimeUnit unit, int advertiserSlots) {
+        this.callbackExecutor = callbackExecutor;
+        this.latencyNanos = unit.toNanos(latency);
+        this.advertiser = new FakeAdvertiser(this, advertiserSlots);
+    }
+
+    public FakeGattServer openGattServer(GattServerListener listener) {
+        return new FakeGattServer(this, listener);
+    }
+
+    public FakeAdvertiser getAdvertiser() {
+        return advertiser;
+    }
+
+    void deliver(Runnable callback) {
+        if (latencyNanos == 0) {
+            callbackExecutor.execute(callback);
+        } else {
+            callbackExecutor.schedule(callback, latencyNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
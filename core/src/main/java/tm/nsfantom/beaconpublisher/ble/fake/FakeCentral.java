@@ -0,0 +1,133 @@
+package tm.nsfantom.beaconpublisher.ble.fake;
+
+import java.util.UUID;
+
+import tm.nsfantom.beaconpublisher.ble.BleDevice;
+
+/**
+ * A simulated central connected to a {@link FakeGattServer}. Request methods return the request
+ * id the server sees, or -1 if the central is no longer connected; the matching response arrives
+ * through {@link Observer#onResponse}.
+ */
+public final class FakeCentral implements BleDevice {
+
+    /**
+     * Receives what the server sends to this central, on the stack's callback executor.
+     */
+    public interface Observer {
+        void onResponse(FakeCentral central, int requestId, int status, int offset, byte[] value);
+
+        void onNotification(FakeCentral central, UUID characteristic, byte[] value);
+
+        void onDisconnected(FakeCentral central);
+    }
+
+    private static final Observer NO_OBSERVER = new Observer() {
+        @Override
+        public void onResponse(FakeCentral central, int requestId, int status, int offset, byte[] value) {
+        }
+
+        @Override
+        public void onNotification(FakeCentral central, UUID characteristic, byte[] value) {
+        }
+
+        @Override
+        public void onDisconnected(FakeCentral central) {
+        }
+    };
+
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final FakeGattServer server;
+    private final String address;
+    private final String name;
+    private volatile Observer observer = NO_OBSERVER;
+
+    FakeCentral(FakeGattServer server, String address, String name) {
+        this.server = server;
+        this.address = address;
+        this.name = name;
+    }
+
+    public void setObserver(Observer observer) {
+        this.observer = observer != null ? observer : NO_OBSERVER;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public int read(UUID characteristic) {
+        return read(characteristic, 0);
+    }
+
+    public int read(UUID characteristic, int offset) {
+        return server.request(this, (listener, requestId) ->
+                listener.onCharacteristicReadRequest(this, requestId, offset, characteristic));
+    }
+
+    /**
+     * Write request; a response only follows when {@code responseNeeded} is set.
+     */
+    public int write(UUID characteristic, byte[] value, boolean responseNeeded) {
+        byte[] copy = value.clone();
+        return server.request(this, (listener, requestId) ->
+                listener.onCharacteristicWriteRequest(this, requestId, characteristic, false, responseNeeded, 0, copy));
+    }
+
+    /**
+     * Prepare Write request for one chunk of a long write; commit with {@link #executeWrite}.
+     */
+    public int prepareWrite(UUID characteristic, int offset, byte[] chunk) {
+        byte[] copy = chunk.clone();
+        return server.request(this, (listener, requestId) ->
+                listener.onCharacteristicWriteRequest(this, requestId, characteristic, true, true, offset, copy));
+    }
+
+    /**
+     * Writes the client characteristic configuration descriptor of {@code characteristic}.
+     */
+    public int subscribe(UUID characteristic, boolean enable) {
+        byte[] value = {(byte) (enable ? 0x01 : 0x00), 0x00};
+        return server.request(this, (listener, requestId) -> listener.onDescriptorWriteRequest(this, requestId,
+                characteristic, CLIENT_CHARACTERISTIC_CONFIG, false, true, 0, value));
+    }
+
+    public int executeWrite(boolean execute) {
+        return server.request(this, (listener, requestId) -> listener.onExecuteWrite(this, requestId, execute));
+    }
+
+    /**
+     * Exchanges the ATT MTU; {@code GattServerListener#onMtuChanged} follows.
+     */
+    public void requestMtu(int mtu) {
+        server.deliverMtu(this, mtu);
+    }
+
+    public void disconnect() {
+        server.disconnect(address);
+    }
+
+    void dispatchResponse(int requestId, int status, int offset, byte[] value) {
+        observer.onResponse(this, requestId, status, offset, value);
+    }
+
+    void dispatchNotification(UUID characteristic, byte[] value) {
+        observer.onNotification(this, characteristic, value);
+    }
+
+    void dispatchDisconnected() {
+        observer.onDisconnected(this);
+    }
+
+    @Override
+    public String toString() {
+        return "FakeCentral{" + address + "}";
+    }
+}
@@ -0,0 +1,129 @@
+package tm.nsfantom.beaconpublisher.ble.fake;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tm.nsfantom.beaconpublisher.ble.BleDevice;
+import tm.nsfantom.beaconpublisher.ble.GattServer;
+import tm.nsfantom.beaconpublisher.ble.GattServerListener;
+import tm.nsfantom.beaconpublisher.ble.GattStatus;
+
+/**
+ * {@link GattServer} backed by {@link FakeBleStack}. Responses and notifications are routed to the
+ * {@link FakeCentral} they are addressed to.
+ */
+public final class FakeGattServer implements GattServer {
+
+    private final FakeBleStack stack;
+    private final GattServerListener listener;
+    private final ConcurrentMap<String, FakeCentral> centrals = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private volatile boolean closed;
+
+    FakeGattServer(FakeBleStack stack, GattServerListener listener) {
+        this.stack = stack;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a service; {@link GattServerListener#onServiceAdded} follows.
+     */
+    public void addService(UUID service) {
+        stack.deliver(() -> listener.onServiceAdded(GattStatus.SUCCESS, service));
+    }
+
+    /**
+     * Connects a new simulated central; {@link GattServerListener#onConnectionStateChange} follows.
+     */
+    public FakeCentral connect(String address, String name) {
+        if (closed) throw new IllegalStateException("server closed");
+        FakeCentral central = new FakeCentral(this, address, name);
+        if (centrals.putIfAbsent(address, central) != null) {
+            throw new IllegalStateException(address + " already connected");
+        }
+        stack.deliver(() -> listener.onConnectionStateChange(central, GattStatus.SUCCESS, GattStatus.STATE_CONNECTED));
+        return central;
+    }
+
+    public int getConnectionCount() {
+        return centrals.size();
+    }
+
+    public long getResponseCount() {
+        return responses.get();
+    }
+
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    @Override
+    public boolean sendResponse(BleDevice device, int requestId, int status, int offset, byte[] value) {
+        FakeCentral central = centrals.get(device.getAddress());
+        if (closed || central == null) return false;
+        responses.incrementAndGet();
+        byte[] copy = value != null ? value.clone() : null;
+        stack.deliver(() -> central.dispatchResponse(requestId, status, offset, copy));
+        return true;
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(BleDevice device, UUID characteristic, byte[] value, boolean confirm) {
+        FakeCentral central = centrals.get(device.getAddress());
+        if (closed || central == null) return false;
+        notifications.incrementAndGet();
+        byte[] copy = value.clone();
+        stack.deliver(() -> {
+            central.dispatchNotification(characteristic, copy);
+            listener.onNotificationSent(central, GattStatus.SUCCESS);
+        });
+        return true;
+    }
+
+    @Override
+    public void cancelConnection(BleDevice device) {
+        disconnect(device.getAddress());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (String address : new ArrayList<>(centrals.keySet())) {
+            disconnect(address);
+        }
+    }
+
+    void deliverMtu(FakeCentral central, int mtu) {
+        if (closed || centrals.get(central.getAddress()) != central) return;
+        stack.deliver(() -> listener.onMtuChanged(central, mtu));
+    }
+
+    void disconnect(String address) {
+        FakeCentral central = centrals.remove(address);
+        if (central == null) return;
+        stack.deliver(() -> {
+            central.dispatchDisconnected();
+            listener.onConnectionStateChange(central, GattStatus.SUCCESS, GattStatus.STATE_DISCONNECTED);
+        });
+    }
+
+    int request(FakeCentral central, RequestCall call) {
+        if (closed || centrals.get(central.getAddress()) != central) return -1;
+        int requestId = nextRequestId.incrementAndGet();
+        stack.deliver(() -> call.deliver(listener, requestId));
+        return requestId;
+    }
+
+    /**
+     * One inbound ATT request, delivered to the server listener with its request id.
+     */
+    interface RequestCall {
+        void deliver(GattServerListener listener, int requestId);
+    }
+}
@@ -0,0 +1,176 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.ble.Advertisement;
+
+/**
+ * Chooses the advertise mode and TX power level at runtime from what the device is doing.
+ * <p>
+ * Starting from a base setting, each signal moves the mode or power one step:
+ * <ul>
+ * <li>a write within the last {@code writeWindow} with nobody connected: low latency, so the
+ * central that just configured the tag finds it again quickly</li>
+ * <li>a central connected: one mode step down, it has already found us</li>
+ * <li>screen off: one mode step down, nobody is looking at the phone</li>
+ * <li>battery low and not charging: one step down in mode and power; critical: the lowest of
+ * both</li>
+ * </ul>
+ * Signals can be fed from any thread; all methods are synchronized. Callers drive the clock and
+ * call {@link #update(long)}, which only reports a change once the current setting has been held
+ * for {@code minHold}, so flapping signals do not restart the advertiser over and over.
+ */
+public final class AdvertisePolicy {
+
+    public static final int DEFAULT_LOW_BATTERY_PERCENT = 20;
+    public static final int DEFAULT_CRITICAL_BATTERY_PERCENT = 5;
+    public static final long DEFAULT_WRITE_WINDOW_MILLIS = 30_000;
+    public static final long DEFAULT_MIN_HOLD_MILLIS = 5_000;
+
+    /**
+     * Advertise mode and TX power level, with the constants of {@link Advertisement}.
+     */
+    public static final class Setting {
+        public final int mode;
+        public final int txPowerLevel;
+
+        public Setting(int mode, int txPowerLevel) {
+            this.mode = clamp(mode, Advertisement.MODE_LOW_POWER, Advertisement.MODE_LOW_LATENCY);
+            this.txPowerLevel = clamp(txPowerLevel, Advertisement.TX_POWER_ULTRA_LOW, Advertisement.TX_POWER_HIGH);
+        }
+
+        /**
+         * Returns {@code advertisement} with this mode and power, or the same instance if they match.
+         */
+        public Advertisement apply(Advertisement advertisement) {
+            if (advertisement.mode == mode && advertisement.txPowerLevel == txPowerLevel) return advertisement;
+            return advertisement.buildUpon().setMode(mode).setTxPowerLevel(txPowerLevel).build();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Setting)) return false;
+            Setting other = (Setting) o;
+            return mode == other.mode && txPowerLevel == other.txPowerLevel;
+        }
+
+        @Override
+        public int hashCode() {
+            return mode * 31 + txPowerLevel;
+        }
+
+        @Override
+        public String toString() {
+            return "Setting{mode=" + mode + ", txPower=" + txPowerLevel + "}";
+        }
+    }
+
+    private final Setting base;
+    private final int lowBatteryPercent;
+    private final int criticalBatteryPercent;
+    private final long writeWindowNanos;
+    private final long minHoldNanos;
+
+    private int connections;
+    private long lastWriteNanos;
+    private boolean written;
+    private int batteryPercent = 100;
+    private boolean charging;
+    private boolean screenOn = true;
+
+    private Setting current;
+    private long currentSinceNanos;
+    private long changes;
+
+    public AdvertisePolicy(Setting base) {
+        this(base, DEFAULT_LOW_BATTERY_PERCENT, DEFAULT_CRITICAL_BATTERY_PERCENT,
+                DEFAULT_WRITE_WINDOW_MILLIS, DEFAULT_MIN_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public AdvertisePolicy(Setting base, int lowBatteryPercent, int criticalBatteryPercent,
+                           long writeWindow, long minHold, TimeUnit unit) {
+        if (criticalBatteryPercent > lowBatteryPercent) {
+            throw new IllegalArgumentException("critical battery level above low battery level");
+        }
+        this.base = base;
+        this.lowBatteryPercent = lowBatteryPercent;
+        this.criticalBatteryPercent = criticalBatteryPercent;
+        this.writeWindowNanos = unit.toNanos(writeWindow);
+        this.minHoldNanos = unit.toNanos(minHold);
+        this.current = base;
+    }
+
+    public synchronized void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public synchronized void onWrite(long nowNanos) {
+        lastWriteNanos = nowNanos;
+        written = true;
+    }
+
+    public synchronized void setBattery(int percent, boolean charging) {
+        this.batteryPercent = percent;
+        this.charging = charging;
+    }
+
+    public synchronized void setScreenOn(boolean screenOn) {
+        this.screenOn = screenOn;
+    }
+
+    /**
+     * The setting the signals call for right now, ignoring the hold time.
+     */
+    public synchronized Setting evaluate(long nowNanos) {
+        int mode = base.mode;
+        int txPowerLevel = base.txPowerLevel;
+        if (!charging && batteryPercent <= criticalBatteryPercent) {
+            mode = Advertisement.MODE_LOW_POWER;
+            txPowerLevel = Advertisement.TX_POWER_ULTRA_LOW;
+        } else if (connections == 0 && written && nowNanos - lastWriteNanos < writeWindowNanos) {
+            mode = Advertisement.MODE_LOW_LATENCY;
+        } else {
+            if (connections > 0) mode--;
+            if (!screenOn) mode--;
+        }
+        if (!charging && batteryPercent <= lowBatteryPercent) {
+            mode--;
+            txPowerLevel--;
+        }
+        Setting setting = new Setting(mode, txPowerLevel);
+        return setting.equals(current) ? current : setting;
+    }
+
+    /**
+     * Re-evaluates the signals and adopts the result if the current setting was held long enough.
+     *
+     * @return true if the setting changed and the caller should re-advertise with {@link #getCurrent()}
+     */
+    public synchronized boolean update(long nowNanos) {
+        Setting setting = evaluate(nowNanos);
+        if (setting.equals(current) || nowNanos - currentSinceNanos < minHoldNanos && changes > 0) return false;
+        current = setting;
+        currentSinceNanos = nowNanos;
+        changes++;
+        return true;
+    }
+
+    public synchronized Setting getCurrent() {
+        return current;
+    }
+
+    public Setting getBase() {
+        return base;
+    }
+
+    /**
+     * Number of times {@link #update(long)} changed the setting.
+     */
+    public synchronized long getChanges() {
+        return changes;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+}
@@ -0,0 +1,51 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.UUID;
+
+import tm.nsfantom.beaconpublisher.util.BeaconFrameEncoder;
+
+/**
+ * One beacon the device can impersonate. The manufacturer data frame is encoded once when the
+ * identity is created and reused every time the identity goes on air.
+ */
+public final class BeaconIdentity {
+
+    public final UUID uuid;
+    public final int major;
+    public final int minor;
+    public final byte txPower;
+
+    private final byte[] frame;
+
+    public BeaconIdentity(UUID uuid, int major, int minor, byte txPower) {
+        this.uuid = uuid;
+        this.major = major;
+        this.minor = minor;
+        this.txPower = txPower;
+        BeaconFrameEncoder encoder = BeaconFrameEncoder.altBeacon(uuid);
+        this.frame = new byte[encoder.length()];
+        encoder.encode(major, minor, txPower, frame, 0);
+    }
+
+    /**
+     * Parses {@code uuid:major:minor:txPower}, e.g. {@code DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E:9:6:-75}.
+     */
+    public static BeaconIdentity parse(String value) {
+        String[] parts = value.split(":");
+        if (parts.length != 4) throw new IllegalArgumentException("Expected uuid:major:minor:txPower, got " + value);
+        return new BeaconIdentity(UUID.fromString(parts[0]), Integer.parseInt(parts[1]),
+                Integer.parseInt(parts[2]), (byte) Integer.parseInt(parts[3]));
+    }
+
+    /**
+     * Returns the pre-encoded AltBeacon frame. The array is shared and must not be modified.
+     */
+    public byte[] frame() {
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        return uuid + ":" + major + ":" + minor + ":" + txPower;
+    }
+}
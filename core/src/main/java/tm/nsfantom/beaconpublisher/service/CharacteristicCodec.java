@@ -0,0 +1,213 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.UUID;
+
+/**
+ * Wire format of the numeric Mu Tag characteristics, following the codec and length columns of
+ * {@link MuTagProfile}.
+ * <p>
+ * Numbers are little endian and exactly as wide as their codec: one byte for {@code uint8} and
+ * {@code int8}, two for {@code uint16}. A written value may be followed by the optional trailer
+ * of the profile ("2+2 bytes"), which is reserved and has to be zero. UUIDs keep the big endian
+ * byte order of the iBeacon frame. Older centrals send and expect the same numbers as ASCII
+ * decimals; the {@code String} variants read and write that format, and {@link #isDecimal} tells
+ * the two apart. Decimals may be padded with spaces, NULs or other control characters, so a
+ * binary number whose bytes are all ASCII digits or such padding, such as 49 sent as
+ * {@code 0x31 0x00}, reads as a decimal even with the trailer.
+ * <p>
+ * Encoding writes into arrays the caller sized with {@link #width(int)}; decoding never
+ * allocates and returns {@link #INVALID} for a value of the wrong length or out of range.
+ */
+public final class CharacteristicCodec {
+
+    /**
+     * Returned by the decoders for a value that is not acceptable.
+     */
+    public static final int INVALID = Integer.MIN_VALUE;
+
+    /**
+     * Longest ASCII decimal a legacy central sends for a 16 bit value.
+     */
+    private static final int MAX_DIGITS = 5;
+
+    private static final int UUID_LENGTH = 16;
+
+    private CharacteristicCodec() {
+    }
+
+    /**
+     * Size of the binary value of {@code characteristic} without trailer, or -1 if its codec is
+     * not a fixed size one.
+     */
+    public static int width(int characteristic) {
+        switch (MuTagProfile.codec(characteristic)) {
+            case MuTagProfile.CODEC_UINT8:
+            case MuTagProfile.CODEC_INT8:
+                return 1;
+            case MuTagProfile.CODEC_UINT16:
+                return 2;
+            case MuTagProfile.CODEC_UUID:
+                return UUID_LENGTH;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Whether {@code value} fits the numeric codec of {@code characteristic}.
+     */
+    public static boolean inRange(int characteristic, int value) {
+        switch (MuTagProfile.codec(characteristic)) {
+            case MuTagProfile.CODEC_UINT8:
+                return value >= 0 && value <= 0xFF;
+            case MuTagProfile.CODEC_INT8:
+                return value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE;
+            case MuTagProfile.CODEC_UINT16:
+                return value >= 0 && value <= 0xFFFF;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes {@code value} at {@code offset}.
+     *
+     * @return number of bytes written, {@link #width(int)}
+     * @throws IllegalArgumentException the characteristic is not numeric or the value out of range
+     */
+    public static int encode(int characteristic, int value, byte[] out, int offset) {
+        if (!inRange(characteristic, value)) {
+            throw new IllegalArgumentException(MuTagProfile.name(characteristic) + " cannot hold " + value);
+        }
+        out[offset] = (byte) value;
+        if (MuTagProfile.codec(characteristic) != MuTagProfile.CODEC_UINT16) return 1;
+        out[offset + 1] = (byte) (value >> 8);
+        return 2;
+    }
+
+    /**
+     * Reads the first {@code length} bytes of {@code value}, a binary number with or without the
+     * zero trailer.
+     */
+    public static int decode(int characteristic, byte[] value, int length) {
+        if (!isBinaryLength(characteristic, value, length)) return INVALID;
+        switch (MuTagProfile.codec(characteristic)) {
+            case MuTagProfile.CODEC_UINT8:
+                return value[0] & 0xFF;
+            case MuTagProfile.CODEC_INT8:
+                return value[0];
+            case MuTagProfile.CODEC_UINT16:
+                return (value[0] & 0xFF) | (value[1] & 0xFF) << 8;
+            default:
+                return INVALID;
+        }
+    }
+
+    /**
+     * {@code value} as the ASCII decimal legacy centrals read.
+     */
+    public static byte[] encodeString(int value) {
+        String digits = Integer.toString(value);
+        byte[] out = new byte[digits.length()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) digits.charAt(i);
+        }
+        return out;
+    }
+
+    /**
+     * Whether the first {@code length} bytes of {@code value} are an ASCII decimal as legacy
+     * centrals write them: digits, optionally signed, optionally padded as {@link #isPadding}
+     * allows.
+     */
+    public static boolean isDecimal(byte[] value, int length) {
+        int start = 0;
+        int end = length;
+        while (start < end && isPadding(value[start])) start++;
+        while (end > start && isPadding(value[end - 1])) end--;
+        if (start < end && value[start] == '-') start++;
+        if (start == end) return false;
+        for (int i = start; i < end; i++) {
+            if (value[i] < '0' || value[i] > '9') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the ASCII decimal a legacy central wrote, ignoring surrounding padding.
+     */
+    public static int decodeString(int characteristic, byte[] value, int length) {
+        int start = 0;
+        int end = length;
+        while (start < end && isPadding(value[start])) start++;
+        while (end > start && isPadding(value[end - 1])) end--;
+        boolean negative = start < end && value[start] == '-';
+        if (negative) start++;
+        if (start == end || end - start > MAX_DIGITS) return INVALID;
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) return INVALID;
+            result = result * 10 + digit;
+        }
+        if (negative) result = -result;
+        return inRange(characteristic, result) ? result : INVALID;
+    }
+
+    /**
+     * Spaces, NULs and other ASCII control characters around a decimal, as C strings and line
+     * based centrals leave them.
+     */
+    private static boolean isPadding(byte b) {
+        return (b & 0xFF) <= ' ';
+    }
+
+    /**
+     * Writes the 16 bytes of {@code uuid}, most significant first.
+     */
+    public static void encodeUuid(UUID uuid, byte[] out, int offset) {
+        writeLong(uuid.getMostSignificantBits(), out, offset);
+        writeLong(uuid.getLeastSignificantBits(), out, offset + 8);
+    }
+
+    /**
+     * Reads a UUID written to {@code characteristic}, or returns null if the length is wrong.
+     */
+    public static UUID decodeUuid(int characteristic, byte[] value, int length) {
+        if (MuTagProfile.codec(characteristic) != MuTagProfile.CODEC_UUID
+                || !isBinaryLength(characteristic, value, length)) {
+            return null;
+        }
+        return new UUID(readLong(value, 0), readLong(value, 8));
+    }
+
+    /**
+     * The codec width, optionally followed by the zero trailer the profile allows.
+     */
+    private static boolean isBinaryLength(int characteristic, byte[] value, int length) {
+        int width = width(characteristic);
+        if (width < 0) return false;
+        if (length == width) return true;
+        int trailer = MuTagProfile.trailerLength(characteristic);
+        if (trailer == 0 || length != width + trailer) return false;
+        for (int i = width; i < length; i++) {
+            if (value[i] != 0) return false;
+        }
+        return true;
+    }
+
+    private static void writeLong(long value, byte[] out, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            out[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] value, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (value[i] & 0xFF);
+        }
+        return result;
+    }
+}
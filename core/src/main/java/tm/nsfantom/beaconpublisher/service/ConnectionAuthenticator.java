@@ -0,0 +1,184 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+
+/**
+ * Challenge-response authentication of centrals on the {@code AUTHENTICATE_CONNECTION}
+ * characteristic. A central reads a random {@value #CHALLENGE_LENGTH} byte challenge and writes
+ * back {@link #response}: the first {@value #RESPONSE_LENGTH} bytes of HMAC-SHA256 of the
+ * challenge under the key both sides share. Every challenge answers one write, so a wrong
+ * response costs the central a new read.
+ * <p>
+ * A handshake also opens a session, kept in an LRU {@link SessionCache} by address for the
+ * session lifetime. A central that reconnects within it skips the read and writes its
+ * {@link #resumeToken} instead: derived from the handshake challenge the first time, from the
+ * token it used before after that. Only the key holder can derive the token, and every token is
+ * good for one resume, so a central spoofing a cached address gets nowhere. The address is only
+ * used to look the session up; the lifetime is what bounds how long a session lasts.
+ * <p>
+ * Records the HMAC time in {@code gatt.auth.verify_us}, the time from challenge to accepted
+ * response in {@code gatt.auth.handshake_us}, accepted resume tokens and handshakes in
+ * {@code gatt.auth.resumed} and {@code gatt.auth.full}, rejected responses and tokens in
+ * {@code gatt.auth.failed} and the cached sessions in {@code gatt.auth.sessions}.
+ */
+public final class ConnectionAuthenticator {
+
+    public static final int CHALLENGE_LENGTH = 16;
+
+    public static final int RESPONSE_LENGTH = 16;
+
+    public static final int TOKEN_LENGTH = RESPONSE_LENGTH;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /** Prefixed to what a resume token is derived from, so it never equals a response. */
+    private static final byte TOKEN_DOMAIN = 'R';
+
+    private final Mac mac;
+    private final SecureRandom random = new SecureRandom();
+    private final SessionCache sessions;
+    private final MetricsRegistry.Histogram verifyMicros;
+    private final MetricsRegistry.Histogram handshakeMicros;
+    private final MetricsRegistry.Counter resumed;
+    private final MetricsRegistry.Counter full;
+    private final MetricsRegistry.Counter failed;
+    private final MetricsRegistry.Gauge sessionCount;
+
+    public ConnectionAuthenticator(byte[] key, int maxSessions, long sessionTtlMillis) {
+        this(key, maxSessions, sessionTtlMillis, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * @param key shared with the centrals allowed to change the tag
+     */
+    public ConnectionAuthenticator(byte[] key, int maxSessions, long sessionTtlMillis, MetricsRegistry metrics) {
+        this.mac = createMac(key);
+        this.sessions = new SessionCache(maxSessions, sessionTtlMillis);
+        this.verifyMicros = metrics.histogram("gatt.auth.verify_us");
+        this.handshakeMicros = metrics.histogram("gatt.auth.handshake_us");
+        this.resumed = metrics.counter("gatt.auth.resumed");
+        this.full = metrics.counter("gatt.auth.full");
+        this.failed = metrics.counter("gatt.auth.failed");
+        this.sessionCount = metrics.gauge("gatt.auth.sessions");
+    }
+
+    /**
+     * The value a central writes for {@code challenge}.
+     */
+    public static byte[] response(byte[] key, byte[] challenge) {
+        Mac mac = createMac(key);
+        return Arrays.copyOf(mac.doFinal(challenge), RESPONSE_LENGTH);
+    }
+
+    /**
+     * The token a central writes to resume its session: derived from the challenge of the
+     * handshake that opened the session, or from the token that resumed it last.
+     */
+    public static byte[] resumeToken(byte[] key, byte[] previous) {
+        return deriveToken(createMac(key), previous, previous.length);
+    }
+
+    private static byte[] deriveToken(Mac mac, byte[] previous, int length) {
+        mac.update(TOKEN_DOMAIN);
+        mac.update(previous, 0, length);
+        return Arrays.copyOf(mac.doFinal(), TOKEN_LENGTH);
+    }
+
+    private static Mac createMac(byte[] key) {
+        if (key == null || key.length == 0) throw new IllegalArgumentException("key must not be empty");
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * Issues a new challenge to {@code connection}, replacing the one it had.
+     */
+    public byte[] challenge(GattConnection connection) {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        connection.setChallenge(challenge, System.nanoTime());
+        return challenge;
+    }
+
+    /**
+     * Checks the first {@code length} bytes of {@code value}: against the outstanding challenge of
+     * {@code connection}, which is used up either way, or as a resume token if there is none. On
+     * success the connection is authenticated and its session opened or moved to the next token.
+     */
+    public boolean authenticate(GattConnection connection, byte[] value, int length) {
+        long started = System.nanoTime();
+        long issuedNanos = connection.getChallengeNanos();
+        byte[] challenge = connection.takeChallenge();
+        if (value == null || length != RESPONSE_LENGTH) {
+            failed.inc();
+            return false;
+        }
+        if (challenge == null) return resume(connection, value, length, started);
+        byte[] expected;
+        byte[] token;
+        synchronized (mac) {
+            expected = mac.doFinal(challenge);
+            token = deriveToken(mac, challenge, challenge.length);
+        }
+        boolean match = MessageDigest.isEqual(Arrays.copyOf(expected, RESPONSE_LENGTH), Arrays.copyOf(value, length));
+        verifyMicros.recordMicrosSince(started);
+        if (!match) {
+            failed.inc();
+            return false;
+        }
+        connection.setAuthenticated(true);
+        sessions.put(connection.getAddress(), token, System.nanoTime());
+        sessionCount.set(sessions.size());
+        full.inc();
+        handshakeMicros.recordMicrosSince(issuedNanos);
+        return true;
+    }
+
+    private boolean resume(GattConnection connection, byte[] value, int length, long started) {
+        byte[] token = Arrays.copyOf(value, length);
+        byte[] next;
+        synchronized (mac) {
+            next = deriveToken(mac, token, length);
+        }
+        boolean resumedSession = sessions.resume(connection.getAddress(), token, next, System.nanoTime());
+        verifyMicros.recordMicrosSince(started);
+        sessionCount.set(sessions.size());
+        if (!resumedSession) {
+            failed.inc();
+            return false;
+        }
+        connection.setAuthenticated(true);
+        resumed.inc();
+        return true;
+    }
+
+    /**
+     * Ends the session of {@code address}; its next connection needs a full handshake.
+     */
+    public void forget(String address) {
+        sessions.remove(address);
+        sessionCount.set(sessions.size());
+    }
+
+    public void forgetAll() {
+        sessions.clear();
+        sessionCount.set(0);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+}
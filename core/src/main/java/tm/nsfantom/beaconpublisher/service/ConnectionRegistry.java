@@ -0,0 +1,92 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Connected centrals keyed by device address.
+ * <p>
+ * Lookups and iteration never block and may run on any thread while binder threads add and
+ * remove connections; {@link #snapshot()} returns a private array for code that needs a stable
+ * view. Adding is serialized so the connection limit holds under concurrent connects.
+ */
+public final class ConnectionRegistry {
+
+    private final ConcurrentMap<String, GattConnection> connections = new ConcurrentHashMap<>();
+    private volatile int maxConnections;
+
+    public ConnectionRegistry(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Adds {@code connection} unless its address is already registered or the registry is full.
+     */
+    public synchronized boolean add(GattConnection connection) {
+        if (connections.size() >= maxConnections) return false;
+        return connections.putIfAbsent(connection.getAddress(), connection) == null;
+    }
+
+    public GattConnection get(String address) {
+        return connections.get(address);
+    }
+
+    public boolean contains(String address) {
+        return connections.containsKey(address);
+    }
+
+    public GattConnection remove(String address) {
+        return connections.remove(address);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public boolean isEmpty() {
+        return connections.isEmpty();
+    }
+
+    /**
+     * Live, weakly consistent view; use {@link #snapshot()} to hold on to the connections.
+     */
+    public Iterable<GattConnection> connections() {
+        return connections.values();
+    }
+
+    public GattConnection[] snapshot() {
+        return connections.values().toArray(new GattConnection[0]);
+    }
+
+    /**
+     * Connections with no request since {@code cutoffNanos} ({@link System#nanoTime()} based).
+     */
+    public List<GattConnection> idleSince(long cutoffNanos) {
+        List<GattConnection> idle = new ArrayList<>();
+        for (GattConnection connection : connections.values()) {
+            if (connection.getLastActivityNanos() - cutoffNanos < 0) idle.add(connection);
+        }
+        return idle;
+    }
+
+    /**
+     * Removes and returns every connection.
+     */
+    public synchronized GattConnection[] clear() {
+        GattConnection[] all = snapshot();
+        for (GattConnection connection : all) {
+            connections.remove(connection.getAddress(), connection);
+        }
+        return all;
+    }
+}
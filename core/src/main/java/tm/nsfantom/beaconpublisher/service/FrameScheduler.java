@@ -0,0 +1,77 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.Arrays;
+
+/**
+ * Interleaves frame types at fixed ratios, e.g. three beacon frames for every Eddystone UID and
+ * TLM frame.
+ * <p>
+ * Uses smooth weighted round robin: every {@link #next()} adds each type's weight to its credit,
+ * picks the type with the most credit and charges it the total weight. Over any run of
+ * {@code sum(weights)} calls every type comes up exactly {@code weight} times, spread out rather
+ * than in bursts, so weights 3:1:1 give {@code A B A C A} and not {@code A A A B C}. Picking is
+ * a loop over the weights and allocates nothing.
+ * <p>
+ * Not thread safe; drive it from the thread that owns the advertiser.
+ */
+public final class FrameScheduler {
+
+    private final int[] weights;
+    private final int totalWeight;
+    private final long[] credit;
+    private final long[] picks;
+
+    /**
+     * @param weights relative share of each frame type, indexed by type; 0 disables a type
+     * @throws IllegalArgumentException if a weight is negative or all of them are 0
+     */
+    public FrameScheduler(int... weights) {
+        int total = 0;
+        for (int weight : weights) {
+            if (weight < 0) throw new IllegalArgumentException("Negative weight in " + Arrays.toString(weights));
+            total += weight;
+        }
+        if (total == 0) throw new IllegalArgumentException("No frame type enabled");
+        this.weights = weights.clone();
+        this.totalWeight = total;
+        this.credit = new long[weights.length];
+        this.picks = new long[weights.length];
+    }
+
+    /**
+     * Returns the frame type to put on air next.
+     */
+    public int next() {
+        int best = -1;
+        for (int type = 0; type < weights.length; type++) {
+            if (weights[type] == 0) continue;
+            credit[type] += weights[type];
+            if (best < 0 || credit[type] > credit[best]) best = type;
+        }
+        credit[best] -= totalWeight;
+        picks[best]++;
+        return best;
+    }
+
+    /**
+     * True if more than one type is enabled, i.e. {@link #next()} does not always return the same.
+     */
+    public boolean interleaves() {
+        int enabled = 0;
+        for (int weight : weights) {
+            if (weight > 0) enabled++;
+        }
+        return enabled > 1;
+    }
+
+    public int weight(int type) {
+        return weights[type];
+    }
+
+    /**
+     * Number of times {@link #next()} returned {@code type}.
+     */
+    public long picks(int type) {
+        return picks[type];
+    }
+}
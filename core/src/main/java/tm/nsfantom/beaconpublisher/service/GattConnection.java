@@ -0,0 +1,187 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tm.nsfantom.beaconpublisher.ble.BleDevice;
+
+/**
+ * Server side state of one connected central: negotiated MTU, notification subscriptions,
+ * outbound notifications, queued writes, authentication, traffic counters and activity times.
+ * Getters may be called from any thread.
+ */
+public final class GattConnection {
+
+    /**
+     * ATT MTU until the central negotiates a larger one.
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    public final BleDevice device;
+    final NotificationQueue notifications;
+    final PreparedWriteQueue preparedWrites;
+    private final long connectedNanos;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile long lastActivityNanos;
+    private volatile boolean legacyValues;
+    private volatile boolean authenticated;
+    /** Outstanding authentication challenge and when it was issued; guarded by this. */
+    private byte[] challenge;
+    private long challengeNanos;
+    private final Set<UUID> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    GattConnection(BleDevice device, NotificationQueue notifications, PreparedWriteQueue preparedWrites,
+                   long connectedNanos, boolean legacyValues) {
+        this.device = device;
+        this.legacyValues = legacyValues;
+        this.notifications = notifications;
+        this.preparedWrites = preparedWrites;
+        this.connectedNanos = connectedNanos;
+        this.lastActivityNanos = connectedNanos;
+    }
+
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    /**
+     * {@link System#nanoTime()} when the central connected.
+     */
+    public long getConnectedNanos() {
+        return connectedNanos;
+    }
+
+    /**
+     * {@link System#nanoTime()} of the last request from the central.
+     */
+    public long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    void touch(long nowNanos) {
+        lastActivityNanos = nowNanos;
+    }
+
+    /**
+     * Whether the central enabled notifications or indications for {@code characteristic}.
+     */
+    public boolean isSubscribed(UUID characteristic) {
+        return subscriptions.contains(characteristic);
+    }
+
+    public UUID[] getSubscriptions() {
+        return subscriptions.toArray(new UUID[0]);
+    }
+
+    void setSubscribed(UUID characteristic, boolean subscribed) {
+        if (subscribed) {
+            subscriptions.add(characteristic);
+        } else {
+            subscriptions.remove(characteristic);
+        }
+    }
+
+    /**
+     * Whether the central reads and writes numbers as ASCII decimals rather than binary.
+     */
+    public boolean isLegacyValues() {
+        return legacyValues;
+    }
+
+    void setLegacyValues(boolean legacyValues) {
+        this.legacyValues = legacyValues;
+    }
+
+    /**
+     * Whether the central proved it knows the key, or resumed a session that did.
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    void setAuthenticated(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
+
+    synchronized void setChallenge(byte[] challenge, long nowNanos) {
+        this.challenge = challenge;
+        this.challengeNanos = nowNanos;
+    }
+
+    synchronized long getChallengeNanos() {
+        return challengeNanos;
+    }
+
+    /**
+     * Returns the outstanding challenge, or null, and forgets it.
+     */
+    synchronized byte[] takeChallenge() {
+        byte[] current = challenge;
+        challenge = null;
+        return current;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    void setMtu(int mtu) {
+        this.mtu = Math.max(DEFAULT_MTU, mtu);
+    }
+
+    /**
+     * Largest value that fits a read response (opcode takes one byte).
+     */
+    public int maxReadPayload() {
+        return mtu - 1;
+    }
+
+    /**
+     * Largest value that fits a notification (opcode and handle take three bytes).
+     */
+    public int maxNotificationPayload() {
+        return mtu - 3;
+    }
+
+    /**
+     * Attribute value bytes written by the central.
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * Attribute value bytes sent in responses and notifications.
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Average value bytes per second in both directions since the connection was made.
+     */
+    public long bytesPerSecond(long nowNanos) {
+        long elapsed = nowNanos - connectedNanos;
+        return elapsed > 0 ? (bytesIn.get() + bytesOut.get()) * 1_000_000_000L / elapsed : 0;
+    }
+
+    void countIn(int bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    void countOut(int bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "GattConnection{" + device.getAddress() + ", mtu=" + mtu + ", subscriptions=" + subscriptions.size()
+                + (legacyValues ? ", legacy values" : "") + (authenticated ? ", authenticated" : "") + ", in=" + bytesIn.get() + ", out=" + bytesOut.get() + ", " + bytesPerSecond(System.nanoTime())
+                + " B/s, " + notifications + "}";
+    }
+}
@@ -0,0 +1,790 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import tm.nsfantom.beaconpublisher.ble.BleDevice;
+import tm.nsfantom.beaconpublisher.ble.GattEventLoop;
+import tm.nsfantom.beaconpublisher.ble.GattServer;
+import tm.nsfantom.beaconpublisher.ble.GattServerListener;
+import tm.nsfantom.beaconpublisher.ble.GattStatus;
+import tm.nsfantom.beaconpublisher.util.BufferPool;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+import tm.nsfantom.beaconpublisher.util.TagColors;
+import tm.nsfantom.beaconpublisher.util.TagConfigStore;
+
+/**
+ * GATT server side of the emulated Mu Tag: serves characteristic reads and writes from the
+ * current {@link TagState} and pushes changes to connected centrals.
+ * <p>
+ * Only talks to the {@link GattServer} / {@link GattServerListener} abstraction, so the same code
+ * runs against the Android stack and against {@code FakeBleStack} on a plain JVM. Callbacks may
+ * arrive on any thread.
+ * <p>
+ * Numbers travel in the binary format of {@link CharacteristicCodec} or, for legacy centrals, as
+ * ASCII decimals. {@link #setLegacyValues} sets the format new connections start with; a major or
+ * minor write switches its connection to the format it was written in, for reads and
+ * notifications as well. The tag color is written as a binary code in both formats and legacy
+ * centrals read back its list position.
+ * <p>
+ * Long values are written with queued writes: chunks are reassembled per connection in a
+ * {@link PreparedWriteQueue} and committed together, as one tag state change, on Execute Write.
+ * <p>
+ * When {@link #enableOta} was called the Silicon Labs OTA control/data pair accepts a firmware
+ * image from one central at a time and streams it to a file through {@link OtaReceiver}. Control
+ * writes are 0x00 (start), 0x03 (end of image) and 0x04 (close); a start may carry the image size
+ * as a uint32, little endian, after the opcode, and the image is then checked against it. While
+ * the image arrives as write-without-response chunks on the data characteristic, the control
+ * characteristic notifies the number of bytes received (uint32, little endian) after every ack
+ * window and at the end. A chunk the {@link GattEventLoop} had to drop ends the transfer, since
+ * the image would have a hole in it. A failed transfer is dropped and notified as a single byte,
+ * one of the {@code OtaReceiver.ERROR_} codes. The newest {@value #OTA_IMAGES_KEPT} images are
+ * kept.
+ * <p>
+ * When {@link #enableAuthentication} was called, writes to the configuration service are refused
+ * with {@link GattStatus#INSUFFICIENT_AUTHENTICATION} until the central answered the challenge
+ * read from {@code AUTHENTICATE_CONNECTION} or wrote the token that resumes its session, see
+ * {@link ConnectionAuthenticator}.
+ * <p>
+ * Request service times per characteristic ({@code gatt.read.<name>_us},
+ * {@code gatt.write.<name>_us}), notification send-to-ack latency and connection churn are
+ * recorded in a {@link MetricsRegistry}.
+ */
+public final class MuTagGattServer implements GattServerListener, GattEventLoop.DropListener {
+
+    /**
+     * Characteristics one connection may have in a queued write at the same time.
+     */
+    private static final int MAX_PREPARED_ATTRIBUTES = 4;
+
+    /**
+     * Pool shared by all connections; enough buffers for a handful of concurrent queued writes.
+     */
+    private static final int POOLED_BUFFERS = 8;
+
+    /**
+     * Default link limit; most controllers cannot hold more connections than this anyway.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    private static final byte OTA_START = 0x00;
+    private static final byte OTA_END = 0x03;
+    private static final byte OTA_CLOSE = 0x04;
+
+    private static final int OTA_IMAGES_KEPT = 2;
+
+    private static final byte[] CCCD_NONE = {0x00, 0x00};
+    private static final byte[] CCCD_NOTIFY = {0x01, 0x00};
+
+    /**
+     * Receives events worth showing to the user. Called on the thread that delivered the GATT
+     * callback.
+     */
+    public interface Listener {
+        void onStatus(String status);
+
+        /**
+         * A central changed the tag state through a characteristic write.
+         */
+        void onTagStateWritten(TagState state);
+    }
+
+    /**
+     * Produces the value returned for a characteristic read, in the legacy string format if
+     * {@code legacy} is set.
+     */
+    private interface ReadHandler {
+        byte[] onRead(TagState state, boolean legacy);
+    }
+
+    /**
+     * Returns the state with the first {@code length} bytes of {@code value} applied, or null if
+     * the value is not acceptable. {@code connection} is null for a central that is not
+     * registered.
+     */
+    private interface WriteHandler {
+        TagState onWrite(TagState state, GattConnection connection, byte[] value, int length);
+    }
+
+    /**
+     * Returns the state with a decoded number applied, or null if the number is not acceptable.
+     */
+    private interface NumberWriteHandler {
+        TagState onWrite(TagState state, int value);
+    }
+
+    /** Handlers by {@link MuTagProfile} characteristic index, null where the profile does not allow it. */
+    private final ReadHandler[] readHandlers = new ReadHandler[MuTagProfile.CHARACTERISTIC_COUNT];
+    private final WriteHandler[] writeHandlers = new WriteHandler[MuTagProfile.CHARACTERISTIC_COUNT];
+    private final AtomicReference<TagState> tagState;
+    private final ConnectionRegistry connections = new ConnectionRegistry(DEFAULT_MAX_CONNECTIONS);
+    private volatile long idleTimeoutNanos;
+    private volatile boolean legacyValues;
+    private final BufferPool writeBuffers = new BufferPool(PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH, POOLED_BUFFERS);
+    private final TagConfigStore config;
+    private final Listener listener;
+    private final MetricsRegistry metrics;
+    private final AtomicReferenceArray<MetricsRegistry.Histogram> readMicros =
+            new AtomicReferenceArray<>(MuTagProfile.CHARACTERISTIC_COUNT);
+    private final AtomicReferenceArray<MetricsRegistry.Histogram> writeMicros =
+            new AtomicReferenceArray<>(MuTagProfile.CHARACTERISTIC_COUNT);
+    private final MetricsRegistry.Histogram notifyAckMicros;
+    private final MetricsRegistry.Counter connects;
+    private final MetricsRegistry.Counter disconnects;
+    private final MetricsRegistry.Counter rejected;
+    private final MetricsRegistry.Counter evicted;
+    private final MetricsRegistry.Counter unauthenticated;
+    private final MetricsRegistry.Gauge connectionCount;
+    private volatile GattServer server;
+    private volatile String localAddress;
+    private volatile File otaDirectory;
+    private volatile OtaReceiver ota;
+    private volatile OtaReceiver.Result lastOtaResult;
+    private volatile ConnectionAuthenticator authenticator;
+    /** Address of the central sending an image; guarded by the receiver's lock. */
+    private String otaOwner;
+
+    /**
+     * @param config receives values written by centrals; may be null to keep them in memory only
+     */
+    public MuTagGattServer(TagState initialState, TagConfigStore config, Listener listener) {
+        this(initialState, config, listener, MetricsRegistry.getDefault());
+    }
+
+    public MuTagGattServer(TagState initialState, TagConfigStore config, Listener listener,
+                           MetricsRegistry metrics) {
+        this.tagState = new AtomicReference<>(initialState);
+        this.config = config;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.notifyAckMicros = metrics.histogram("gatt.notify.ack_us");
+        this.connects = metrics.counter("gatt.connect");
+        this.disconnects = metrics.counter("gatt.disconnect");
+        this.rejected = metrics.counter("gatt.rejected");
+        this.evicted = metrics.counter("gatt.evicted");
+        this.unauthenticated = metrics.counter("gatt.auth.refused");
+        this.connectionCount = metrics.gauge("gatt.connections");
+        registerHandlers();
+    }
+
+    /**
+     * Starts serving requests through {@code server}.
+     */
+    public void attach(GattServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Stops serving requests and forgets every connection. Does not close the server.
+     */
+    public void detach() {
+        server = null;
+        for (GattConnection connection : connections.clear()) {
+            release(connection);
+        }
+        connectionCount.set(0);
+    }
+
+    /**
+     * Limits concurrent connections; centrals connecting beyond the limit are disconnected. With
+     * a positive {@code idleTimeoutMillis}, {@link #evictIdleConnections()} disconnects centrals
+     * that sent no request for that long.
+     */
+    public void setConnectionLimits(int maxConnections, long idleTimeoutMillis) {
+        connections.setMaxConnections(maxConnections);
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * Cancels the connections idle for longer than the configured timeout. Call periodically.
+     *
+     * @return number of connections cancelled
+     */
+    public int evictIdleConnections() {
+        GattServer gattServer = server;
+        long timeout = idleTimeoutNanos;
+        if (gattServer == null || timeout <= 0) return 0;
+        List<GattConnection> idle = connections.idleSince(System.nanoTime() - timeout);
+        for (GattConnection connection : idle) {
+            listener.onStatus(connection.getAddress() + " idle, disconnecting");
+            gattServer.cancelConnection(connection.device);
+        }
+        evicted.add(idle.size());
+        return idle.size();
+    }
+
+    /**
+     * Gives up on notifications the stack never acknowledged, so a lost {@code onNotificationSent}
+     * does not stall a connection's queue. Call periodically.
+     *
+     * @return number of notifications that timed out or whose late ack was given up on
+     */
+    public int expireNotifications() {
+        long now = System.nanoTime();
+        int expired = 0;
+        for (GattConnection connection : connections.connections()) {
+            if (connection.notifications.expire(now)) expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Format of numbers for centrals that connect from now on: ASCII decimals if set, binary
+     * otherwise. A connection switches by itself when it writes a major or minor in the other
+     * format.
+     */
+    public void setLegacyValues(boolean legacyValues) {
+        this.legacyValues = legacyValues;
+    }
+
+    /**
+     * Connections from this address (the phone itself) are ignored.
+     */
+    public void setLocalAddress(String localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * Accepts firmware images into {@code directory}, acknowledging every {@code ackWindow} chunks.
+     */
+    public void enableOta(File directory, int ackWindow) {
+        OtaReceiver.prune(directory, OTA_IMAGES_KEPT);
+        otaDirectory = directory;
+        ota = new OtaReceiver(ackWindow);
+    }
+
+    /**
+     * Requires centrals to authenticate through {@code authenticator} before they write to the
+     * configuration service. Connections made before are not authenticated.
+     */
+    public void enableAuthentication(ConnectionAuthenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    /**
+     * Outcome of the last completed OTA transfer, or null.
+     */
+    public OtaReceiver.Result getLastOtaResult() {
+        return lastOtaResult;
+    }
+
+    public TagState getTagState() {
+        return tagState.get();
+    }
+
+    /**
+     * Atomically replaces the tag state served to GATT reads. Safe to call from any thread.
+     */
+    public TagState updateTagState(TagState.Update update) {
+        while (true) {
+            TagState current = tagState.get();
+            TagState next = update.apply(current);
+            if (tagState.compareAndSet(current, next)) return next;
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Snapshot of the current connections, for MTU and traffic statistics.
+     */
+    public GattConnection[] getConnections() {
+        return connections.snapshot();
+    }
+
+    /**
+     * Queues the current major, minor and tag color for every connected central.
+     */
+    public void notifyTagStateChanged() {
+        if (connections.isEmpty()) return;
+        TagState state = tagState.get();
+        for (GattConnection connection : connections.connections()) {
+            boolean legacy = connection.isLegacyValues();
+            connection.notifications.offer(MuTagUuids.DEVICE_MAJOR,
+                    legacy ? state.legacyMajorValue() : state.majorValue());
+            connection.notifications.offer(MuTagUuids.DEVICE_MINOR,
+                    legacy ? state.legacyMinorValue() : state.minorValue());
+            connection.notifications.offer(MuTagUuids.TAG_COLOR,
+                    legacy ? state.legacyTagColorValue() : state.tagColorValue());
+        }
+    }
+
+    @Override
+    public void onConnectionStateChange(BleDevice device, int status, int newState) {
+        String address = device.getAddress();
+        if (newState == GattStatus.STATE_CONNECTED) {
+            if (address.equals(localAddress) || connections.contains(address)) return;
+            GattConnection connection = createConnection(device);
+            if (!connections.add(connection)) {
+                rejected.inc();
+                listener.onStatus("name: " + device.getName() + " device: " + address + " rejected, "
+                        + connections.size() + " connections");
+                GattServer gattServer = server;
+                if (gattServer != null) gattServer.cancelConnection(device);
+                return;
+            }
+            connects.inc();
+            connectionCount.set(connections.size());
+            listener.onStatus("name: " + device.getName() + " device: " + address + " connected");
+        } else if (newState == GattStatus.STATE_DISCONNECTED) {
+            GattConnection connection = connections.remove(address);
+            if (connection == null) return;
+            disconnects.inc();
+            connectionCount.set(connections.size());
+            abortOta(address);
+            release(connection);
+            listener.onStatus("name: " + device.getName() + " device: " + address + " disconnected " + connection);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BleDevice device, int mtu) {
+        GattConnection connection = connections.get(device.getAddress());
+        if (connection == null) return;
+        connection.setMtu(mtu);
+        listener.onStatus(device.getAddress() + " mtu " + connection.getMtu());
+    }
+
+    @Override
+    public void onServiceAdded(int status, UUID service) {
+        if (status == GattStatus.SUCCESS) {
+            listener.onStatus("onServiceAdded: status = GATT_SUCCESS service = " + service);
+        } else {
+            listener.onStatus("onServiceAdded: status = " + status + " service = " + service);
+        }
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(BleDevice device, int requestId, int offset, UUID characteristic) {
+        GattServer gattServer = server;
+        if (gattServer == null) return;
+        long started = System.nanoTime();
+        int index = MuTagProfile.indexOf(characteristic);
+        serveRead(gattServer, device, requestId, offset, index);
+        timer(readMicros, "gatt.read.", index).recordMicrosSince(started);
+    }
+
+    private void serveRead(GattServer gattServer, BleDevice device, int requestId, int offset, int index) {
+        ReadHandler handler = index >= 0 ? readHandlers[index] : null;
+        ConnectionAuthenticator auth = authenticator;
+        boolean challenge = index == MuTagProfile.AUTHENTICATE_CONNECTION && auth != null;
+        if (handler == null && !challenge) {
+            gattServer.sendResponse(device, requestId, GattStatus.READ_NOT_PERMITTED, offset, null);
+            return;
+        }
+        GattConnection connection = active(device);
+        if (challenge && (connection == null || offset > 0)) {
+            gattServer.sendResponse(device, requestId, GattStatus.READ_NOT_PERMITTED, offset, null);
+            return;
+        }
+        int maxPayload = connection != null ? connection.maxReadPayload() : GattConnection.DEFAULT_MTU - 1;
+        byte[] value = challenge
+                ? auth.challenge(connection)
+                : handler.onRead(tagState.get(), connection != null ? connection.isLegacyValues() : legacyValues);
+        if (offset > value.length) {
+            gattServer.sendResponse(device, requestId, GattStatus.INVALID_OFFSET, offset, null);
+            return;
+        }
+        // Long reads: a value that does not fit is read in MTU-sized parts, each from its offset.
+        // Values that fit are sent as-is, without copying.
+        if (offset > 0 || value.length > maxPayload) {
+            value = Arrays.copyOfRange(value, offset, Math.min(value.length, offset + maxPayload));
+        }
+        if (connection != null) connection.countOut(value.length);
+        gattServer.sendResponse(device, requestId, GattStatus.SUCCESS, offset, value);
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(BleDevice device, int requestId, UUID characteristic,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        GattServer gattServer = server;
+        if (gattServer == null) return;
+        long started = System.nanoTime();
+        int index = MuTagProfile.indexOf(characteristic);
+        serveWrite(gattServer, device, requestId, characteristic, index, preparedWrite, responseNeeded, offset, value);
+        timer(writeMicros, "gatt.write.", index).recordMicrosSince(started);
+    }
+
+    private void serveWrite(GattServer gattServer, BleDevice device, int requestId, UUID characteristic, int index,
+                            boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        GattConnection connection = active(device);
+        if (connection != null && value != null) connection.countIn(value.length);
+        if (index >= 0 && MuTagProfile.service(index) == MuTagProfile.SILICON_LABS_OTA) {
+            int status = onOtaWrite(device, index, value);
+            if (responseNeeded) gattServer.sendResponse(device, requestId, status, offset, null);
+            return;
+        }
+        ConnectionAuthenticator auth = authenticator;
+        if (index == MuTagProfile.AUTHENTICATE_CONNECTION && auth != null) {
+            int status = onAuthenticate(auth, device, connection, preparedWrite, value);
+            if (responseNeeded) gattServer.sendResponse(device, requestId, status, offset, null);
+            return;
+        }
+        WriteHandler handler = index >= 0 ? writeHandlers[index] : null;
+        int status;
+        byte[] response = null;
+        if (handler == null) {
+            status = GattStatus.WRITE_NOT_PERMITTED;
+        } else if (auth != null && MuTagProfile.service(index) == MuTagProfile.MU_TAG_CONFIGURATION_SERVICE
+                && (connection == null || !connection.isAuthenticated())) {
+            unauthenticated.inc();
+            status = GattStatus.INSUFFICIENT_AUTHENTICATION;
+        } else if (preparedWrite) {
+            if (connection == null) {
+                status = GattStatus.INSUFFICIENT_RESOURCES;
+            } else {
+                PreparedWriteQueue queue = connection.preparedWrites;
+                synchronized (queue) {
+                    status = queue.prepare(characteristic, offset, value);
+                }
+                // the central checks the echoed chunk against what it sent
+                if (status == GattStatus.SUCCESS) {
+                    response = value;
+                    connection.countOut(value != null ? value.length : 0);
+                }
+            }
+        } else if (value == null || value.length == 0) {
+            status = GattStatus.SUCCESS;
+        } else {
+            status = commit(device, connection, handler, value, value.length);
+        }
+        if (responseNeeded) {
+            gattServer.sendResponse(device, requestId, status, offset, response);
+        }
+    }
+
+    /**
+     * Applies or cancels the connection's queued writes. The values are applied all together or
+     * not at all.
+     */
+    @Override
+    public void onExecuteWrite(BleDevice device, int requestId, boolean execute) {
+        GattServer gattServer = server;
+        if (gattServer == null) return;
+        GattConnection connection = active(device);
+        int status = GattStatus.SUCCESS;
+        if (connection != null) {
+            PreparedWriteQueue queue = connection.preparedWrites;
+            synchronized (queue) {
+                if (execute) status = commit(device, connection, queue);
+                queue.clear();
+            }
+        }
+        gattServer.sendResponse(device, requestId, status, 0, null);
+    }
+
+    /**
+     * Only client characteristic configuration descriptors are served; they record which
+     * characteristics the central subscribed to.
+     */
+    @Override
+    public void onDescriptorReadRequest(BleDevice device, int requestId, int offset, UUID characteristic,
+                                        UUID descriptor) {
+        GattServer gattServer = server;
+        if (gattServer == null) return;
+        GattConnection connection = active(device);
+        if (!MuTagUuids.CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor) || connection == null) {
+            gattServer.sendResponse(device, requestId, GattStatus.READ_NOT_PERMITTED, offset, null);
+            return;
+        }
+        byte[] value = connection.isSubscribed(characteristic) ? CCCD_NOTIFY : CCCD_NONE;
+        gattServer.sendResponse(device, requestId, GattStatus.SUCCESS, offset, value);
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(BleDevice device, int requestId, UUID characteristic, UUID descriptor,
+                                         boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        GattServer gattServer = server;
+        if (gattServer == null) return;
+        GattConnection connection = active(device);
+        int status;
+        if (!MuTagUuids.CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor) || connection == null || preparedWrite) {
+            status = GattStatus.WRITE_NOT_PERMITTED;
+        } else if (value == null || value.length != 2 || offset != 0) {
+            status = GattStatus.INVALID_ATTRIBUTE_LENGTH;
+        } else {
+            // bit 0 notifications, bit 1 indications
+            connection.setSubscribed(characteristic, (value[0] & 0x03) != 0);
+            status = GattStatus.SUCCESS;
+        }
+        if (responseNeeded) gattServer.sendResponse(device, requestId, status, offset, null);
+    }
+
+    @Override
+    public void onNotificationSent(BleDevice device, int status) {
+        GattConnection connection = connections.get(device.getAddress());
+        if (connection != null) connection.notifications.onSent(status == GattStatus.SUCCESS);
+    }
+
+    /**
+     * Fills the characteristic dispatch tables.
+     */
+    private void registerHandlers() {
+        readHandlers[MuTagProfile.DEVICE_NAME] = (state, legacy) -> state.deviceNameValue();
+        readHandlers[MuTagProfile.DEVICE_UUID] = (state, legacy) -> state.deviceUuidValue();
+        readHandlers[MuTagProfile.DEVICE_MAJOR] =
+                (state, legacy) -> legacy ? state.legacyMajorValue() : state.majorValue();
+        readHandlers[MuTagProfile.DEVICE_MINOR] =
+                (state, legacy) -> legacy ? state.legacyMinorValue() : state.minorValue();
+        readHandlers[MuTagProfile.TAG_COLOR] =
+                (state, legacy) -> legacy ? state.legacyTagColorValue() : state.tagColorValue();
+        readHandlers[MuTagProfile.MODEL_NUMBER_STRING] = (state, legacy) -> state.modelNumberValue();
+        readHandlers[MuTagProfile.FIRMWARE_REVISION_STRING] = (state, legacy) -> state.firmwareRevisionValue();
+        readHandlers[MuTagProfile.SYSTEM_ID] = (state, legacy) -> state.systemIdValue();
+        readHandlers[MuTagProfile.BATTERY_LEVEL] = (state, legacy) -> state.batteryLevelValue();
+
+        writeHandlers[MuTagProfile.DEVICE_UUID] = (state, connection, value, length) -> {
+            UUID uuid = CharacteristicCodec.decodeUuid(MuTagProfile.DEVICE_UUID, value, length);
+            return uuid != null ? state.withDeviceUuid(uuid) : null;
+        };
+        writeHandlers[MuTagProfile.DEVICE_MAJOR] = number(MuTagProfile.DEVICE_MAJOR, TagState::withMajor);
+        writeHandlers[MuTagProfile.DEVICE_MINOR] = number(MuTagProfile.DEVICE_MINOR, TagState::withMinor);
+        // legacy centrals write the raw code as well, so this one never switches formats
+        writeHandlers[MuTagProfile.TAG_COLOR] = (state, connection, value, length) -> {
+            int code = CharacteristicCodec.decode(MuTagProfile.TAG_COLOR, value, length);
+            return code != CharacteristicCodec.INVALID && TagColors.isKnown((byte) code)
+                    ? state.withTagColor(TagColors.indexOf((byte) code)) : null;
+        };
+    }
+
+    /**
+     * Decodes writes to a numeric characteristic as an ASCII decimal if they look like one and as
+     * binary otherwise, and switches the connection to the format that was written.
+     */
+    private static WriteHandler number(int characteristic, NumberWriteHandler handler) {
+        return (state, connection, value, length) -> {
+            boolean legacy = CharacteristicCodec.isDecimal(value, length);
+            int number = legacy
+                    ? CharacteristicCodec.decodeString(characteristic, value, length)
+                    : CharacteristicCodec.decode(characteristic, value, length);
+            TagState next = number != CharacteristicCodec.INVALID ? handler.onWrite(state, number) : null;
+            if (next != null && connection != null) connection.setLegacyValues(legacy);
+            return next;
+        };
+    }
+
+    /**
+     * Applies a single write.
+     */
+    private int commit(BleDevice device, GattConnection connection, WriteHandler handler, byte[] value, int length) {
+        while (true) {
+            TagState current = tagState.get();
+            TagState next = handler.onWrite(current, connection, value, length);
+            if (next == null) return GattStatus.VALUE_NOT_ALLOWED;
+            if (tagState.compareAndSet(current, next)) {
+                written(device, current, next);
+                return GattStatus.SUCCESS;
+            }
+        }
+    }
+
+    /**
+     * Applies every value of a queued write as one state change.
+     */
+    private int commit(BleDevice device, GattConnection connection, PreparedWriteQueue queue) {
+        if (queue.error() != GattStatus.SUCCESS) return queue.error();
+        if (queue.size() == 0) return GattStatus.SUCCESS;
+        while (true) {
+            TagState current = tagState.get();
+            TagState next = current;
+            for (int i = 0; i < queue.size(); i++) {
+                if (queue.length(i) == 0) continue;
+                WriteHandler handler = writeHandlers[MuTagProfile.indexOf(queue.characteristic(i))];
+                next = handler.onWrite(next, connection, queue.value(i), queue.length(i));
+                if (next == null) return GattStatus.VALUE_NOT_ALLOWED;
+            }
+            if (tagState.compareAndSet(current, next)) {
+                written(device, current, next);
+                return GattStatus.SUCCESS;
+            }
+        }
+    }
+
+    /**
+     * Persists the fields a central changed and reports the new state.
+     */
+    private void written(BleDevice device, TagState previous, TagState state) {
+        if (config != null) {
+            TagConfigStore.Editor editor = config.edit();
+            if (state.deviceUuid != previous.deviceUuid) editor.putDeviceUuid(state.deviceUuid);
+            if (state.major != previous.major) editor.putMajor(state.major);
+            if (state.minor != previous.minor) editor.putMinor(state.minor);
+            if (state.tagColor != previous.tagColor) editor.putTagColor(state.tagColor);
+            editor.apply();
+        }
+        listener.onStatus(device.getAddress() + " wrote " + state);
+        listener.onTagStateWritten(state);
+    }
+
+    /**
+     * Checks a response to the connection's challenge. Responses fit a single write, so queued
+     * writes are not supported.
+     */
+    private int onAuthenticate(ConnectionAuthenticator auth, BleDevice device, GattConnection connection,
+                               boolean preparedWrite, byte[] value) {
+        if (connection == null) return GattStatus.INSUFFICIENT_RESOURCES;
+        if (preparedWrite) return GattStatus.REQUEST_NOT_SUPPORTED;
+        if (!auth.authenticate(connection, value, value != null ? value.length : 0)) {
+            listener.onStatus(device.getAddress() + " failed to authenticate");
+            return GattStatus.INSUFFICIENT_AUTHENTICATION;
+        }
+        listener.onStatus(device.getAddress() + " authenticated");
+        return GattStatus.SUCCESS;
+    }
+
+    private int onOtaWrite(BleDevice device, int characteristic, byte[] value) {
+        OtaReceiver receiver = ota;
+        if (receiver == null) return GattStatus.WRITE_NOT_PERMITTED;
+        if (value == null || value.length == 0) return GattStatus.INVALID_ATTRIBUTE_LENGTH;
+        String address = device.getAddress();
+        synchronized (receiver) {
+            boolean owner = receiver.isActive() && address.equals(otaOwner);
+            try {
+                if (characteristic == MuTagProfile.OTA_DATA) {
+                    if (!owner) return GattStatus.WRITE_NOT_PERMITTED;
+                    if (receiver.write(value)) ackOta(address, receiver.received());
+                    return GattStatus.SUCCESS;
+                }
+                switch (value[0]) {
+                    case OTA_START:
+                        if (receiver.isActive() && !owner) return GattStatus.INSUFFICIENT_RESOURCES;
+                        receiver.start(new File(otaDirectory, "ota-" + System.currentTimeMillis() + ".gbl"),
+                                value.length >= 5 ? readUInt32(value, 1) : 0);
+                        otaOwner = address;
+                        listener.onStatus(address + " started OTA");
+                        return GattStatus.SUCCESS;
+                    case OTA_END:
+                        if (!owner) return GattStatus.WRITE_NOT_PERMITTED;
+                        otaOwner = null;
+                        OtaReceiver.Result result = receiver.finish();
+                        OtaReceiver.prune(otaDirectory, OTA_IMAGES_KEPT);
+                        lastOtaResult = result;
+                        ackOta(address, result.bytes);
+                        listener.onStatus(result.toString());
+                        return GattStatus.SUCCESS;
+                    case OTA_CLOSE:
+                        if (owner) receiver.abort();
+                        otaOwner = null;
+                        return GattStatus.SUCCESS;
+                    default:
+                        return GattStatus.VALUE_NOT_ALLOWED;
+                }
+            } catch (IOException e) {
+                receiver.abort();
+                otaOwner = null;
+                notifyOtaError(address, e instanceof OtaReceiver.TransferException
+                        ? ((OtaReceiver.TransferException) e).error : OtaReceiver.ERROR_STORAGE);
+                listener.onStatus("OTA failed: " + e.getMessage());
+                return GattStatus.FAILURE;
+            }
+        }
+    }
+
+    private static long readUInt32(byte[] value, int offset) {
+        return (value[offset] & 0xFFL) | (value[offset + 1] & 0xFFL) << 8
+                | (value[offset + 2] & 0xFFL) << 16 | (value[offset + 3] & 0xFFL) << 24;
+    }
+
+    private void notifyOtaError(String address, int error) {
+        GattConnection connection = connections.get(address);
+        if (connection == null) return;
+        connection.notifications.offer(MuTagUuids.OTA_CONTROL, new byte[]{(byte) error});
+    }
+
+    private void ackOta(String address, long received) {
+        GattConnection connection = connections.get(address);
+        if (connection == null) return;
+        connection.notifications.offer(MuTagUuids.OTA_CONTROL, new byte[]{
+                (byte) received, (byte) (received >> 8), (byte) (received >> 16), (byte) (received >> 24)});
+    }
+
+    @Override
+    public void onDropped(BleDevice device, UUID characteristic) {
+        if (!MuTagUuids.OTA_DATA.equals(characteristic)) return;
+        OtaReceiver receiver = ota;
+        if (receiver == null) return;
+        String address = device.getAddress();
+        synchronized (receiver) {
+            if (!address.equals(otaOwner)) return;
+            receiver.abort();
+            otaOwner = null;
+        }
+        notifyOtaError(address, OtaReceiver.ERROR_DROPPED);
+        listener.onStatus(address + " OTA chunk dropped, transfer aborted");
+    }
+
+    /**
+     * Drops the transfer of {@code address}, if it is sending one.
+     */
+    private void abortOta(String address) {
+        OtaReceiver receiver = ota;
+        if (receiver == null) return;
+        synchronized (receiver) {
+            if (!address.equals(otaOwner)) return;
+            receiver.abort();
+            otaOwner = null;
+        }
+        listener.onStatus(address + " disconnected during OTA");
+    }
+
+    /**
+     * Creates the state of a new connection. Its notification queue sends one notification at a
+     * time, cut to what the connection's MTU can carry.
+     */
+    private GattConnection createConnection(BleDevice device) {
+        GattConnection[] holder = new GattConnection[1];
+        NotificationQueue notifications = new NotificationQueue((uuid, value) -> {
+            GattServer gattServer = server;
+            if (gattServer == null) return false;
+            GattConnection connection = holder[0];
+            if (value.length > connection.maxNotificationPayload()) {
+                value = Arrays.copyOf(value, connection.maxNotificationPayload());
+            }
+            if (!gattServer.notifyCharacteristicChanged(device, uuid, value, false)) return false;
+            connection.countOut(value.length);
+            return true;
+        }, notifyAckMicros);
+        holder[0] = new GattConnection(device, notifications,
+                new PreparedWriteQueue(writeBuffers, MAX_PREPARED_ATTRIBUTES), System.nanoTime(), legacyValues);
+        return holder[0];
+    }
+
+    /**
+     * Returns the connection of {@code device}, marking it active, or null if it is not registered.
+     */
+    private GattConnection active(BleDevice device) {
+        GattConnection connection = connections.get(device.getAddress());
+        if (connection != null) connection.touch(System.nanoTime());
+        return connection;
+    }
+
+    /**
+     * Returns the service time histogram of a characteristic, created on its first request.
+     * Requests for characteristics outside the profile share one {@code unknown} histogram.
+     */
+    private MetricsRegistry.Histogram timer(AtomicReferenceArray<MetricsRegistry.Histogram> timers, String prefix,
+                                            int index) {
+        if (index < 0) return metrics.histogram(prefix + "unknown_us");
+        MetricsRegistry.Histogram timer = timers.get(index);
+        if (timer == null) {
+            timer = metrics.histogram(prefix + MuTagProfile.name(index) + "_us");
+            timers.compareAndSet(index, null, timer);
+        }
+        return timer;
+    }
+
+    private static void release(GattConnection connection) {
+        connection.notifications.clear();
+        synchronized (connection.preparedWrites) {
+            connection.preparedWrites.clear();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+
+/**
+ * Outbound notification queue for a single connected central.
+ * <p>
+ * Only one notification is handed to the stack at a time; the next one goes out when
+ * {@link #onSent(boolean)} reports the previous one through {@code onNotificationSent}.
+ * Offering a value for a characteristic that is still waiting in the queue replaces the queued
+ * value in place, so a central always receives the latest value and never a stale backlog.
+ * The time from handing a notification to the stack until {@code onNotificationSent} can be
+ * recorded in a histogram.
+ * <p>
+ * A notification that is not acknowledged within the send timeout counts as failed, but the stack
+ * may still hold it, so the link stays busy until its late {@code onNotificationSent} arrives;
+ * that ack only releases the link and is not credited to the next notification. If no ack comes
+ * within a second timeout, as happens when the link is lost, it is presumed lost and the link is
+ * released. {@link #offer} checks for timeouts and {@link #expire(long)} can be called
+ * periodically so a quiet queue does not stall. The sender is called without holding the
+ * queue's lock.
+ */
+public final class NotificationQueue {
+
+    /**
+     * Hands a single notification to the Bluetooth stack. Returns false if the stack refused it,
+     * in which case no {@code onNotificationSent} callback will follow.
+     */
+    public interface Sender {
+        boolean send(UUID characteristic, byte[] value);
+    }
+
+    private static final class Entry {
+        final UUID characteristic;
+        byte[] value;
+
+        Entry(UUID characteristic, byte[] value) {
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Default time a notification may wait for {@code onNotificationSent}.
+     */
+    public static final long DEFAULT_SEND_TIMEOUT_MILLIS = 2000;
+
+    private final Sender sender;
+    private final MetricsRegistry.Histogram ackMicros;
+    private final long sendTimeoutNanos;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private boolean inFlight;
+    /** The in-flight notification timed out and its ack, if it comes, is stale. */
+    private boolean timedOutInFlight;
+    /** Incremented for every notification handed to the sender, to match its result. */
+    private long sendSeq;
+    private long sentAtNanos;
+
+    private long offered;
+    private long sent;
+    private long coalesced;
+    private long failed;
+    private long timedOut;
+    private int maxDepth;
+
+    public NotificationQueue(Sender sender) {
+        this(sender, null);
+    }
+
+    /**
+     * @param ackMicros receives the send-to-ack latency of every notification; may be null
+     */
+    public NotificationQueue(Sender sender, MetricsRegistry.Histogram ackMicros) {
+        this(sender, ackMicros, DEFAULT_SEND_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param sendTimeoutMillis time a notification may wait for {@code onNotificationSent}
+     */
+    public NotificationQueue(Sender sender, MetricsRegistry.Histogram ackMicros, long sendTimeoutMillis) {
+        this.sender = sender;
+        this.ackMicros = ackMicros;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+    }
+
+    /**
+     * Queues {@code value} for {@code characteristic} and sends it right away if the link is idle.
+     */
+    public void offer(UUID characteristic, byte[] value) {
+        synchronized (this) {
+            offered++;
+            Entry entry = entry(characteristic);
+            if (entry != null) {
+                entry.value = value;
+                coalesced++;
+            } else {
+                pending.add(new Entry(characteristic, value));
+                if (pending.size() > maxDepth) maxDepth = pending.size();
+            }
+            expireLocked(System.nanoTime());
+        }
+        sendNext();
+    }
+
+    /**
+     * Called from {@code onNotificationSent}; releases the link and sends the next queued value.
+     */
+    public void onSent(boolean success) {
+        synchronized (this) {
+            if (!inFlight) return;
+            inFlight = false;
+            if (timedOutInFlight) {
+                // already counted as failed; only the link is released
+                timedOutInFlight = false;
+            } else {
+                if (ackMicros != null) ackMicros.recordMicrosSince(sentAtNanos);
+                if (success) {
+                    sent++;
+                } else {
+                    failed++;
+                }
+            }
+        }
+        sendNext();
+    }
+
+    /**
+     * Counts a notification that waited longer than the send timeout as failed, and releases the
+     * link once its ack has not come within a second timeout either.
+     *
+     * @return true if a notification timed out or its late ack was given up on
+     */
+    public boolean expire(long nowNanos) {
+        synchronized (this) {
+            if (!expireLocked(nowNanos)) return false;
+        }
+        sendNext();
+        return true;
+    }
+
+    /**
+     * Drops everything that has not been handed to the stack yet.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        inFlight = false;
+        timedOutInFlight = false;
+    }
+
+    public synchronized int depth() {
+        return pending.size();
+    }
+
+    public synchronized long coalescedCount() {
+        return coalesced;
+    }
+
+    public synchronized long sentCount() {
+        return sent;
+    }
+
+    public synchronized long failedCount() {
+        return failed;
+    }
+
+    public synchronized long timedOutCount() {
+        return timedOut;
+    }
+
+    private Entry entry(UUID characteristic) {
+        for (Entry entry : pending) {
+            if (entry.characteristic.equals(characteristic)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the in-flight notification timed out or its late ack was given up on
+     */
+    private boolean expireLocked(long nowNanos) {
+        if (!inFlight || nowNanos - sentAtNanos < sendTimeoutNanos) return false;
+        if (timedOutInFlight) {
+            inFlight = false;
+            timedOutInFlight = false;
+        } else {
+            // keep the link until the stack reports the notification or a second timeout passes
+            timedOutInFlight = true;
+            sentAtNanos = nowNanos;
+            failed++;
+            timedOut++;
+        }
+        return true;
+    }
+
+    /**
+     * Hands queued values to the sender while the link is idle. The sender runs outside the lock;
+     * the sequence number tells whether a refused send still owns the link.
+     */
+    private void sendNext() {
+        while (true) {
+            Entry entry;
+            long seq;
+            synchronized (this) {
+                if (inFlight || (entry = pending.poll()) == null) return;
+                inFlight = true;
+                timedOutInFlight = false;
+                seq = ++sendSeq;
+                sentAtNanos = System.nanoTime();
+            }
+            if (sender.send(entry.characteristic, entry.value)) return;
+            synchronized (this) {
+                failed++;
+                if (sendSeq != seq) return;
+                inFlight = false;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NotificationQueue{depth=" + pending.size() + ", maxDepth=" + maxDepth
+                + ", offered=" + offered + ", sent=" + sent + ", coalesced=" + coalesced
+                + ", failed=" + failed + ", timedOut=" + timedOut + ", inFlight=" + inFlight
+                + ", awaitingLateAck=" + timedOutInFlight + "}";
+    }
+}
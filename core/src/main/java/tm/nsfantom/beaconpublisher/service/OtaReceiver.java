@@ -0,0 +1,242 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Receives one firmware image at a time and streams it to a file.
+ * <p>
+ * Chunks are staged in a direct buffer and handed to a {@link FileChannel} in large writes, and
+ * the CRC32 is updated as chunks arrive, so nothing is held in memory beyond the staging buffer
+ * and finishing does not re-read the image. Every {@code ackWindow} chunks {@link #write} asks
+ * the caller to acknowledge the bytes received so far, which lets the sender keep a sliding
+ * window of write-without-response chunks in flight.
+ * <p>
+ * The image is received into a {@code .part} sibling of its file and renamed when it is complete.
+ * When the sender announced the image size, a transfer that runs over it or ends short of it,
+ * which is what a lost chunk looks like, fails with {@link #ERROR_LENGTH} and leaves nothing
+ * behind.
+ */
+public final class OtaReceiver {
+
+    /** The image ran over or ended short of the announced size. */
+    public static final int ERROR_LENGTH = 0x01;
+    /** A chunk was lost before it reached the receiver. */
+    public static final int ERROR_DROPPED = 0x02;
+    /** The image could not be stored. */
+    public static final int ERROR_STORAGE = 0x03;
+
+    private static final int STAGING_BUFFER_SIZE = 64 * 1024;
+    private static final String IMAGE_SUFFIX = ".gbl";
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * A transfer the sender has to start over, with one of the {@code ERROR_} codes.
+     */
+    public static final class TransferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int error;
+
+        TransferException(int error, String message) {
+            super(message);
+            this.error = error;
+        }
+    }
+
+    /**
+     * Outcome of a completed transfer.
+     */
+    public static final class Result {
+        public final File file;
+        public final long bytes;
+        public final long crc32;
+        public final long nanos;
+
+        Result(File file, long bytes, long crc32, long nanos) {
+            this.file = file;
+            this.bytes = bytes;
+            this.crc32 = crc32;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Sustained rate from the first to the last chunk.
+         */
+        public long bytesPerSecond() {
+            return nanos > 0 ? bytes * 1_000_000_000L / nanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("OTA %s: %d bytes, crc32 %08x, %d ms, %d B/s",
+                    file.getName(), bytes, crc32, nanos / 1_000_000, bytesPerSecond());
+        }
+    }
+
+    private final int ackWindow;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer staging;
+    private FileOutputStream out;
+    private FileChannel channel;
+    private File file;
+    private File partFile;
+    private long expectedBytes;
+    private long bytes;
+    private int chunksSinceAck;
+    private long firstChunkNanos;
+    private long lastChunkNanos;
+
+    public OtaReceiver(int ackWindow) {
+        this.ackWindow = ackWindow;
+    }
+
+    public synchronized boolean isActive() {
+        return channel != null;
+    }
+
+    /**
+     * Starts receiving into {@code file}, replacing it. Any transfer in progress is aborted.
+     *
+     * @param expectedBytes size of the image, or 0 if the sender did not announce it
+     */
+    public synchronized void start(File file, long expectedBytes) throws IOException {
+        abort();
+        if (staging == null) staging = ByteBuffer.allocateDirect(STAGING_BUFFER_SIZE);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create " + parent);
+        }
+        partFile = new File(file.getPath() + PART_SUFFIX);
+        out = new FileOutputStream(partFile);
+        channel = out.getChannel();
+        this.file = file;
+        this.expectedBytes = expectedBytes;
+        staging.clear();
+        crc.reset();
+        bytes = 0;
+        chunksSinceAck = 0;
+        firstChunkNanos = 0;
+    }
+
+    /**
+     * Appends a chunk.
+     *
+     * @return true when the ack window is full and the sender should be told {@link #received()}
+     */
+    public synchronized boolean write(byte[] chunk) throws IOException {
+        if (channel == null) throw new IllegalStateException("no transfer in progress");
+        if (expectedBytes > 0 && bytes + chunk.length > expectedBytes) {
+            throw new TransferException(ERROR_LENGTH, "image exceeds " + expectedBytes + " bytes");
+        }
+        long now = System.nanoTime();
+        if (bytes == 0) firstChunkNanos = now;
+        lastChunkNanos = now;
+        int offset = 0;
+        while (offset < chunk.length) {
+            if (!staging.hasRemaining()) drain();
+            int length = Math.min(staging.remaining(), chunk.length - offset);
+            staging.put(chunk, offset, length);
+            offset += length;
+        }
+        crc.update(chunk, 0, chunk.length);
+        bytes += chunk.length;
+        if (++chunksSinceAck < ackWindow) return false;
+        chunksSinceAck = 0;
+        return true;
+    }
+
+    /**
+     * Bytes received in the current transfer.
+     */
+    public synchronized long received() {
+        return bytes;
+    }
+
+    /**
+     * Bytes the sender announced, or 0.
+     */
+    public synchronized long expected() {
+        return expectedBytes;
+    }
+
+    /**
+     * Flushes the image to disk, closes it and moves it to its file. The transfer is over either
+     * way; if this throws, the partial image is deleted.
+     */
+    public synchronized Result finish() throws IOException {
+        if (channel == null) throw new IllegalStateException("no transfer in progress");
+        boolean complete = false;
+        try {
+            if (expectedBytes > 0 && bytes != expectedBytes) {
+                throw new TransferException(ERROR_LENGTH, "received " + bytes + " of " + expectedBytes + " bytes");
+            }
+            drain();
+            channel.force(false);
+            close();
+            file.delete();
+            if (!partFile.renameTo(file)) throw new IOException("rename " + partFile + " failed");
+            complete = true;
+        } finally {
+            if (!complete) {
+                close();
+                partFile.delete();
+            }
+        }
+        return new Result(file, bytes, crc.getValue(), lastChunkNanos - firstChunkNanos);
+    }
+
+    /**
+     * Drops the transfer in progress, if any, and deletes its partial file.
+     */
+    public synchronized void abort() {
+        if (channel == null) return;
+        close();
+        partFile.delete();
+    }
+
+    /**
+     * Deletes partial images left in {@code directory} by a transfer that never finished, and all
+     * but the {@code keep} newest images. Image names have to sort by age.
+     */
+    public static void prune(File directory, int keep) {
+        String[] names = directory.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        int images = 0;
+        for (String name : names) {
+            if (name.endsWith(IMAGE_SUFFIX)) images++;
+        }
+        for (String name : names) {
+            if (name.endsWith(PART_SUFFIX)) {
+                new File(directory, name).delete();
+            } else if (name.endsWith(IMAGE_SUFFIX) && images-- > keep) {
+                new File(directory, name).delete();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            channel.write(staging);
+        }
+        staging.clear();
+    }
+
+    private void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // nothing left to do with a file we are giving up on
+        }
+        out = null;
+        channel = null;
+    }
+}
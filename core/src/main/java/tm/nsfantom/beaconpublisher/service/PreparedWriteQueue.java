@@ -0,0 +1,120 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.UUID;
+
+import tm.nsfantom.beaconpublisher.ble.GattStatus;
+import tm.nsfantom.beaconpublisher.util.BufferPool;
+
+/**
+ * Queued (Prepare Write / Execute Write) values of a single connection.
+ * <p>
+ * Each characteristic written in the queue gets one buffer from a shared {@link BufferPool},
+ * sized for the longest attribute value, and every chunk is copied into place at its offset, so
+ * a long write costs no allocation per chunk. At most {@code maxAttributes} characteristics can be
+ * pending at once, which bounds the memory one central can pin. Offset and length errors are
+ * remembered and reported when the queue is executed, as the ATT protocol requires.
+ * <p>
+ * Not thread safe; the owner serializes access per connection.
+ */
+public final class PreparedWriteQueue {
+
+    /**
+     * Longest attribute value allowed by the ATT protocol.
+     */
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    private final BufferPool pool;
+    private final UUID[] characteristics;
+    private final byte[][] buffers;
+    private final int[] lengths;
+    private int size;
+    private int error = GattStatus.SUCCESS;
+
+    /**
+     * @param pool must hand out buffers of at least {@link #MAX_ATTRIBUTE_LENGTH} bytes
+     */
+    public PreparedWriteQueue(BufferPool pool, int maxAttributes) {
+        if (pool.bufferSize() < MAX_ATTRIBUTE_LENGTH) {
+            throw new IllegalArgumentException("pool buffers are smaller than " + MAX_ATTRIBUTE_LENGTH);
+        }
+        this.pool = pool;
+        this.characteristics = new UUID[maxAttributes];
+        this.buffers = new byte[maxAttributes][];
+        this.lengths = new int[maxAttributes];
+    }
+
+    /**
+     * Queues one chunk. Returns the status for the Prepare Write response: only
+     * {@link GattStatus#PREPARE_QUEUE_FULL} is reported right away.
+     */
+    public int prepare(UUID characteristic, int offset, byte[] value) {
+        int index = indexOf(characteristic);
+        if (index < 0) {
+            if (size == characteristics.length) return GattStatus.PREPARE_QUEUE_FULL;
+            index = size++;
+            characteristics[index] = characteristic;
+            buffers[index] = pool.acquire();
+            lengths[index] = 0;
+        }
+        int length = value != null ? value.length : 0;
+        if (offset < 0 || offset > lengths[index]) {
+            fail(GattStatus.INVALID_OFFSET);
+        } else if (offset + length > MAX_ATTRIBUTE_LENGTH) {
+            fail(GattStatus.INVALID_ATTRIBUTE_LENGTH);
+        } else if (length > 0) {
+            System.arraycopy(value, 0, buffers[index], offset, length);
+            lengths[index] = Math.max(lengths[index], offset + length);
+        }
+        return GattStatus.SUCCESS;
+    }
+
+    /**
+     * First offset or length error seen since the last {@link #clear()}, or SUCCESS.
+     */
+    public int error() {
+        return error;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public UUID characteristic(int index) {
+        return characteristics[index];
+    }
+
+    /**
+     * Assembled value; valid up to {@link #length(int)} and until {@link #clear()}.
+     */
+    public byte[] value(int index) {
+        return buffers[index];
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Drops every queued value and returns the buffers to the pool.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            pool.release(buffers[i]);
+            buffers[i] = null;
+            characteristics[i] = null;
+        }
+        size = 0;
+        error = GattStatus.SUCCESS;
+    }
+
+    private int indexOf(UUID characteristic) {
+        for (int i = 0; i < size; i++) {
+            if (characteristics[i].equals(characteristic)) return i;
+        }
+        return -1;
+    }
+
+    private void fail(int status) {
+        if (error == GattStatus.SUCCESS) error = status;
+    }
+}
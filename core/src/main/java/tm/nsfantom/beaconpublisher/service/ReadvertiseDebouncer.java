@@ -0,0 +1,135 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.ble.Advertisement;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+
+/**
+ * Collapses bursts of identity changes into single re-advertisements.
+ * <p>
+ * Every {@link #onChanged()} pushes the publication back by {@code quiet}, but never further
+ * than {@code maxDelay} after the first unpublished change, so a central writing major and minor
+ * back to back, or someone typing into the UI, causes one update with a bounded delay. Once the
+ * advertiser confirms the new advertisement through {@link #onOnAir(Advertisement)}, the time
+ * since that first change is recorded in {@code adv.propagate_us}.
+ * <p>
+ * {@link #onChanged()} may be called from any thread; the publisher runs on the scheduler.
+ */
+public final class ReadvertiseDebouncer {
+
+    public static final long DEFAULT_QUIET_MILLIS = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 500;
+
+    /**
+     * Runs the publication later, e.g. a Handler on the thread that owns the advertiser.
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+
+        void cancel(Runnable task);
+    }
+
+    /**
+     * Puts the current identity on air.
+     */
+    public interface Publisher {
+        /**
+         * @return the advertisement handed to the advertiser, or null if nothing had to change
+         */
+        Advertisement publish();
+    }
+
+    private final Scheduler scheduler;
+    private final Publisher publisher;
+    private final long quietNanos;
+    private final long maxDelayNanos;
+    private final Runnable flush = this::flush;
+    private final MetricsRegistry.Counter changes;
+    private final MetricsRegistry.Counter published;
+    private final MetricsRegistry.Histogram propagateMicros;
+
+    /** Time of the first change not yet published, 0 if there is none. */
+    private long firstChangeNanos;
+    private long lastChangeNanos;
+    private Advertisement inFlight;
+    private long inFlightSinceNanos;
+
+    public ReadvertiseDebouncer(Scheduler scheduler, Publisher publisher, MetricsRegistry metrics) {
+        this(scheduler, publisher, DEFAULT_QUIET_MILLIS, DEFAULT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS, metrics);
+    }
+
+    public ReadvertiseDebouncer(Scheduler scheduler, Publisher publisher, long quiet, long maxDelay, TimeUnit unit,
+                                MetricsRegistry metrics) {
+        if (quiet > maxDelay) throw new IllegalArgumentException("quiet period longer than the maximum delay");
+        this.scheduler = scheduler;
+        this.publisher = publisher;
+        this.quietNanos = unit.toNanos(quiet);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.changes = metrics.counter("adv.readvertise.changes");
+        this.published = metrics.counter("adv.readvertise.published");
+        this.propagateMicros = metrics.histogram("adv.propagate_us");
+    }
+
+    /**
+     * Something the advertisement is built from changed.
+     */
+    public void onChanged() {
+        long now = System.nanoTime();
+        long delayNanos;
+        synchronized (this) {
+            changes.inc();
+            if (firstChangeNanos == 0) firstChangeNanos = now;
+            lastChangeNanos = now;
+            delayNanos = Math.min(quietNanos, firstChangeNanos + maxDelayNanos - now);
+        }
+        scheduler.cancel(flush);
+        scheduler.schedule(flush, TimeUnit.NANOSECONDS.toMillis(Math.max(0, delayNanos) + 999_999));
+    }
+
+    /**
+     * The advertiser reports {@code advertisement} on air.
+     */
+    public void onOnAir(Advertisement advertisement) {
+        long since;
+        synchronized (this) {
+            if (advertisement != inFlight) return;
+            since = inFlightSinceNanos;
+            inFlight = null;
+        }
+        propagateMicros.recordMicrosSince(since);
+    }
+
+    /**
+     * Drops pending changes, e.g. when advertising stops.
+     */
+    public void cancel() {
+        scheduler.cancel(flush);
+        synchronized (this) {
+            firstChangeNanos = 0;
+            inFlight = null;
+        }
+    }
+
+    /**
+     * Publishes under the lock, so a confirmation arriving on another thread before
+     * {@code publish()} returns waits for {@link #inFlight} instead of missing it.
+     */
+    private synchronized void flush() {
+        if (firstChangeNanos == 0) return;
+        long now = System.nanoTime();
+        // early by timer rounding, or a change raced with this run: wait out the rest
+        long remainingNanos = Math.min(lastChangeNanos + quietNanos, firstChangeNanos + maxDelayNanos) - now;
+        if (remainingNanos > 0) {
+            scheduler.schedule(flush, Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+            return;
+        }
+        long since = firstChangeNanos;
+        firstChangeNanos = 0;
+        Advertisement advertisement = publisher.publish();
+        if (advertisement == null) return;
+        published.inc();
+        inFlight = advertisement;
+        inFlightSinceNanos = since;
+    }
+}
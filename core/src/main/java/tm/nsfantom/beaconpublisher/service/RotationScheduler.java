@@ -0,0 +1,137 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time-slices a table of {@link BeaconIdentity} across the advertiser slots of the adapter.
+ * <p>
+ * Each dwell window puts the next {@code slots} identities on air in round robin order and
+ * closes the previous window, crediting its duration to the identities that were on air.
+ * Callers drive it with a clock of their choice; all methods are synchronized so statistics can
+ * be read from any thread.
+ */
+public final class RotationScheduler {
+
+    /**
+     * Accumulated on-air statistics for one identity.
+     */
+    public static final class Stats {
+        public final BeaconIdentity identity;
+        public final long onAirMillis;
+        public final long windows;
+
+        Stats(BeaconIdentity identity, long onAirMillis, long windows) {
+            this.identity = identity;
+            this.onAirMillis = onAirMillis;
+            this.windows = windows;
+        }
+
+        @Override
+        public String toString() {
+            return identity + " onAir=" + onAirMillis + "ms windows=" + windows;
+        }
+    }
+
+    private final List<BeaconIdentity> identities;
+    private final long dwellMillis;
+    private final long[] onAirMillis;
+    private final long[] windows;
+
+    private int slots;
+    private int[] onAir = new int[0];
+    private int cursor;
+    private long windowStart = -1;
+
+    public RotationScheduler(List<BeaconIdentity> identities, int slots, long dwellMillis) {
+        if (identities.isEmpty()) throw new IllegalArgumentException("No identities to advertise");
+        if (slots < 1) throw new IllegalArgumentException("slots < 1");
+        this.identities = new ArrayList<>(identities);
+        this.slots = slots;
+        this.dwellMillis = dwellMillis;
+        this.onAirMillis = new long[identities.size()];
+        this.windows = new long[identities.size()];
+    }
+
+    public synchronized BeaconIdentity identity(int index) {
+        return identities.get(index);
+    }
+
+    public synchronized int identityCount() {
+        return identities.size();
+    }
+
+    public long dwellMillis() {
+        return dwellMillis;
+    }
+
+    /**
+     * Number of slots that are actually used, never more than the number of identities.
+     */
+    public synchronized int activeSlots() {
+        return Math.min(slots, identities.size());
+    }
+
+    /**
+     * True if there are more identities than slots, i.e. windows have to be rotated at all.
+     */
+    public synchronized boolean rotates() {
+        return identities.size() > slots;
+    }
+
+    /**
+     * Shrinks the number of usable slots, e.g. after the stack reported too many advertisers.
+     */
+    public synchronized void limitSlots(int maxSlots) {
+        slots = Math.max(1, Math.min(slots, maxSlots));
+    }
+
+    /**
+     * Ends the current window at {@code nowMillis} and starts the next one.
+     *
+     * @return identity index per slot for the new window; owned by the scheduler and only valid
+     * until the next call
+     */
+    public synchronized int[] rotate(long nowMillis) {
+        closeWindow(nowMillis);
+        int active = activeSlots();
+        if (onAir.length != active) onAir = new int[active];
+        for (int slot = 0; slot < active; slot++) {
+            onAir[slot] = cursor;
+            windows[cursor]++;
+            cursor = (cursor + 1) % identities.size();
+        }
+        windowStart = nowMillis;
+        return onAir;
+    }
+
+    /**
+     * Ends the current window without starting another one.
+     */
+    public synchronized void stop(long nowMillis) {
+        closeWindow(nowMillis);
+        windowStart = -1;
+    }
+
+    /**
+     * Returns per-identity statistics including the time spent in the window that is still open.
+     */
+    public synchronized Stats[] stats(long nowMillis) {
+        long[] total = Arrays.copyOf(onAirMillis, onAirMillis.length);
+        if (windowStart >= 0) {
+            for (int index : onAir) total[index] += nowMillis - windowStart;
+        }
+        Stats[] stats = new Stats[identities.size()];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats(identities.get(i), total[i], windows[i]);
+        }
+        return stats;
+    }
+
+    private void closeWindow(long nowMillis) {
+        if (windowStart < 0) return;
+        long elapsed = nowMillis - windowStart;
+        for (int index : onAir) onAirMillis[index] += elapsed;
+    }
+}
@@ -0,0 +1,73 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resume tokens of centrals that authenticated recently, by address, least recently used first.
+ * An entry expires a fixed time after the handshake that created it; resuming does not extend it.
+ * Thread safe.
+ */
+final class SessionCache {
+
+    private static final class Session {
+        byte[] token;
+        final long expiryNanos;
+
+        Session(byte[] token, long expiryNanos) {
+            this.token = token;
+            this.expiryNanos = expiryNanos;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+    /** Sessions by address, in access order. */
+    private final LinkedHashMap<String, Session> sessions;
+
+    SessionCache(int capacity, long ttlMillis) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.sessions = new LinkedHashMap<String, Session>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > SessionCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Whether {@code address} has a session that has not expired yet and {@code token} is its
+     * current token, which is then replaced by {@code nextToken}. Expired sessions are removed.
+     */
+    synchronized boolean resume(String address, byte[] token, byte[] nextToken, long nowNanos) {
+        Session session = sessions.get(address);
+        if (session == null) return false;
+        if (nowNanos - session.expiryNanos >= 0) {
+            sessions.remove(address);
+            return false;
+        }
+        if (!MessageDigest.isEqual(session.token, token)) return false;
+        session.token = nextToken;
+        return true;
+    }
+
+    synchronized void put(String address, byte[] token, long nowNanos) {
+        sessions.put(address, new Session(token, nowNanos + ttlNanos));
+    }
+
+    synchronized void remove(String address) {
+        sessions.remove(address);
+    }
+
+    synchronized void clear() {
+        sessions.clear();
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+}
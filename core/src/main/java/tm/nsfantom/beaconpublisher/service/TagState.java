@@ -0,0 +1,208 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import tm.nsfantom.beaconpublisher.util.TagColors;
+
+/**
+ * Immutable snapshot of everything a central can read from the emulated Mu Tag.
+ * <p>
+ * Values are encoded to the wire format when the snapshot is built, so serving a read is a
+ * single field access. Major, minor and tag color use the binary {@link CharacteristicCodec}
+ * format; their ASCII form for legacy centrals is encoded on first use. Changes produce a new
+ * snapshot through the {@code with*} methods; the returned arrays are shared between readers and
+ * must never be modified.
+ */
+public final class TagState {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Derives the next state from the current one; may be applied more than once under contention.
+     */
+    public interface Update {
+        TagState apply(TagState state);
+    }
+
+    public final UUID deviceUuid;
+    public final String deviceName;
+    public final int major;
+    public final int minor;
+    public final int tagColor;
+
+    private final byte[] deviceUuidValue;
+    private final byte[] deviceNameValue;
+    private final byte[] majorValue;
+    private final byte[] minorValue;
+    private final byte[] tagColorValue;
+    private final DeviceInfo info;
+    private volatile LegacyValues legacyValues;
+
+    /**
+     * The numeric values as ASCII decimals, built for the first legacy central. Legacy centrals
+     * read the tag color as its list position, not as its code.
+     */
+    private static final class LegacyValues {
+        final byte[] major;
+        final byte[] minor;
+        final byte[] tagColor;
+
+        LegacyValues(int major, int minor, int tagColor) {
+            this.major = CharacteristicCodec.encodeString(major);
+            this.minor = CharacteristicCodec.encodeString(minor);
+            this.tagColor = CharacteristicCodec.encodeString(tagColor);
+        }
+    }
+
+    /**
+     * Read-only Device Information values, encoded once and shared by every snapshot.
+     */
+    private static final class DeviceInfo {
+        final byte[] modelNumber;
+        final byte[] firmwareRevision;
+        final byte[] systemId;
+        final byte[] batteryLevel;
+
+        DeviceInfo(String modelNumber, String firmwareRevision, String systemId, String batteryLevel) {
+            this.modelNumber = modelNumber.getBytes(UTF_8);
+            this.firmwareRevision = firmwareRevision.getBytes(UTF_8);
+            this.systemId = systemId.getBytes(UTF_8);
+            this.batteryLevel = batteryLevel.getBytes(UTF_8);
+        }
+    }
+
+    public TagState(UUID deviceUuid, String deviceName, int major, int minor, int tagColor, String firmwareRevision) {
+        this(deviceUuid, uuidValue(deviceUuid), deviceName, major, minor, tagColor,
+                new DeviceInfo("android1", firmwareRevision, "010101", "3"));
+    }
+
+    private TagState(UUID deviceUuid, byte[] deviceUuidValue, String deviceName, int major, int minor, int tagColor,
+                     DeviceInfo info) {
+        this.deviceUuid = deviceUuid;
+        this.deviceUuidValue = deviceUuidValue;
+        this.deviceName = deviceName;
+        this.major = major;
+        this.minor = minor;
+        this.tagColor = tagColor;
+        this.deviceNameValue = deviceName.getBytes(UTF_8);
+        this.majorValue = new byte[CharacteristicCodec.width(MuTagProfile.DEVICE_MAJOR)];
+        CharacteristicCodec.encode(MuTagProfile.DEVICE_MAJOR, major, majorValue, 0);
+        this.minorValue = new byte[CharacteristicCodec.width(MuTagProfile.DEVICE_MINOR)];
+        CharacteristicCodec.encode(MuTagProfile.DEVICE_MINOR, minor, minorValue, 0);
+        this.tagColorValue = new byte[CharacteristicCodec.width(MuTagProfile.TAG_COLOR)];
+        CharacteristicCodec.encode(MuTagProfile.TAG_COLOR, tagColorCode(tagColor), tagColorValue, 0);
+        this.info = info;
+    }
+
+    private static byte[] uuidValue(UUID uuid) {
+        byte[] value = new byte[CharacteristicCodec.width(MuTagProfile.DEVICE_UUID)];
+        CharacteristicCodec.encodeUuid(uuid, value, 0);
+        return value;
+    }
+
+    /**
+     * The code of the color at list position {@code tagColor}, 0 if there is no such color.
+     */
+    private static int tagColorCode(int tagColor) {
+        return tagColor >= 0 && tagColor < TagColors.count() ? TagColors.codeAt(tagColor) & 0xFF : 0;
+    }
+
+    public TagState withDeviceUuid(UUID deviceUuid) {
+        return new TagState(deviceUuid, uuidValue(deviceUuid), deviceName, major, minor, tagColor, info);
+    }
+
+    public TagState withDeviceName(String deviceName) {
+        return new TagState(deviceUuid, deviceUuidValue, deviceName, major, minor, tagColor, info);
+    }
+
+    public TagState withMajor(int major) {
+        return new TagState(deviceUuid, deviceUuidValue, deviceName, major, minor, tagColor, info);
+    }
+
+    public TagState withMinor(int minor) {
+        return new TagState(deviceUuid, deviceUuidValue, deviceName, major, minor, tagColor, info);
+    }
+
+    public TagState withTagColor(int tagColor) {
+        return new TagState(deviceUuid, deviceUuidValue, deviceName, major, minor, tagColor, info);
+    }
+
+    /**
+     * The 16 UUID bytes, most significant first.
+     */
+    public byte[] deviceUuidValue() {
+        return deviceUuidValue;
+    }
+
+    public byte[] deviceNameValue() {
+        return deviceNameValue;
+    }
+
+    /**
+     * Major as uint16, little endian.
+     */
+    public byte[] majorValue() {
+        return majorValue;
+    }
+
+    /**
+     * Minor as uint16, little endian.
+     */
+    public byte[] minorValue() {
+        return minorValue;
+    }
+
+    /**
+     * The {@link TagColors} code of the tag color, one byte.
+     */
+    public byte[] tagColorValue() {
+        return tagColorValue;
+    }
+
+    public byte[] legacyMajorValue() {
+        return legacyValues().major;
+    }
+
+    public byte[] legacyMinorValue() {
+        return legacyValues().minor;
+    }
+
+    /**
+     * The list position of the tag color as an ASCII decimal.
+     */
+    public byte[] legacyTagColorValue() {
+        return legacyValues().tagColor;
+    }
+
+    private LegacyValues legacyValues() {
+        LegacyValues values = legacyValues;
+        if (values == null) {
+            // racing readers may build it twice; both copies are equal
+            values = new LegacyValues(major, minor, tagColor);
+            legacyValues = values;
+        }
+        return values;
+    }
+
+    public byte[] modelNumberValue() {
+        return info.modelNumber;
+    }
+
+    public byte[] firmwareRevisionValue() {
+        return info.firmwareRevision;
+    }
+
+    public byte[] systemIdValue() {
+        return info.systemId;
+    }
+
+    public byte[] batteryLevelValue() {
+        return info.batteryLevel;
+    }
+
+    @Override
+    public String toString() {
+        return "TagState{uuid=" + deviceUuid + ", name=" + deviceName + ", major=" + major + ", minor=" + minor + ", color=" + tagColor + "}";
+    }
+}
@@ -0,0 +1,78 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import java.util.UUID;
+
+/**
+ * Builds beacon manufacturer data frames from a template that is laid out once per UUID.
+ * <p>
+ * Every call to {@link #encode(int, int, byte)} only patches the major, minor and txPower bytes
+ * of the template, so restarting advertising does not allocate or re-parse the UUID.
+ * Instances are not thread safe and the returned frame is reused by the next encode, which is
+ * fine for {@code AdvertiseData.Builder} because the data is copied when advertising starts.
+ */
+public final class BeaconFrameEncoder {
+
+    /**
+     * Apple iBeacon layout: 0x02 0x15, UUID, major, minor, txPower.
+     */
+    public static final int IBEACON_FRAME_LENGTH = 23;
+
+    /**
+     * AltBeacon layout: 0xBE 0xAC, UUID, major, minor, txPower, reserved.
+     */
+    public static final int ALTBEACON_FRAME_LENGTH = 24;
+
+    private static final int UUID_OFFSET = 2;
+    private static final int MAJOR_OFFSET = 18;
+    private static final int MINOR_OFFSET = 20;
+    private static final int TX_POWER_OFFSET = 22;
+
+    private final byte[] frame;
+
+    private BeaconFrameEncoder(byte prefix0, byte prefix1, UUID uuid, int length) {
+        frame = new byte[length];
+        frame[0] = prefix0;
+        frame[1] = prefix1;
+        putLong(frame, UUID_OFFSET, uuid.getMostSignificantBits());
+        putLong(frame, UUID_OFFSET + 8, uuid.getLeastSignificantBits());
+    }
+
+    public static BeaconFrameEncoder iBeacon(UUID uuid) {
+        return new BeaconFrameEncoder((byte) 0x02, (byte) 0x15, uuid, IBEACON_FRAME_LENGTH);
+    }
+
+    public static BeaconFrameEncoder altBeacon(UUID uuid) {
+        return new BeaconFrameEncoder((byte) 0xBE, (byte) 0xAC, uuid, ALTBEACON_FRAME_LENGTH);
+    }
+
+    /**
+     * Patches major/minor (big endian) and txPower into the template and returns it.
+     * The returned array is owned by the encoder and is overwritten by the next call.
+     */
+    public byte[] encode(int major, int minor, byte txPower) {
+        frame[MAJOR_OFFSET] = (byte) (major >> 8);
+        frame[MAJOR_OFFSET + 1] = (byte) major;
+        frame[MINOR_OFFSET] = (byte) (minor >> 8);
+        frame[MINOR_OFFSET + 1] = (byte) minor;
+        frame[TX_POWER_OFFSET] = txPower;
+        return frame;
+    }
+
+    /**
+     * Encodes into {@code dst} starting at {@code offset}, for callers that keep their own frame.
+     */
+    public void encode(int major, int minor, byte txPower, byte[] dst, int offset) {
+        System.arraycopy(encode(major, minor, txPower), 0, dst, offset, frame.length);
+    }
+
+    public int length() {
+        return frame.length;
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
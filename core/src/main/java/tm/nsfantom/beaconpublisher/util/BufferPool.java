@@ -0,0 +1,46 @@
+package tm.nsfantom.beaconpublisher.util;
+
+/**
+ * Bounded pool of equally sized byte arrays. Buffers come back dirty; callers track how much of
+ * a buffer they filled. Releasing more buffers than the pool holds lets the extra ones go to GC.
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final byte[][] free;
+    private int freeCount;
+    private long allocations;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new byte[maxPooled][];
+    }
+
+    public synchronized byte[] acquire() {
+        if (freeCount > 0) {
+            byte[] buffer = free[--freeCount];
+            free[freeCount] = null;
+            return buffer;
+        }
+        allocations++;
+        return new byte[bufferSize];
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            throw new IllegalArgumentException("buffer of " + buffer.length + " bytes, pool holds " + bufferSize);
+        }
+        if (freeCount < free.length) free[freeCount++] = buffer;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Number of buffers allocated because the pool was empty.
+     */
+    public synchronized long allocationCount() {
+        return allocations;
+    }
+}
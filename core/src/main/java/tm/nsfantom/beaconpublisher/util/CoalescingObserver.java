@@ -0,0 +1,62 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers the latest of a stream of values to an observer on another thread, e.g. the UI.
+ * <p>
+ * {@link #publish} may be called from any thread at any rate; at most one delivery is pending
+ * at a time and values published meanwhile replace each other, so the observer sees the newest
+ * value instead of every step. Without an observer values are kept, and the latest one is
+ * delivered once an observer is set.
+ */
+public final class CoalescingObserver<T> {
+
+    public interface Observer<T> {
+        void onChanged(T value);
+    }
+
+    private final Executor executor;
+    private final AtomicReference<T> latest = new AtomicReference<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable deliver = this::deliver;
+    private volatile Observer<T> observer;
+
+    /**
+     * @param executor runs deliveries on the observer's thread, e.g. {@code handler::post}
+     */
+    public CoalescingObserver(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets or, with null, clears the observer. Call on the observer's thread. Also re-arms
+     * delivery in case the executor dropped a pending one, as a Handler does when its callbacks
+     * are removed.
+     */
+    public void setObserver(Observer<T> observer) {
+        this.observer = observer;
+        scheduled.set(false);
+        if (observer != null && latest.get() != null) schedule();
+    }
+
+    public void publish(T value) {
+        latest.set(value);
+        if (observer != null) schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) executor.execute(deliver);
+    }
+
+    private void deliver() {
+        // cleared before taking the value, so a value published now schedules another delivery
+        scheduled.set(false);
+        Observer<T> current = observer;
+        if (current == null) return;
+        T value = latest.getAndSet(null);
+        if (value != null) current.onChanged(value);
+    }
+}
@@ -0,0 +1,204 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import java.util.UUID;
+
+/**
+ * Builds Eddystone frames, the service data of the 16-bit service UUID {@link #SERVICE_UUID}.
+ * <p>
+ * UID and URL frames do not change once built. The TLM frame is laid out once and
+ * {@link #encodeTelemetry(int, int, long, long)} patches its counters in place, so refreshing
+ * telemetry allocates nothing. As with {@link BeaconFrameEncoder}, instances are not thread safe
+ * and the returned frame is owned by the encoder.
+ */
+public final class EddystoneFrameEncoder {
+
+    /**
+     * Eddystone service UUID, 0xFEAA.
+     */
+    public static final int SERVICE_UUID = 0xFEAA;
+
+    public static final byte FRAME_UID = 0x00;
+    public static final byte FRAME_URL = 0x10;
+    public static final byte FRAME_TLM = 0x20;
+
+    /**
+     * Frame type, ranging data, 10 byte namespace, 6 byte instance, 2 reserved bytes.
+     */
+    public static final int UID_FRAME_LENGTH = 20;
+
+    /**
+     * Frame type, version, battery voltage, temperature, advertisement count, uptime.
+     */
+    public static final int TLM_FRAME_LENGTH = 14;
+
+    /**
+     * Longest encoded URL after the frame type, ranging data and scheme bytes.
+     */
+    public static final int MAX_URL_LENGTH = 17;
+
+    /**
+     * TLM temperature when there is no sensor, in place of the 8.8 fixed point value.
+     */
+    public static final int TEMPERATURE_UNKNOWN = 0x8000;
+
+    private static final String[] SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+
+    private static final String[] EXPANSIONS = {".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+            ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
+
+    private static final int BATTERY_OFFSET = 2;
+    private static final int TEMPERATURE_OFFSET = 4;
+    private static final int ADV_COUNT_OFFSET = 6;
+    private static final int UPTIME_OFFSET = 10;
+
+    private final byte[] frame;
+
+    private EddystoneFrameEncoder(byte[] frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * @param namespace 10 bytes
+     * @param instance  6 bytes
+     * @param txPower   calibrated power at 0 m in dBm, see {@link #rangingPower(byte)}
+     */
+    public static EddystoneFrameEncoder uid(byte[] namespace, byte[] instance, byte txPower) {
+        if (namespace.length != 10 || instance.length != 6) {
+            throw new IllegalArgumentException("Expected a 10 byte namespace and a 6 byte instance");
+        }
+        byte[] frame = new byte[UID_FRAME_LENGTH];
+        frame[0] = FRAME_UID;
+        frame[1] = txPower;
+        System.arraycopy(namespace, 0, frame, 2, 10);
+        System.arraycopy(instance, 0, frame, 12, 6);
+        return new EddystoneFrameEncoder(frame);
+    }
+
+    /**
+     * UID frame for an iBeacon identity, using the elided UUID (first 4 and last 6 bytes) as
+     * namespace and major, minor as the first 4 instance bytes, as the Eddystone spec suggests.
+     *
+     * @param txPower calibrated power at 1 m, as carried by the iBeacon frame
+     */
+    public static EddystoneFrameEncoder uid(UUID uuid, int major, int minor, byte txPower) {
+        byte[] namespace = new byte[10];
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 4; i++) {
+            namespace[i] = (byte) (msb >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < 6; i++) {
+            namespace[4 + i] = (byte) (lsb >>> (40 - 8 * i));
+        }
+        byte[] instance = {(byte) (major >> 8), (byte) major, (byte) (minor >> 8), (byte) minor, 0, 0};
+        return uid(namespace, instance, rangingPower(txPower));
+    }
+
+    /**
+     * Converts the calibrated power at 1 m of iBeacon and AltBeacon frames to the power at 0 m
+     * Eddystone frames carry, adding the roughly 41 dB free space loss of the first metre.
+     */
+    public static byte rangingPower(byte txPowerAt1m) {
+        return (byte) Math.min(Byte.MAX_VALUE, txPowerAt1m + 41);
+    }
+
+    /**
+     * URL frame with the scheme and the common domain suffixes compressed.
+     *
+     * @param txPower calibrated power at 0 m in dBm
+     * @throws IllegalArgumentException if the URL has no http(s) scheme, contains characters
+     *                                  outside printable ASCII or is too long once encoded
+     */
+    public static EddystoneFrameEncoder url(String url, byte txPower) {
+        int scheme = -1;
+        for (int i = 0; i < SCHEMES.length; i++) {
+            if (url.startsWith(SCHEMES[i]) && (scheme < 0 || SCHEMES[i].length() > SCHEMES[scheme].length())) {
+                scheme = i;
+            }
+        }
+        if (scheme < 0) throw new IllegalArgumentException("Unsupported URL scheme: " + url);
+
+        byte[] encoded = new byte[MAX_URL_LENGTH];
+        int length = 0;
+        int position = SCHEMES[scheme].length();
+        while (position < url.length()) {
+            if (length == MAX_URL_LENGTH) throw new IllegalArgumentException("URL too long: " + url);
+            int expansion = expansionAt(url, position);
+            if (expansion >= 0) {
+                encoded[length++] = (byte) expansion;
+                position += EXPANSIONS[expansion].length();
+            } else {
+                char c = url.charAt(position++);
+                if (c <= 0x20 || c >= 0x7F) throw new IllegalArgumentException("Invalid URL character: " + url);
+                encoded[length++] = (byte) c;
+            }
+        }
+
+        byte[] frame = new byte[3 + length];
+        frame[0] = FRAME_URL;
+        frame[1] = txPower;
+        frame[2] = (byte) scheme;
+        System.arraycopy(encoded, 0, frame, 3, length);
+        return new EddystoneFrameEncoder(frame);
+    }
+
+    /**
+     * Unencrypted TLM frame, version 0, with every counter at zero and no temperature.
+     */
+    public static EddystoneFrameEncoder tlm() {
+        byte[] frame = new byte[TLM_FRAME_LENGTH];
+        frame[0] = FRAME_TLM;
+        frame[TEMPERATURE_OFFSET] = (byte) (TEMPERATURE_UNKNOWN >> 8);
+        return new EddystoneFrameEncoder(frame);
+    }
+
+    /**
+     * Returns the frame. UID and URL frames never change, so the array can be advertised as is.
+     */
+    public byte[] frame() {
+        return frame;
+    }
+
+    /**
+     * Patches the telemetry counters into a TLM frame and returns it. Counters wrap like the
+     * unsigned fields they are written to.
+     *
+     * @param batteryMillivolts  battery voltage, 0 if unknown
+     * @param temperature        8.8 fixed point degrees Celsius, or {@link #TEMPERATURE_UNKNOWN}
+     * @param advertisementCount advertising PDUs sent since boot
+     * @param uptimeMillis       time since boot; the frame carries it in units of 0.1 s
+     * @throws IllegalStateException if this is not a TLM encoder
+     */
+    public byte[] encodeTelemetry(int batteryMillivolts, int temperature, long advertisementCount,
+                                  long uptimeMillis) {
+        if (frame[0] != FRAME_TLM) throw new IllegalStateException("Not a TLM frame");
+        putShort(BATTERY_OFFSET, batteryMillivolts);
+        putShort(TEMPERATURE_OFFSET, temperature);
+        putInt(ADV_COUNT_OFFSET, advertisementCount);
+        putInt(UPTIME_OFFSET, uptimeMillis / 100);
+        return frame;
+    }
+
+    public int length() {
+        return frame.length;
+    }
+
+    private static int expansionAt(String url, int position) {
+        for (int i = 0; i < EXPANSIONS.length; i++) {
+            if (url.startsWith(EXPANSIONS[i], position)) return i;
+        }
+        return -1;
+    }
+
+    private void putShort(int offset, int value) {
+        frame[offset] = (byte) (value >> 8);
+        frame[offset + 1] = (byte) value;
+    }
+
+    private void putInt(int offset, long value) {
+        frame[offset] = (byte) (value >> 24);
+        frame[offset + 1] = (byte) (value >> 16);
+        frame[offset + 2] = (byte) (value >> 8);
+        frame[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,78 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity, lock-free log of status events.
+ * <p>
+ * Writers claim a sequence number and publish an immutable {@link Event} into the matching slot,
+ * overwriting the oldest entry once the buffer is full. Readers copy the newest entries into a
+ * caller owned array and skip slots that a writer has not finished publishing yet.
+ */
+public final class EventLog {
+
+    public static final class Event {
+        public final long seq;
+        public final long timeMillis;
+        public final String message;
+
+        Event(long seq, long timeMillis, String message) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return message;
+        }
+    }
+
+    private final AtomicReferenceArray<Event> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private volatile long clearedBefore;
+
+    /**
+     * @param capacity maximum number of retained events, rounded up to a power of two
+     */
+    public EventLog(int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public void append(String message) {
+        long seq = next.getAndIncrement();
+        slots.set((int) (seq & mask), new Event(seq, System.currentTimeMillis(), message));
+    }
+
+    /**
+     * Hides every event appended so far. Runs in constant time; slots are reclaimed lazily.
+     */
+    public void clear() {
+        clearedBefore = next.get();
+    }
+
+    /**
+     * Copies up to {@code dst.length} of the newest events into {@code dst}, newest first.
+     *
+     * @return the number of events copied
+     */
+    public int snapshot(Event[] dst) {
+        long end = next.get();
+        long start = Math.max(Math.max(clearedBefore, end - slots.length()), end - dst.length);
+        int count = 0;
+        for (long seq = end - 1; seq >= start; seq--) {
+            Event event = slots.get((int) (seq & mask));
+            if (event != null && event.seq == seq) dst[count++] = event;
+        }
+        return count;
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+}
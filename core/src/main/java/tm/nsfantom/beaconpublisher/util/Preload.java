@@ -0,0 +1,94 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A value that is expensive to produce, started in the background early and picked up later.
+ * <p>
+ * {@link #start()} runs the loader on a new daemon thread; {@link #get()} waits for it, or runs
+ * the loader on the calling thread if nobody started it, so the value is produced exactly once
+ * either way. The time spent loading is recorded in {@code startup.<name>.load_us} and the time
+ * the first {@link #get()} had to wait in {@code startup.<name>.wait_us}; a wait of 0 means the
+ * preload finished in time.
+ */
+public final class Preload<T> {
+
+    public interface Loader<T> {
+        T load();
+    }
+
+    private final String name;
+    private final FutureTask<T> task;
+    private final MetricsRegistry.Histogram waitMicros;
+    private volatile boolean waited;
+
+    public Preload(String name, Loader<T> loader) {
+        this(name, loader, MetricsRegistry.getDefault());
+    }
+
+    public Preload(String name, Loader<T> loader, MetricsRegistry metrics) {
+        this.name = name;
+        MetricsRegistry.Histogram loadMicros = metrics.histogram("startup." + name + ".load_us");
+        this.waitMicros = metrics.histogram("startup." + name + ".wait_us");
+        this.task = new FutureTask<>(() -> {
+            long started = System.nanoTime();
+            T value = loader.load();
+            loadMicros.recordMicrosSince(started);
+            return value;
+        });
+    }
+
+    /**
+     * Starts loading on a background thread.
+     *
+     * @return this, for {@code new Preload<>(...).start()}
+     */
+    public Preload<T> start() {
+        Thread thread = new Thread(task, "Preload-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    /**
+     * Returns the value, loading it on this thread if the preload has not started yet. Interrupts
+     * do not abort the wait, they are restored once the value is there.
+     *
+     * @throws RuntimeException the loader threw, wrapped unless it was unchecked
+     */
+    public T get() {
+        long started = System.nanoTime();
+        // no-op if the background thread got there first
+        task.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    T value = task.get();
+                    if (!waited) {
+                        waited = true;
+                        waitMicros.recordMicrosSince(started);
+                    }
+                    return value;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException("Preload " + name + " failed", cause);
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Preload " + name + " cancelled", e);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
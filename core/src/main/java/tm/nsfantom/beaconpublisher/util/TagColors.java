@@ -0,0 +1,52 @@
+package tm.nsfantom.beaconpublisher.util;
+
+/**
+ * Mu Tag color codes as they travel over GATT, in the order the UI lists them.
+ */
+public final class TagColors {
+
+    public static final byte CHARCOAL = 0x01;
+    public static final byte CLOUD = 0x02;
+    public static final byte INDIEGOGO = 0x03;
+    public static final byte KICKSTARTER = 0x04;
+    public static final byte MU_ORANGE = 0x05;
+    public static final byte SCARLET = 0x06;
+    public static final byte SKY = 0x07;
+    public static final byte SMOKE = 0x08;
+
+    private static final byte[] CODES = {CHARCOAL, CLOUD, INDIEGOGO, KICKSTARTER, MU_ORANGE, SCARLET, SKY, SMOKE};
+
+    private static final byte[] INDEX_BY_CODE = new byte[256];
+
+    static {
+        for (int i = 0; i < CODES.length; i++) {
+            INDEX_BY_CODE[CODES[i] & 0xFF] = (byte) i;
+        }
+    }
+
+    private TagColors() {
+    }
+
+    /**
+     * Returns the list position of {@code colorCode}, or 0 for an unknown code.
+     */
+    public static int indexOf(byte colorCode) {
+        return INDEX_BY_CODE[colorCode & 0xFF];
+    }
+
+    /**
+     * Whether {@code colorCode} is one of the codes above.
+     */
+    public static boolean isKnown(byte colorCode) {
+        // unknown codes map to position 0, which holds a different code
+        return CODES[INDEX_BY_CODE[colorCode & 0xFF]] == colorCode;
+    }
+
+    public static byte codeAt(int index) {
+        return CODES[index];
+    }
+
+    public static int count() {
+        return CODES.length;
+    }
+}
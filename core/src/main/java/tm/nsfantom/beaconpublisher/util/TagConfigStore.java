@@ -0,0 +1,359 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Tag configuration kept in memory and persisted to a small binary file.
+ * <p>
+ * The in-memory copy is authoritative: getters never touch the disk. Changes are grouped with
+ * {@link #edit()} and every {@link Editor#apply()} schedules at most one background write of the
+ * latest values, however many fields or edits arrived since the previous write. The file is
+ * written to a temporary sibling and synced; the previous file is kept as a {@code .bak} sibling
+ * until the new one has been renamed into place and the directory synced. Files carry a CRC32,
+ * so after a crash {@link #load()} finds either the new or the previous configuration, never a
+ * mix, and tells a missing configuration apart from a damaged one.
+ */
+public final class TagConfigStore {
+
+    /**
+     * Outcome of {@link #load()}.
+     */
+    public enum LoadResult {
+        /** The configuration file was read. */
+        LOADED,
+        /** The file was missing or damaged and the backup of the previous write was read. */
+        RESTORED_BACKUP,
+        /** Neither file exists, e.g. on first launch; defaults are in effect. */
+        MISSING,
+        /** A file exists but none is readable; defaults are in effect. */
+        INVALID
+    }
+
+    /**
+     * Makes a rename in {@code directory} durable.
+     */
+    public interface DirectorySync {
+        void sync(File directory) throws IOException;
+    }
+
+    /**
+     * Syncs through {@link FileChannel}, which can open directories on the JVM and on Android 8.0
+     * and later. Loaded only when used, so older Android versions never resolve
+     * {@code java.nio.file}.
+     */
+    private static final class ChannelSync implements DirectorySync {
+        @Override
+        public void sync(File directory) throws IOException {
+            try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    private static final int MAGIC = 0x4D544147; // "MTAG"
+    private static final short VERSION = 2;
+    private static final short VERSION_1 = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String DEFAULT_DEVICE_NAME = "Informu Mu Tag";
+    public static final UUID DEFAULT_DEVICE_UUID = UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E");
+
+    private final File file;
+    private final File tmpFile;
+    private final File backupFile;
+    private final DirectorySync directorySync;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TagConfigStore");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int major;
+    private int minor;
+    private int tagColor;
+    private int batteryLevel;
+    private String deviceName = DEFAULT_DEVICE_NAME;
+    private UUID deviceUuid = DEFAULT_DEVICE_UUID;
+
+    private boolean writeScheduled;
+    private Future<?> lastWrite;
+    private long writes;
+    /** Whether {@link #file} holds a valid configuration, so the next write may back it up. */
+    private boolean fileValid;
+
+    /**
+     * Syncs the directory through {@link FileChannel}; on Android before 8.0 use
+     * {@link #TagConfigStore(File, DirectorySync)}.
+     */
+    public TagConfigStore(File file) {
+        this(file, new ChannelSync());
+    }
+
+    public TagConfigStore(File file, DirectorySync directorySync) {
+        this.file = file;
+        this.tmpFile = new File(file.getPath() + ".tmp");
+        this.backupFile = new File(file.getPath() + ".bak");
+        this.directorySync = directorySync;
+    }
+
+    /**
+     * Reads the file into memory, or its backup if the file is missing or damaged. Defaults stay
+     * in effect unless the result is {@link LoadResult#LOADED} or
+     * {@link LoadResult#RESTORED_BACKUP}.
+     */
+    public synchronized LoadResult load() {
+        // leftover from an interrupted write; the previous file or its backup is still intact
+        tmpFile.delete();
+        fileValid = read(file);
+        if (fileValid) {
+            // a write got as far as renaming the new file into place
+            backupFile.delete();
+            return LoadResult.LOADED;
+        }
+        if (read(backupFile)) return LoadResult.RESTORED_BACKUP;
+        return file.exists() || backupFile.exists() ? LoadResult.INVALID : LoadResult.MISSING;
+    }
+
+    private boolean read(File source) {
+        if (!source.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(source))) {
+            byte[] data = new byte[(int) source.length()];
+            in.readFully(data);
+            return decode(data);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public synchronized int getMajor() {
+        return major;
+    }
+
+    public synchronized int getMinor() {
+        return minor;
+    }
+
+    public synchronized int getTagColor() {
+        return tagColor;
+    }
+
+    public synchronized int getBatteryLevel() {
+        return batteryLevel;
+    }
+
+    public synchronized String getDeviceName() {
+        return deviceName;
+    }
+
+    public synchronized UUID getDeviceUuid() {
+        return deviceUuid;
+    }
+
+    /**
+     * Number of completed file writes, handy to check that edits are batched.
+     */
+    public synchronized long getWriteCount() {
+        return writes;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    /**
+     * Blocks until the pending write, if any, reached the disk.
+     */
+    public void flush() {
+        Future<?> pending;
+        synchronized (this) {
+            pending = lastWrite;
+        }
+        if (pending == null) return;
+        try {
+            pending.get();
+        } catch (Exception ignored) {
+            // write failures are already handled by writeFile
+        }
+    }
+
+    /**
+     * Collects field changes; {@link #apply()} publishes them together and schedules one write.
+     */
+    public final class Editor {
+        private static final int MAJOR = 1;
+        private static final int MINOR = 1 << 1;
+        private static final int TAG_COLOR = 1 << 2;
+        private static final int BATTERY_LEVEL = 1 << 3;
+        private static final int DEVICE_NAME = 1 << 4;
+        private static final int DEVICE_UUID = 1 << 5;
+
+        private int changed;
+        private int major;
+        private int minor;
+        private int tagColor;
+        private int batteryLevel;
+        private String deviceName;
+        private UUID deviceUuid;
+
+        private Editor() {
+        }
+
+        public Editor putMajor(int major) {
+            this.major = major;
+            changed |= MAJOR;
+            return this;
+        }
+
+        public Editor putMinor(int minor) {
+            this.minor = minor;
+            changed |= MINOR;
+            return this;
+        }
+
+        public Editor putTagColor(int tagColor) {
+            this.tagColor = tagColor;
+            changed |= TAG_COLOR;
+            return this;
+        }
+
+        public Editor putBatteryLevel(int batteryLevel) {
+            this.batteryLevel = batteryLevel;
+            changed |= BATTERY_LEVEL;
+            return this;
+        }
+
+        public Editor putDeviceName(String deviceName) {
+            this.deviceName = deviceName;
+            changed |= DEVICE_NAME;
+            return this;
+        }
+
+        public Editor putDeviceUuid(UUID deviceUuid) {
+            this.deviceUuid = deviceUuid;
+            changed |= DEVICE_UUID;
+            return this;
+        }
+
+        public void apply() {
+            if (changed == 0) return;
+            synchronized (TagConfigStore.this) {
+                if ((changed & MAJOR) != 0) TagConfigStore.this.major = major;
+                if ((changed & MINOR) != 0) TagConfigStore.this.minor = minor;
+                if ((changed & TAG_COLOR) != 0) TagConfigStore.this.tagColor = tagColor;
+                if ((changed & BATTERY_LEVEL) != 0) TagConfigStore.this.batteryLevel = batteryLevel;
+                if ((changed & DEVICE_NAME) != 0) TagConfigStore.this.deviceName = deviceName;
+                if ((changed & DEVICE_UUID) != 0) TagConfigStore.this.deviceUuid = deviceUuid;
+                scheduleWrite();
+            }
+            changed = 0;
+        }
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled) return;
+        writeScheduled = true;
+        lastWrite = writer.submit(this::writeFile);
+    }
+
+    private void writeFile() {
+        byte[] data;
+        boolean backUp;
+        synchronized (this) {
+            writeScheduled = false;
+            data = encode();
+            backUp = fileValid;
+        }
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(data);
+                out.getFD().sync();
+            }
+            if (backUp) {
+                // the last good copy stays on disk until the new file is in place
+                backupFile.delete();
+                if (!file.renameTo(backupFile)) throw new IOException("rename " + file + " failed");
+            } else {
+                // damaged or missing; an existing backup is still the last good copy
+                file.delete();
+            }
+            if (!tmpFile.renameTo(file)) throw new IOException("rename " + tmpFile + " failed");
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (directory != null) directorySync.sync(directory);
+            backupFile.delete();
+            synchronized (this) {
+                fileValid = true;
+                writes++;
+            }
+        } catch (IOException e) {
+            // keep the in-memory values; the next apply() tries again
+            tmpFile.delete();
+            synchronized (this) {
+                // a failed rename may have moved the good file to the backup
+                fileValid = fileValid && file.exists();
+            }
+        }
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(major);
+            out.writeInt(minor);
+            out.writeInt(tagColor);
+            out.writeInt(batteryLevel);
+            byte[] name = deviceName.getBytes(UTF_8);
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeLong(deviceUuid.getMostSignificantBits());
+            out.writeLong(deviceUuid.getLeastSignificantBits());
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private boolean decode(byte[] data) throws IOException {
+        if (data.length < 4) return false;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) return false;
+        short version = in.readShort();
+        if (version != VERSION && version != VERSION_1) return false;
+        int newMajor = in.readInt();
+        int newMinor = in.readInt();
+        int newTagColor = in.readInt();
+        int newBatteryLevel = in.readInt();
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        UUID newDeviceUuid = version == VERSION_1 ? DEFAULT_DEVICE_UUID : new UUID(in.readLong(), in.readLong());
+        if (in.readInt() != (int) crc.getValue()) return false;
+        major = newMajor;
+        minor = newMinor;
+        tagColor = newTagColor;
+        batteryLevel = newBatteryLevel;
+        deviceName = new String(name, UTF_8);
+        deviceUuid = newDeviceUuid;
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+package tm.nsfantom.beaconpublisher.ble;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+
+public class GattEventLoopTest {
+
+    private static final UUID DATA = UUID.fromString("984227f3-34fc-4045-a5d0-2c581f81a153");
+
+    private final BleDevice device = new BleDevice() {
+        @Override
+        public String getAddress() {
+            return "02:00:00:00:00:01";
+        }
+
+        @Override
+        public String getName() {
+            return "central";
+        }
+    };
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Records writes as "write:<first byte>"; everything else is ignored.
+     */
+    private GattServerListener recorder() {
+        return new GattServerListener() {
+            @Override
+            public void onConnectionStateChange(BleDevice device, int status, int newState) {
+            }
+
+            @Override
+            public void onServiceAdded(int status, UUID service) {
+            }
+
+            @Override
+            public void onCharacteristicReadRequest(BleDevice device, int requestId, int offset, UUID characteristic) {
+            }
+
+            @Override
+            public void onCharacteristicWriteRequest(BleDevice device, int requestId, UUID characteristic,
+                                                     boolean preparedWrite, boolean responseNeeded, int offset,
+                                                     byte[] value) {
+                events.add("write:" + value[0]);
+            }
+
+            @Override
+            public void onDescriptorReadRequest(BleDevice device, int requestId, int offset, UUID characteristic,
+                                                UUID descriptor) {
+            }
+
+            @Override
+            public void onDescriptorWriteRequest(BleDevice device, int requestId, UUID characteristic,
+                                                 UUID descriptor, boolean preparedWrite, boolean responseNeeded,
+                                                 int offset, byte[] value) {
+            }
+
+            @Override
+            public void onExecuteWrite(BleDevice device, int requestId, boolean execute) {
+            }
+
+            @Override
+            public void onNotificationSent(BleDevice device, int status) {
+            }
+
+            @Override
+            public void onMtuChanged(BleDevice device, int mtu) {
+            }
+        };
+    }
+
+    @Test
+    public void reportsADroppedWriteInOrder() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        GattEventLoop loop = new GattEventLoop(recorder(), executor, 1, metrics);
+        loop.setDropListener((device, characteristic) -> events.add("dropped:" + characteristic.equals(DATA)));
+        CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        loop.onCharacteristicWriteRequest(device, 1, DATA, false, false, 0, new byte[]{1});
+        // the inbox is full and stays full, so this one waits and is dropped
+        loop.onCharacteristicWriteRequest(device, 2, DATA, false, false, 0, new byte[]{2});
+        blocked.countDown();
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, events.size());
+        assertEquals("write:1", events.get(0));
+        assertEquals("dropped:true", events.get(1));
+        assertEquals(1, metrics.counter("gatt.loop.dropped").get());
+    }
+
+    @Test
+    public void deliversWritesThatFindRoom() throws Exception {
+        GattEventLoop loop = new GattEventLoop(recorder(), executor, 4, new MetricsRegistry());
+        loop.setDropListener((device, characteristic) -> events.add("dropped"));
+        for (int i = 0; i < 3; i++) {
+            loop.onCharacteristicWriteRequest(device, i, DATA, false, false, 0, new byte[]{(byte) i});
+        }
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        assertEquals(3, events.size());
+        assertEquals("write:2", events.get(2));
+        assertEquals(0, loop.getDepth());
+    }
+}
@@ -0,0 +1,121 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CharacteristicCodecTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(US_ASCII);
+    }
+
+    private static int decode(int characteristic, int... bytes) {
+        byte[] value = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            value[i] = (byte) bytes[i];
+        }
+        return CharacteristicCodec.decode(characteristic, value, value.length);
+    }
+
+    @Test
+    public void legacyDecimalsAreNotReadAsBinary() {
+        // as binary these would be 12337, 12336 and 12849
+        for (String value : new String[]{"1000", "0001", "12", "7", " 42 ", "-1"}) {
+            assertTrue(value, CharacteristicCodec.isDecimal(ascii(value), value.length()));
+        }
+        assertEquals(1000, CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, ascii("1000"), 4));
+        assertEquals(1, CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, ascii("0001"), 4));
+        assertEquals(12, CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, ascii("12"), 2));
+        assertEquals(65535, CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, ascii("65535"), 5));
+        assertEquals(CharacteristicCodec.INVALID,
+                CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, ascii("65536"), 5));
+        assertEquals(CharacteristicCodec.INVALID,
+                CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, ascii("-1"), 2));
+    }
+
+    @Test
+    public void decimalsMayBePaddedWithControlCharacters() {
+        for (String value : new String[]{"12\n", "12\r\n", "12\0", "\t12\0\0"}) {
+            assertTrue(CharacteristicCodec.isDecimal(ascii(value), value.length()));
+            assertEquals(12,
+                    CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, ascii(value), value.length()));
+        }
+        // the digit bytes of a binary 12849 with its trailer read as the decimal 12
+        assertTrue(CharacteristicCodec.isDecimal(new byte[]{0x31, 0x32, 0x00, 0x00}, 4));
+        // bytes above ASCII are not padding
+        assertEquals(CharacteristicCodec.INVALID,
+                CharacteristicCodec.decodeString(MuTagProfile.DEVICE_MAJOR, new byte[]{0x31, (byte) 0xA0}, 2));
+    }
+
+    @Test
+    public void binaryValuesAreNotDecimals() {
+        assertFalse(CharacteristicCodec.isDecimal(new byte[]{(byte) 0xE8, 0x03}, 2));
+        assertFalse(CharacteristicCodec.isDecimal(new byte[]{0x31, 0x32, 0x01, 0x33}, 4));
+        assertFalse(CharacteristicCodec.isDecimal(new byte[]{0x31, (byte) 0xA0}, 2));
+        assertFalse(CharacteristicCodec.isDecimal(new byte[]{0x00, 0x00}, 2));
+        assertFalse(CharacteristicCodec.isDecimal(ascii("  "), 2));
+        assertFalse(CharacteristicCodec.isDecimal(ascii("-"), 1));
+        assertFalse(CharacteristicCodec.isDecimal(new byte[0], 0));
+    }
+
+    @Test
+    public void decodesUint16WithAndWithoutTrailer() {
+        assertEquals(1000, decode(MuTagProfile.DEVICE_MAJOR, 0xE8, 0x03));
+        assertEquals(1000, decode(MuTagProfile.DEVICE_MAJOR, 0xE8, 0x03, 0x00, 0x00));
+        assertEquals(65535, decode(MuTagProfile.DEVICE_MINOR, 0xFF, 0xFF));
+        assertEquals(12849, decode(MuTagProfile.DEVICE_MAJOR, 0x31, 0x32, 0x00, 0x00));
+    }
+
+    @Test
+    public void rejectsOtherLengthsAndNonZeroTrailers() {
+        assertEquals(CharacteristicCodec.INVALID, decode(MuTagProfile.DEVICE_MAJOR, 0x01));
+        assertEquals(CharacteristicCodec.INVALID, decode(MuTagProfile.DEVICE_MAJOR, 0x01, 0x02, 0x03));
+        assertEquals(CharacteristicCodec.INVALID, decode(MuTagProfile.DEVICE_MAJOR, 0x01, 0x02, 0x00, 0x00, 0x00));
+        assertEquals(CharacteristicCodec.INVALID, decode(MuTagProfile.DEVICE_MAJOR, 0x01, 0x02, 0x00, 0x01));
+        assertEquals(CharacteristicCodec.INVALID, decode(MuTagProfile.DEVICE_MAJOR, 0x01, 0x02, 0x30, 0x30));
+        assertEquals(5, decode(MuTagProfile.TAG_COLOR, 0x05, 0x00, 0x00));
+        assertEquals(CharacteristicCodec.INVALID, decode(MuTagProfile.TAG_COLOR, 0x05, 0x00));
+        assertEquals(CharacteristicCodec.INVALID, decode(MuTagProfile.TAG_COLOR, 0x05, 0x01, 0x00));
+    }
+
+    @Test
+    public void decodesInt8() {
+        assertEquals(-75, decode(MuTagProfile.TX_POWER, -75));
+        assertEquals(127, decode(MuTagProfile.TX_POWER, 0x7F, 0x00, 0x00));
+    }
+
+    @Test
+    public void encodesLittleEndian() {
+        byte[] out = new byte[CharacteristicCodec.width(MuTagProfile.DEVICE_MAJOR)];
+        assertEquals(2, CharacteristicCodec.encode(MuTagProfile.DEVICE_MAJOR, 0x1234, out, 0));
+        assertArrayEquals(new byte[]{0x34, 0x12}, out);
+        assertArrayEquals(ascii("1000"), CharacteristicCodec.encodeString(1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encodeRejectsValuesOutOfRange() {
+        CharacteristicCodec.encode(MuTagProfile.DEVICE_MAJOR, 65536, new byte[2], 0);
+    }
+
+    @Test
+    public void uuidTakesAZeroTrailer() {
+        UUID uuid = UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E");
+        byte[] value = new byte[18];
+        CharacteristicCodec.encodeUuid(uuid, value, 0);
+        assertEquals(uuid, CharacteristicCodec.decodeUuid(MuTagProfile.DEVICE_UUID, value, 16));
+        assertEquals(uuid, CharacteristicCodec.decodeUuid(MuTagProfile.DEVICE_UUID, value, 18));
+        value[17] = 1;
+        assertNull(CharacteristicCodec.decodeUuid(MuTagProfile.DEVICE_UUID, value, 18));
+        assertNull(CharacteristicCodec.decodeUuid(MuTagProfile.DEVICE_UUID, value, 17));
+    }
+}
@@ -0,0 +1,135 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import tm.nsfantom.beaconpublisher.ble.BleDevice;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionAuthenticatorTest {
+
+    private static final byte[] KEY = "test-key".getBytes(Charset.forName("UTF-8"));
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private static GattConnection connection(String address) {
+        return new GattConnection(new BleDevice() {
+            @Override
+            public String getAddress() {
+                return address;
+            }
+
+            @Override
+            public String getName() {
+                return "central";
+            }
+        }, null, null, System.nanoTime(), false);
+    }
+
+    /**
+     * Runs the handshake and returns the first resume token.
+     */
+    private static byte[] handshake(ConnectionAuthenticator authenticator, GattConnection connection) {
+        byte[] challenge = authenticator.challenge(connection);
+        byte[] response = ConnectionAuthenticator.response(KEY, challenge);
+        assertTrue(authenticator.authenticate(connection, response, response.length));
+        assertTrue(connection.isAuthenticated());
+        return ConnectionAuthenticator.resumeToken(KEY, challenge);
+    }
+
+    @Test
+    public void acceptsTheResponseToItsChallengeOnce() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 4, 60_000, metrics);
+        GattConnection connection = connection("02:00:00:00:00:01");
+        byte[] challenge = authenticator.challenge(connection);
+        byte[] response = ConnectionAuthenticator.response(KEY, challenge);
+        assertTrue(authenticator.authenticate(connection, response, response.length));
+
+        GattConnection replay = connection("02:00:00:00:00:02");
+        authenticator.challenge(replay);
+        assertFalse(authenticator.authenticate(replay, response, response.length));
+        assertEquals(1, metrics.counter("gatt.auth.full").get());
+        assertEquals(1, metrics.counter("gatt.auth.failed").get());
+    }
+
+    @Test
+    public void rejectsAResponseUnderAnotherKey() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 4, 60_000, metrics);
+        GattConnection connection = connection("02:00:00:00:00:01");
+        byte[] challenge = authenticator.challenge(connection);
+        byte[] response = ConnectionAuthenticator.response("other".getBytes(Charset.forName("UTF-8")), challenge);
+        assertFalse(authenticator.authenticate(connection, response, response.length));
+        assertFalse(connection.isAuthenticated());
+        assertEquals(0, authenticator.getSessionCount());
+    }
+
+    @Test
+    public void connectingFromACachedAddressIsNotEnough() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 4, 60_000, metrics);
+        handshake(authenticator, connection("02:00:00:00:00:01"));
+
+        GattConnection spoofed = connection("02:00:00:00:00:01");
+        assertFalse(spoofed.isAuthenticated());
+        byte[] guess = new byte[ConnectionAuthenticator.TOKEN_LENGTH];
+        assertFalse(authenticator.authenticate(spoofed, guess, guess.length));
+        assertFalse(spoofed.isAuthenticated());
+    }
+
+    @Test
+    public void resumeTokensRotateAndWorkOnce() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 4, 60_000, metrics);
+        byte[] token = handshake(authenticator, connection("02:00:00:00:00:01"));
+
+        GattConnection second = connection("02:00:00:00:00:01");
+        assertTrue(authenticator.authenticate(second, token, token.length));
+        assertTrue(second.isAuthenticated());
+
+        // the token is used up; the next one derives from it
+        GattConnection replay = connection("02:00:00:00:00:01");
+        assertFalse(authenticator.authenticate(replay, token, token.length));
+        byte[] next = ConnectionAuthenticator.resumeToken(KEY, token);
+        assertTrue(authenticator.authenticate(replay, next, next.length));
+        assertEquals(2, metrics.counter("gatt.auth.resumed").get());
+        assertEquals(1, metrics.counter("gatt.auth.full").get());
+    }
+
+    @Test
+    public void tokensOnlyResumeTheirOwnAddress() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 4, 60_000, metrics);
+        byte[] token = handshake(authenticator, connection("02:00:00:00:00:01"));
+        GattConnection other = connection("02:00:00:00:00:02");
+        assertFalse(authenticator.authenticate(other, token, token.length));
+    }
+
+    @Test
+    public void sessionsExpire() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 4, 0, metrics);
+        byte[] token = handshake(authenticator, connection("02:00:00:00:00:01"));
+        GattConnection later = connection("02:00:00:00:00:01");
+        assertFalse(authenticator.authenticate(later, token, token.length));
+        assertEquals(0, authenticator.getSessionCount());
+    }
+
+    @Test
+    public void forgetEndsTheSession() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 4, 60_000, metrics);
+        byte[] token = handshake(authenticator, connection("02:00:00:00:00:01"));
+        authenticator.forget("02:00:00:00:00:01");
+        assertFalse(authenticator.authenticate(connection("02:00:00:00:00:01"), token, token.length));
+    }
+
+    @Test
+    public void keepsTheMostRecentSessions() {
+        ConnectionAuthenticator authenticator = new ConnectionAuthenticator(KEY, 2, 60_000, metrics);
+        byte[] first = handshake(authenticator, connection("02:00:00:00:00:01"));
+        handshake(authenticator, connection("02:00:00:00:00:02"));
+        handshake(authenticator, connection("02:00:00:00:00:03"));
+        assertEquals(2, authenticator.getSessionCount());
+        assertFalse(authenticator.authenticate(connection("02:00:00:00:00:01"), first, first.length));
+    }
+}
@@ -0,0 +1,70 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameSchedulerTest {
+
+    private static int[] run(FrameScheduler scheduler, int count) {
+        int[] types = new int[count];
+        for (int i = 0; i < count; i++) {
+            types[i] = scheduler.next();
+        }
+        return types;
+    }
+
+    @Test
+    public void spreadsTheHeaviestTypeOut() {
+        assertArrayEquals(new int[]{0, 1, 0, 2, 0}, run(new FrameScheduler(3, 1, 1), 5));
+    }
+
+    @Test
+    public void everyTypeGetsItsWeightPerRound() {
+        FrameScheduler scheduler = new FrameScheduler(5, 2, 0, 1);
+        for (int round = 1; round <= 10; round++) {
+            run(scheduler, 8);
+            assertEquals(5L * round, scheduler.picks(0));
+            assertEquals(2L * round, scheduler.picks(1));
+            assertEquals(0, scheduler.picks(2));
+            assertEquals(round, scheduler.picks(3));
+        }
+    }
+
+    @Test
+    public void neverPicksTheSameTypeTwiceInARowWhenWeightsAreEqual() {
+        int[] types = run(new FrameScheduler(1, 1, 1), 30);
+        for (int i = 1; i < types.length; i++) {
+            assertTrue(types[i] != types[i - 1]);
+        }
+    }
+
+    @Test
+    public void singleEnabledTypeDoesNotInterleave() {
+        FrameScheduler scheduler = new FrameScheduler(0, 4, 0);
+        assertFalse(scheduler.interleaves());
+        assertArrayEquals(new int[]{1, 1, 1}, run(scheduler, 3));
+        assertTrue(new FrameScheduler(1, 1).interleaves());
+    }
+
+    @Test
+    public void copiesTheWeights() {
+        int[] weights = {2, 1};
+        FrameScheduler scheduler = new FrameScheduler(weights);
+        weights[0] = 0;
+        assertEquals(2, scheduler.weight(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeWeights() {
+        new FrameScheduler(1, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAllDisabled() {
+        new FrameScheduler(0, 0);
+    }
+}
@@ -0,0 +1,276 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import tm.nsfantom.beaconpublisher.ble.GattStatus;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeBleStack;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeCentral;
+import tm.nsfantom.beaconpublisher.ble.fake.FakeGattServer;
+import tm.nsfantom.beaconpublisher.util.MetricsRegistry;
+import tm.nsfantom.beaconpublisher.util.TagConfigStore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Drives {@link MuTagGattServer} through the fake stack the way a central would.
+ */
+public class MuTagGattServerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledThreadPoolExecutor callbacks = new ScheduledThreadPoolExecutor(1);
+    private final Map<Integer, Integer> statuses = new HashMap<>();
+    private final Map<Integer, byte[]> values = new HashMap<>();
+    private final List<byte[]> otaControl = new ArrayList<>();
+    private MuTagGattServer server;
+    private FakeGattServer gattServer;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MuTagGattServer(new TagState(TagConfigStore.DEFAULT_DEVICE_UUID,
+                TagConfigStore.DEFAULT_DEVICE_NAME, 1, 1, 0, "test"), null, new MuTagGattServer.Listener() {
+            @Override
+            public void onStatus(String status) {
+            }
+
+            @Override
+            public void onTagStateWritten(TagState state) {
+            }
+        }, new MetricsRegistry());
+        gattServer = new FakeBleStack(callbacks, 0, TimeUnit.MICROSECONDS).openGattServer(server);
+        server.attach(gattServer);
+    }
+
+    @After
+    public void tearDown() {
+        callbacks.shutdownNow();
+    }
+
+    private FakeCentral connect(String address) throws Exception {
+        FakeCentral central = gattServer.connect(address, "central");
+        central.setObserver(new FakeCentral.Observer() {
+            @Override
+            public void onResponse(FakeCentral central, int requestId, int status, int offset, byte[] value) {
+                synchronized (statuses) {
+                    statuses.put(requestId, status);
+                    values.put(requestId, value);
+                }
+            }
+
+            @Override
+            public void onNotification(FakeCentral central, UUID characteristic, byte[] value) {
+                if (MuTagUuids.OTA_CONTROL.equals(characteristic)) {
+                    synchronized (otaControl) {
+                        otaControl.add(value);
+                    }
+                }
+            }
+
+            @Override
+            public void onDisconnected(FakeCentral central) {
+            }
+        });
+        settle();
+        return central;
+    }
+
+    /**
+     * Waits until every callback, including the ones callbacks scheduled, has run.
+     */
+    private void settle() throws Exception {
+        do {
+            callbacks.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        } while (!callbacks.getQueue().isEmpty() || callbacks.getActiveCount() > 0);
+    }
+
+    private int status(int requestId) throws Exception {
+        settle();
+        synchronized (statuses) {
+            return statuses.get(requestId);
+        }
+    }
+
+    private byte[] value(int requestId) throws Exception {
+        settle();
+        synchronized (statuses) {
+            return values.get(requestId);
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    private byte[] lastOtaControl() throws Exception {
+        settle();
+        synchronized (otaControl) {
+            return otaControl.get(otaControl.size() - 1);
+        }
+    }
+
+    private static byte[] otaStart(int size) {
+        return new byte[]{0x00, (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)};
+    }
+
+    @Test
+    public void otaAcceptsAnImageOfTheAnnouncedSize() throws Exception {
+        File directory = folder.newFolder("ota");
+        server.enableOta(directory, 4);
+        FakeCentral central = connect("02:00:00:00:00:01");
+        assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.OTA_CONTROL, otaStart(1000), true)));
+        for (int sent = 0; sent < 1000; sent += 200) {
+            central.write(MuTagUuids.OTA_DATA, new byte[200], false);
+        }
+        assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.OTA_CONTROL, new byte[]{0x03}, true)));
+        assertArrayEquals(new byte[]{(byte) 0xE8, 0x03, 0x00, 0x00}, lastOtaControl());
+        assertEquals(1000, server.getLastOtaResult().bytes);
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void otaReportsAShortImage() throws Exception {
+        File directory = folder.newFolder("ota");
+        server.enableOta(directory, 4);
+        FakeCentral central = connect("02:00:00:00:00:01");
+        central.write(MuTagUuids.OTA_CONTROL, otaStart(1000), true);
+        for (int sent = 0; sent < 800; sent += 200) {
+            central.write(MuTagUuids.OTA_DATA, new byte[200], false);
+        }
+        assertEquals(GattStatus.FAILURE, status(central.write(MuTagUuids.OTA_CONTROL, new byte[]{0x03}, true)));
+        assertArrayEquals(new byte[]{OtaReceiver.ERROR_LENGTH}, lastOtaControl());
+        assertNull(server.getLastOtaResult());
+        assertEquals(0, directory.list().length);
+        // the transfer is over; more data is refused until the next start
+        assertEquals(GattStatus.WRITE_NOT_PERMITTED, status(central.write(MuTagUuids.OTA_DATA, new byte[200], true)));
+    }
+
+    @Test
+    public void otaKeepsTheNewestImages() throws Exception {
+        File directory = folder.newFolder("ota");
+        assertEquals(true, new File(directory, "ota-0000000000001.gbl").createNewFile());
+        assertEquals(true, new File(directory, "ota-0000000000002.gbl").createNewFile());
+        assertEquals(true, new File(directory, "ota-0000000000003.gbl.part").createNewFile());
+        server.enableOta(directory, 4);
+        FakeCentral central = connect("02:00:00:00:00:01");
+        central.write(MuTagUuids.OTA_CONTROL, new byte[]{0x00}, true);
+        central.write(MuTagUuids.OTA_DATA, new byte[20], false);
+        assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.OTA_CONTROL, new byte[]{0x03}, true)));
+        assertNotNull(server.getLastOtaResult());
+        String[] left = directory.list();
+        Arrays.sort(left);
+        assertEquals(2, left.length);
+        assertEquals("ota-0000000000002.gbl", left[0]);
+        assertEquals(server.getLastOtaResult().file.getName(), left[1]);
+    }
+
+    @Test
+    public void otaEndsWhenAChunkIsDropped() throws Exception {
+        File directory = folder.newFolder("ota");
+        server.enableOta(directory, 4);
+        FakeCentral central = connect("02:00:00:00:00:01");
+        central.write(MuTagUuids.OTA_CONTROL, otaStart(400), true);
+        central.write(MuTagUuids.OTA_DATA, new byte[200], false);
+        settle();
+        server.onDropped(central, MuTagUuids.OTA_DATA);
+        assertArrayEquals(new byte[]{OtaReceiver.ERROR_DROPPED}, lastOtaControl());
+        assertEquals(0, directory.list().length);
+        assertEquals(GattStatus.WRITE_NOT_PERMITTED, status(central.write(MuTagUuids.OTA_DATA, new byte[200], true)));
+    }
+
+    @Test
+    public void legacyDecimalWritesSwitchTheConnectionToDecimals() throws Exception {
+        FakeCentral central = connect("02:00:00:00:00:01");
+        for (String value : new String[]{"1000", "0001", "12"}) {
+            assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.DEVICE_MAJOR, ascii(value), true)));
+            assertEquals(Integer.parseInt(value), server.getTagState().major);
+            assertArrayEquals(ascii(Integer.toString(Integer.parseInt(value))),
+                    value(central.read(MuTagUuids.DEVICE_MAJOR)));
+        }
+        // a binary write switches it back
+        assertEquals(GattStatus.SUCCESS,
+                status(central.write(MuTagUuids.DEVICE_MINOR, new byte[]{0x31, 0x41, 0x00, 0x00}, true)));
+        assertEquals(16689, server.getTagState().minor);
+        assertArrayEquals(new byte[]{0x31, 0x41}, value(central.read(MuTagUuids.DEVICE_MINOR)));
+    }
+
+    @Test
+    public void binaryWritesCheckTheTrailer() throws Exception {
+        FakeCentral central = connect("02:00:00:00:00:01");
+        assertEquals(GattStatus.SUCCESS,
+                status(central.write(MuTagUuids.DEVICE_MAJOR, new byte[]{(byte) 0xE8, 0x03}, true)));
+        assertEquals(GattStatus.SUCCESS,
+                status(central.write(MuTagUuids.DEVICE_MINOR, new byte[]{0x02, 0x00, 0x00, 0x00}, true)));
+        assertEquals(GattStatus.VALUE_NOT_ALLOWED,
+                status(central.write(MuTagUuids.DEVICE_MAJOR, new byte[]{0x05, 0x00, 0x07, 0x00}, true)));
+        assertEquals(GattStatus.VALUE_NOT_ALLOWED,
+                status(central.write(MuTagUuids.DEVICE_MAJOR, new byte[]{0x05, 0x00, 0x00}, true)));
+        assertEquals(1000, server.getTagState().major);
+        assertEquals(2, server.getTagState().minor);
+    }
+
+    @Test
+    public void legacyReadOnlyCentralsGetDecimalsAndTheColorPosition() throws Exception {
+        server.setLegacyValues(true);
+        FakeCentral central = connect("02:00:00:00:00:01");
+        assertArrayEquals(ascii("1"), value(central.read(MuTagUuids.DEVICE_MAJOR)));
+        // a raw color code, the way legacy centrals always wrote it, keeps the connection legacy
+        assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.TAG_COLOR, new byte[]{0x05}, true)));
+        assertEquals(4, server.getTagState().tagColor);
+        assertArrayEquals(ascii("4"), value(central.read(MuTagUuids.TAG_COLOR)));
+        assertArrayEquals(ascii("1"), value(central.read(MuTagUuids.DEVICE_MINOR)));
+    }
+
+    @Test
+    public void binaryCentralsReadTheColorCode() throws Exception {
+        FakeCentral central = connect("02:00:00:00:00:01");
+        assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.TAG_COLOR, new byte[]{0x05, 0x00, 0x00}, true)));
+        assertArrayEquals(new byte[]{0x05}, value(central.read(MuTagUuids.TAG_COLOR)));
+        assertEquals(GattStatus.VALUE_NOT_ALLOWED, status(central.write(MuTagUuids.TAG_COLOR, new byte[]{0x09}, true)));
+    }
+
+    @Test
+    public void configurationWritesNeedAuthentication() throws Exception {
+        byte[] key = ascii("test-key");
+        server.enableAuthentication(new ConnectionAuthenticator(key, 4, 60_000, new MetricsRegistry()));
+        FakeCentral central = connect("02:00:00:00:00:01");
+        byte[] major = {0x07, 0x00};
+        assertEquals(GattStatus.INSUFFICIENT_AUTHENTICATION, status(central.write(MuTagUuids.DEVICE_MAJOR, major, true)));
+        // reads stay open
+        assertEquals(GattStatus.SUCCESS, status(central.read(MuTagUuids.DEVICE_MAJOR)));
+
+        byte[] challenge = value(central.read(MuTagUuids.AUTHENTICATE_CONNECTION));
+        byte[] response = ConnectionAuthenticator.response(key, challenge);
+        assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.AUTHENTICATE_CONNECTION, response, true)));
+        assertEquals(GattStatus.SUCCESS, status(central.write(MuTagUuids.DEVICE_MAJOR, major, true)));
+        assertEquals(7, server.getTagState().major);
+
+        // reconnecting from the same address needs the resume token
+        central.disconnect();
+        settle();
+        FakeCentral spoofed = connect("02:00:00:00:00:01");
+        assertEquals(GattStatus.INSUFFICIENT_AUTHENTICATION, status(spoofed.write(MuTagUuids.DEVICE_MAJOR, major, true)));
+        byte[] token = ConnectionAuthenticator.resumeToken(key, challenge);
+        assertEquals(GattStatus.SUCCESS, status(spoofed.write(MuTagUuids.AUTHENTICATE_CONNECTION, token, true)));
+        assertEquals(GattStatus.SUCCESS, status(spoofed.write(MuTagUuids.DEVICE_MAJOR, new byte[]{0x08, 0x00}, true)));
+        assertEquals(8, server.getTagState().major);
+    }
+}
@@ -0,0 +1,113 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationQueueTest {
+
+    private static final UUID MAJOR = MuTagUuids.DEVICE_MAJOR;
+    private static final UUID MINOR = MuTagUuids.DEVICE_MINOR;
+
+    private final List<byte[]> sent = new ArrayList<>();
+    private NotificationQueue queue;
+    private boolean accept = true;
+    private boolean lockedDuringSend;
+
+    private NotificationQueue create(long timeoutMillis) {
+        queue = new NotificationQueue((characteristic, value) -> {
+            lockedDuringSend |= Thread.holdsLock(queue);
+            if (accept) sent.add(value);
+            return accept;
+        }, null, timeoutMillis);
+        return queue;
+    }
+
+    @Test
+    public void sendsOneAtATimeAndCoalesces() {
+        create(1000);
+        queue.offer(MAJOR, new byte[]{1});
+        queue.offer(MINOR, new byte[]{2});
+        queue.offer(MINOR, new byte[]{3});
+        assertEquals(1, sent.size());
+        queue.onSent(true);
+        assertEquals(2, sent.size());
+        assertEquals(3, sent.get(1)[0]);
+        assertEquals(1, queue.coalescedCount());
+        assertFalse(lockedDuringSend);
+    }
+
+    @Test
+    public void missingAckTimesOutAndReleasesTheLink() {
+        create(0);
+        queue.offer(MAJOR, new byte[]{1});
+        queue.offer(MINOR, new byte[]{2});
+        // the offer above already found the first send expired with a zero timeout, but the
+        // stack may still hold it
+        assertEquals(1, sent.size());
+        assertEquals(1, queue.timedOutCount());
+        assertTrue(queue.expire(System.nanoTime()));
+        assertEquals(2, sent.size());
+        assertTrue(queue.expire(System.nanoTime()));
+        assertEquals(2, queue.timedOutCount());
+        assertTrue(queue.expire(System.nanoTime()));
+        assertFalse(queue.expire(System.nanoTime()));
+    }
+
+    @Test
+    public void pendingValueIsSentWhenTimeoutIsFoundBySweep() {
+        create(60_000);
+        long now = System.nanoTime();
+        queue.offer(MAJOR, new byte[]{1});
+        queue.offer(MINOR, new byte[]{2});
+        assertFalse(queue.expire(now));
+        assertTrue(queue.expire(now + 61_000_000_000L));
+        assertEquals(1, sent.size());
+        assertEquals(1, queue.failedCount());
+        assertFalse(queue.expire(now + 62_000_000_000L));
+        assertTrue(queue.expire(now + 122_000_000_000L));
+        assertEquals(2, sent.size());
+        assertEquals(1, queue.timedOutCount());
+    }
+
+    @Test
+    public void lateAckAfterTimeoutIsNotCreditedToTheNextNotification() {
+        create(60_000);
+        long now = System.nanoTime();
+        queue.offer(MAJOR, new byte[]{1});
+        queue.offer(MINOR, new byte[]{2});
+        assertTrue(queue.expire(now + 61_000_000_000L));
+        assertEquals(1, sent.size());
+
+        // the ack for the timed out notification releases the link but is not counted as sent
+        queue.onSent(true);
+        assertEquals(0, queue.sentCount());
+        assertEquals(1, queue.failedCount());
+        assertEquals(2, sent.size());
+        assertEquals(2, sent.get(1)[0]);
+
+        queue.onSent(true);
+        assertEquals(1, queue.sentCount());
+        assertEquals(1, queue.failedCount());
+        assertEquals(1, queue.timedOutCount());
+        queue.onSent(true);
+        assertEquals(1, queue.sentCount());
+    }
+
+    @Test
+    public void refusedSendMovesOnToNextValue() {
+        create(1000);
+        accept = false;
+        queue.offer(MAJOR, new byte[]{1});
+        assertEquals(1, queue.failedCount());
+        accept = true;
+        queue.offer(MINOR, new byte[]{2});
+        assertEquals(1, sent.size());
+    }
+}
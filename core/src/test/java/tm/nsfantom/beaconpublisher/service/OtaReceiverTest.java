@@ -0,0 +1,119 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OtaReceiverTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] image(int length) {
+        byte[] image = new byte[length];
+        for (int i = 0; i < length; i++) {
+            image[i] = (byte) (i * 31);
+        }
+        return image;
+    }
+
+    private static void send(OtaReceiver receiver, byte[] image, int chunk) throws IOException {
+        for (int offset = 0; offset < image.length; offset += chunk) {
+            receiver.write(Arrays.copyOfRange(image, offset, Math.min(image.length, offset + chunk)));
+        }
+    }
+
+    @Test
+    public void storesTheImageUnderItsNameOnlyWhenFinished() throws IOException {
+        File file = new File(folder.getRoot(), "ota/ota-1.gbl");
+        byte[] image = image(200_000);
+        OtaReceiver receiver = new OtaReceiver(16);
+        receiver.start(file, image.length);
+        send(receiver, image, 244);
+        assertFalse(file.exists());
+
+        OtaReceiver.Result result = receiver.finish();
+        CRC32 crc = new CRC32();
+        crc.update(image);
+        assertEquals(image.length, result.bytes);
+        assertEquals(crc.getValue(), result.crc32);
+        assertArrayEquals(image, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertFalse(receiver.isActive());
+    }
+
+    @Test
+    public void asksForAnAckEveryWindow() throws IOException {
+        OtaReceiver receiver = new OtaReceiver(3);
+        receiver.start(new File(folder.getRoot(), "ota-1.gbl"), 0);
+        assertFalse(receiver.write(new byte[10]));
+        assertFalse(receiver.write(new byte[10]));
+        assertTrue(receiver.write(new byte[10]));
+        assertEquals(30, receiver.received());
+    }
+
+    @Test
+    public void failsAShortImage() throws IOException {
+        File file = new File(folder.getRoot(), "ota-1.gbl");
+        OtaReceiver receiver = new OtaReceiver(16);
+        receiver.start(file, 1000);
+        // a chunk lost on the way
+        send(receiver, image(756), 244);
+        try {
+            receiver.finish();
+            fail();
+        } catch (OtaReceiver.TransferException e) {
+            assertEquals(OtaReceiver.ERROR_LENGTH, e.error);
+        }
+        assertFalse(receiver.isActive());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void failsAnImageLongerThanAnnounced() throws IOException {
+        OtaReceiver receiver = new OtaReceiver(16);
+        receiver.start(new File(folder.getRoot(), "ota-1.gbl"), 300);
+        receiver.write(new byte[244]);
+        try {
+            receiver.write(new byte[244]);
+            fail();
+        } catch (OtaReceiver.TransferException e) {
+            assertEquals(OtaReceiver.ERROR_LENGTH, e.error);
+        }
+        assertEquals(244, receiver.received());
+    }
+
+    @Test
+    public void abortDeletesThePartialImage() throws IOException {
+        OtaReceiver receiver = new OtaReceiver(16);
+        receiver.start(new File(folder.getRoot(), "ota-1.gbl"), 0);
+        receiver.write(new byte[100]);
+        receiver.abort();
+        assertFalse(receiver.isActive());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void pruneKeepsTheNewestImagesAndDropsPartials() throws IOException {
+        File directory = folder.getRoot();
+        for (String name : new String[]{"ota-1000.gbl", "ota-3000.gbl", "ota-2000.gbl", "ota-4000.gbl.part", "notes"}) {
+            assertTrue(new File(directory, name).createNewFile());
+        }
+        OtaReceiver.prune(directory, 2);
+        String[] left = directory.list();
+        Arrays.sort(left);
+        assertArrayEquals(new String[]{"notes", "ota-2000.gbl", "ota-3000.gbl"}, left);
+    }
+}
@@ -0,0 +1,90 @@
+package tm.nsfantom.beaconpublisher.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RotationSchedulerTest {
+
+    private static final UUID UUID_1 = UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E");
+
+    private static List<BeaconIdentity> identities(int count) {
+        List<BeaconIdentity> identities = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            identities.add(new BeaconIdentity(UUID_1, i, i, (byte) -75));
+        }
+        return identities;
+    }
+
+    @Test
+    public void rotatesRoundRobinAcrossSlots() {
+        RotationScheduler scheduler = new RotationScheduler(identities(5), 2, 1000);
+        assertTrue(scheduler.rotates());
+        assertArrayEquals(new int[]{0, 1}, scheduler.rotate(0).clone());
+        assertArrayEquals(new int[]{2, 3}, scheduler.rotate(1000).clone());
+        assertArrayEquals(new int[]{4, 0}, scheduler.rotate(2000).clone());
+    }
+
+    @Test
+    public void creditsOnAirTimeToTheIdentitiesOfEachWindow() {
+        RotationScheduler scheduler = new RotationScheduler(identities(3), 1, 1000);
+        scheduler.rotate(0);
+        scheduler.rotate(1000);
+        scheduler.rotate(1500);
+        RotationScheduler.Stats[] stats = scheduler.stats(1700);
+        assertEquals(1000, stats[0].onAirMillis);
+        assertEquals(500, stats[1].onAirMillis);
+        // the open window counts up to now
+        assertEquals(200, stats[2].onAirMillis);
+        assertEquals(1, stats[2].windows);
+    }
+
+    @Test
+    public void stopClosesTheWindow() {
+        RotationScheduler scheduler = new RotationScheduler(identities(2), 1, 1000);
+        scheduler.rotate(0);
+        scheduler.stop(300);
+        assertEquals(300, scheduler.stats(5000)[0].onAirMillis);
+    }
+
+    @Test
+    public void fewerIdentitiesThanSlotsUseOneSlotEach() {
+        RotationScheduler scheduler = new RotationScheduler(identities(2), 4, 1000);
+        assertFalse(scheduler.rotates());
+        assertEquals(2, scheduler.activeSlots());
+        assertArrayEquals(new int[]{0, 1}, scheduler.rotate(0).clone());
+    }
+
+    @Test
+    public void limitSlotsNeverDropsBelowOne() {
+        RotationScheduler scheduler = new RotationScheduler(identities(4), 4, 1000);
+        scheduler.limitSlots(2);
+        assertEquals(2, scheduler.activeSlots());
+        scheduler.limitSlots(0);
+        assertEquals(1, scheduler.activeSlots());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyTable() {
+        new RotationScheduler(Collections.<BeaconIdentity>emptyList(), 1, 1000);
+    }
+
+    @Test
+    public void identityFrameIsAltBeacon() {
+        BeaconIdentity identity = BeaconIdentity.parse("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E:9:6:-75");
+        byte[] frame = identity.frame();
+        assertEquals((byte) 0xBE, frame[0]);
+        assertEquals((byte) 0xAC, frame[1]);
+        assertEquals(9, frame[19]);
+        assertEquals(6, frame[21]);
+        assertEquals(-75, frame[22]);
+    }
+}
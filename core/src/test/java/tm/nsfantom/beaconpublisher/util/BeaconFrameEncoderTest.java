@@ -0,0 +1,110 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The encoder against the ByteBuffer code it replaced in SimpleAdvertiserFragment (iBeacon) and
+ * AdvertiserService (AltBeacon).
+ */
+public class BeaconFrameEncoderTest {
+
+    private static final UUID UUID_1 = UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E");
+    private static final UUID UUID_2 = UUID.fromString("00000000-0000-0000-0000-000000000000");
+    private static final int[] IDS = {0, 1, 9, 0x00FF, 0x0100, 0x7FFF, 0x8000, 0xFFFE, 0xFFFF};
+    private static final byte[] TX_POWERS = {(byte) 0xc5, (byte) 0xB5, 0, 127, -128, -1};
+
+    @Test
+    public void iBeaconMatchesByteBufferLayout() {
+        for (UUID uuid : new UUID[]{UUID_1, UUID_2}) {
+            BeaconFrameEncoder encoder = BeaconFrameEncoder.iBeacon(uuid);
+            for (int major : IDS) {
+                for (int minor : IDS) {
+                    for (byte txPower : TX_POWERS) {
+                        assertArrayEquals(legacyIBeacon(uuid, major, minor, txPower),
+                                encoder.encode(major, minor, txPower));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void altBeaconMatchesByteBufferLayout() {
+        for (UUID uuid : new UUID[]{UUID_1, UUID_2}) {
+            BeaconFrameEncoder encoder = BeaconFrameEncoder.altBeacon(uuid);
+            for (int major : IDS) {
+                for (int minor : IDS) {
+                    for (byte txPower : TX_POWERS) {
+                        assertArrayEquals(legacyAltBeacon(uuid, major, minor, txPower),
+                                encoder.encode(major, minor, txPower));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reusedEncoderLeavesNoTraceOfPreviousFrame() {
+        BeaconFrameEncoder encoder = BeaconFrameEncoder.iBeacon(UUID_1);
+        encoder.encode(0xFFFF, 0xFFFF, (byte) -1);
+        assertArrayEquals(legacyIBeacon(UUID_1, 0, 0, (byte) 0), encoder.encode(0, 0, (byte) 0));
+    }
+
+    @Test
+    public void encodesIntoCallerArrayAtOffset() {
+        BeaconFrameEncoder encoder = BeaconFrameEncoder.altBeacon(UUID_1);
+        byte[] dst = new byte[4 + encoder.length()];
+        encoder.encode(0x1234, 0xABCD, (byte) -59, dst, 4);
+        byte[] expected = legacyAltBeacon(UUID_1, 0x1234, 0xABCD, (byte) -59);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], dst[4 + i]);
+        }
+        assertEquals(0, dst[0]);
+    }
+
+    @Test
+    public void lengthsMatchLayouts() {
+        assertEquals(23, BeaconFrameEncoder.iBeacon(UUID_1).length());
+        assertEquals(24, BeaconFrameEncoder.altBeacon(UUID_1).length());
+    }
+
+    /**
+     * createManufactureData() of SimpleAdvertiserFragment before the encoder.
+     */
+    private static byte[] legacyIBeacon(UUID uuid, int major, int minor, byte txPower) {
+        ByteBuffer bb = ByteBuffer.allocate(23);
+        bb.putShort((short) 0x0215);
+        bb.putLong(uuid.getMostSignificantBits());
+        bb.putLong(uuid.getLeastSignificantBits());
+        bb.putShort((short) major);
+        bb.putShort((short) minor);
+        bb.put(txPower);
+        return bb.array();
+    }
+
+    /**
+     * buildAdvertiseData() of AdvertiserService before the encoder, with the hard coded
+     * major, minor and txPower as parameters.
+     */
+    private static byte[] legacyAltBeacon(UUID uuid, int major, int minor, byte txPower) {
+        ByteBuffer manufacturerData = ByteBuffer.allocate(24);
+        byte[] uuidBytes = UuidUtil.asBytes(uuid);
+        manufacturerData.put(0, (byte) 0xBE);
+        manufacturerData.put(1, (byte) 0xAC);
+        for (int i = 2; i <= 17; i++) {
+            manufacturerData.put(i, uuidBytes[i - 2]);
+        }
+        manufacturerData.put(18, (byte) (major >> 8));
+        manufacturerData.put(19, (byte) major);
+        manufacturerData.put(20, (byte) (minor >> 8));
+        manufacturerData.put(21, (byte) minor);
+        manufacturerData.put(22, txPower);
+        return manufacturerData.array();
+    }
+}
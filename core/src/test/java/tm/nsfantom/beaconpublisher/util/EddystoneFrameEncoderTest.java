@@ -0,0 +1,127 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class EddystoneFrameEncoderTest {
+
+    private static final UUID UUID_1 = UUID.fromString("DE7EC7ED-1055-B055-C0DE-DEFEA7EDFA7E");
+
+    @Test
+    public void uidFromIBeaconIdentityElidesTheUuid() {
+        byte[] frame = EddystoneFrameEncoder.uid(UUID_1, 0x1234, 0xABCD, (byte) -59).frame();
+        assertArrayEquals(bytes(0x00, -18,
+                0xDE, 0x7E, 0xC7, 0xED, 0xDE, 0xFE, 0xA7, 0xED, 0xFA, 0x7E,
+                0x12, 0x34, 0xAB, 0xCD, 0x00, 0x00,
+                0x00, 0x00), frame);
+        assertEquals(EddystoneFrameEncoder.UID_FRAME_LENGTH, frame.length);
+    }
+
+    @Test
+    public void rangingPowerAddsTheFirstMetreAndSaturates() {
+        assertEquals(-18, EddystoneFrameEncoder.rangingPower((byte) -59));
+        assertEquals(-87, EddystoneFrameEncoder.rangingPower((byte) -128));
+        assertEquals(127, EddystoneFrameEncoder.rangingPower((byte) 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uidRejectsWrongIdLengths() {
+        EddystoneFrameEncoder.uid(new byte[10], new byte[4], (byte) 0);
+    }
+
+    @Test
+    public void urlCompressesSchemeAndSuffixes() {
+        assertArrayEquals(bytes(0x10, -20, 0x01, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x00),
+                EddystoneFrameEncoder.url("https://www.example.com/", (byte) -20).frame());
+        assertArrayEquals(bytes(0x10, 0, 0x02, 'g', 'o', 'o', '.', 'g', 'l', '/', 'a'),
+                EddystoneFrameEncoder.url("http://goo.gl/a", (byte) 0).frame());
+        // ".info/" wins over ".info", and a suffix in the middle of the path is compressed too
+        assertArrayEquals(bytes(0x10, 0, 0x03, 'a', 0x04, 'b', 0x0B),
+                EddystoneFrameEncoder.url("https://a.info/b.info", (byte) 0).frame());
+        assertArrayEquals(bytes(0x10, 0, 0x00, 'a', 0x07),
+                EddystoneFrameEncoder.url("http://www.a.com", (byte) 0).frame());
+    }
+
+    @Test
+    public void urlIsLimitedToSeventeenEncodedBytes() {
+        byte[] frame = EddystoneFrameEncoder.url("https://abcdefghijklmnop.com", (byte) 0).frame();
+        assertEquals(3 + EddystoneFrameEncoder.MAX_URL_LENGTH, frame.length);
+        assertEquals(0x07, frame[frame.length - 1]);
+        expectRejected("https://abcdefghijklmnopq.com");
+        expectRejected("https://abcdefghijklmnopqr");
+    }
+
+    @Test
+    public void urlRejectsUnsupportedSchemesAndCharacters() {
+        expectRejected("ftp://example.com");
+        expectRejected("example.com");
+        expectRejected("http://a b");
+        expectRejected("http://a\u007F");
+        expectRejected("http://caf\u00E9");
+    }
+
+    @Test
+    public void tlmStartsWithUnknownTemperature() {
+        assertArrayEquals(bytes(0x20, 0x00, 0x00, 0x00, 0x80, 0x00, 0, 0, 0, 0, 0, 0, 0, 0),
+                EddystoneFrameEncoder.tlm().frame());
+    }
+
+    @Test
+    public void telemetryIsBigEndianAtItsOffsets() {
+        byte[] frame = EddystoneFrameEncoder.tlm().encodeTelemetry(3000, 0x1780, 0x01020304L, 123456789L);
+        assertArrayEquals(bytes(0x20, 0x00,
+                0x0B, 0xB8,
+                0x17, 0x80,
+                0x01, 0x02, 0x03, 0x04,
+                0x00, 0x12, 0xD6, 0x87), frame);
+    }
+
+    @Test
+    public void telemetryCountersWrapAndTemperatureCanBeUnknown() {
+        byte[] frame = EddystoneFrameEncoder.tlm().encodeTelemetry(0x1FFFF,
+                EddystoneFrameEncoder.TEMPERATURE_UNKNOWN, 0x100000001L, 0x1000000000L);
+        assertArrayEquals(bytes(0x20, 0x00,
+                0xFF, 0xFF,
+                0x80, 0x00,
+                0x00, 0x00, 0x00, 0x01,
+                0x28, 0xF5, 0xC2, 0x8F), frame);
+    }
+
+    @Test
+    public void telemetryPatchesTheSameFrame() {
+        EddystoneFrameEncoder encoder = EddystoneFrameEncoder.tlm();
+        byte[] first = encoder.encodeTelemetry(3300, 0x1900, 1000, 60_000);
+        byte[] second = encoder.encodeTelemetry(3000, EddystoneFrameEncoder.TEMPERATURE_UNKNOWN, 5, 100);
+        assertSame(first, second);
+        assertSame(first, encoder.frame());
+        assertArrayEquals(bytes(0x20, 0x00, 0x0B, 0xB8, 0x80, 0x00, 0, 0, 0, 0x05, 0, 0, 0, 0x01), second);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void telemetryNeedsATlmFrame() {
+        EddystoneFrameEncoder.uid(UUID_1, 1, 2, (byte) -59).encodeTelemetry(3000, 0, 0, 0);
+    }
+
+    private static void expectRejected(String url) {
+        try {
+            EddystoneFrameEncoder.url(url, (byte) 0);
+            fail("Accepted " + url);
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
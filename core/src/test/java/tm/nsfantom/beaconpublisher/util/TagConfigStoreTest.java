@@ -0,0 +1,145 @@
+package tm.nsfantom.beaconpublisher.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagConfigStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<File> synced = new ArrayList<>();
+
+    private TagConfigStore store(File file) {
+        return new TagConfigStore(file, synced::add);
+    }
+
+    private static void overwrite(File file, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    @Test
+    public void missingFileIsNotInvalid() {
+        TagConfigStore store = store(new File(folder.getRoot(), "tag_config.bin"));
+        assertEquals(TagConfigStore.LoadResult.MISSING, store.load());
+        assertEquals(TagConfigStore.DEFAULT_DEVICE_NAME, store.getDeviceName());
+    }
+
+    @Test
+    public void roundTripsAndSyncsTheDirectory() {
+        File file = new File(folder.getRoot(), "tag_config.bin");
+        TagConfigStore store = store(file);
+        store.load();
+        store.edit().putMajor(65535).putMinor(0).putTagColor(3).putBatteryLevel(42).putDeviceName("tag").apply();
+        store.flush();
+        assertEquals(1, synced.size());
+        assertEquals(file.getAbsoluteFile().getParentFile(), synced.get(0));
+        assertFalse(new File(file.getPath() + ".bak").exists());
+
+        TagConfigStore reloaded = store(file);
+        assertEquals(TagConfigStore.LoadResult.LOADED, reloaded.load());
+        assertEquals(65535, reloaded.getMajor());
+        assertEquals(0, reloaded.getMinor());
+        assertEquals(3, reloaded.getTagColor());
+        assertEquals(42, reloaded.getBatteryLevel());
+        assertEquals("tag", reloaded.getDeviceName());
+    }
+
+    @Test
+    public void corruptFileIsInvalidNotMissing() throws IOException {
+        File file = new File(folder.getRoot(), "tag_config.bin");
+        overwrite(file, new byte[]{1, 2, 3});
+        TagConfigStore store = store(file);
+        assertEquals(TagConfigStore.LoadResult.INVALID, store.load());
+        assertEquals(0, store.getMajor());
+    }
+
+    @Test
+    public void restoresTheBackupWhenTheRenameDidNotHappen() throws IOException {
+        File file = new File(folder.getRoot(), "tag_config.bin");
+        TagConfigStore store = store(file);
+        store.load();
+        store.edit().putMajor(7).apply();
+        store.flush();
+        // a write interrupted after the good file was moved aside and before the new one landed
+        assertTrue(file.renameTo(new File(file.getPath() + ".bak")));
+        overwrite(new File(file.getPath() + ".tmp"), new byte[]{9});
+
+        TagConfigStore reloaded = store(file);
+        assertEquals(TagConfigStore.LoadResult.RESTORED_BACKUP, reloaded.load());
+        assertEquals(7, reloaded.getMajor());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void restoresTheBackupOverATornFile() throws IOException {
+        File file = new File(folder.getRoot(), "tag_config.bin");
+        TagConfigStore store = store(file);
+        store.load();
+        store.edit().putMinor(12).apply();
+        store.flush();
+        File backup = new File(file.getPath() + ".bak");
+        assertTrue(file.renameTo(backup));
+        overwrite(file, new byte[]{0x4D, 0x54});
+
+        TagConfigStore reloaded = store(file);
+        assertEquals(TagConfigStore.LoadResult.RESTORED_BACKUP, reloaded.load());
+        assertEquals(12, reloaded.getMinor());
+        // the torn file is replaced, the backup goes once the new file is in place
+        reloaded.edit().putMinor(13).apply();
+        reloaded.flush();
+        assertFalse(backup.exists());
+        TagConfigStore again = store(file);
+        assertEquals(TagConfigStore.LoadResult.LOADED, again.load());
+        assertEquals(13, again.getMinor());
+    }
+
+    @Test
+    public void keepsTheBackupWhenTheDirectorySyncFails() {
+        File file = new File(folder.getRoot(), "tag_config.bin");
+        TagConfigStore store = store(file);
+        store.load();
+        store.edit().putMajor(5).apply();
+        store.flush();
+
+        TagConfigStore failing = new TagConfigStore(file, directory -> {
+            throw new IOException("fsync");
+        });
+        assertEquals(TagConfigStore.LoadResult.LOADED, failing.load());
+        failing.edit().putMajor(6).apply();
+        failing.flush();
+        assertTrue(new File(file.getPath() + ".bak").exists());
+        assertEquals(0, failing.getWriteCount());
+    }
+
+    @Test
+    public void coalescesEditsIntoOneWrite() {
+        File file = new File(folder.getRoot(), "tag_config.bin");
+        TagConfigStore store = store(file);
+        store.load();
+        store.edit().putMajor(2).apply();
+        store.edit().putMinor(3).apply();
+        store.edit().putTagColor(1).apply();
+        store.flush();
+        assertTrue(store.getWriteCount() >= 1);
+        assertTrue(store.getWriteCount() <= 3);
+        TagConfigStore reloaded = store(file);
+        reloaded.load();
+        assertEquals(2, reloaded.getMajor());
+        assertEquals(3, reloaded.getMinor());
+        assertEquals(1, reloaded.getTagColor());
+    }
+}